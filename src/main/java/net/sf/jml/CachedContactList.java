@@ -0,0 +1,239 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of a contact list kept by a {@link MsnContactListCache}
+ * between logins: the contacts and groups, the SYN version used by
+ * MSNP8-MSNP12, and for MSNP13 and later the lastChange stamps of the
+ * address book and membership services together with the members of
+ * every role, so the next login only has to ask for what changed.
+ */
+public final class CachedContactList {
+
+    private String protocol;
+    private String version;
+    private String addressBookLastChange;
+    private String membershipLastChange;
+
+    private final List<Group> groups = new ArrayList<Group>();
+    private final List<Contact> contacts = new ArrayList<Contact>();
+    private final Map<String, Set<String>> members = new LinkedHashMap<String, Set<String>>();
+    private final List<Pending> pendings = new ArrayList<Pending>();
+
+    /**
+     * @return
+     * 		the protocol the list was synchronized with
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return
+     * 		the contact list version, MSNP8-MSNP12
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    /**
+     * @return
+     * 		lastChange of the address book, MSNP13 and later
+     */
+    public String getAddressBookLastChange() {
+        return addressBookLastChange;
+    }
+
+    public void setAddressBookLastChange(String addressBookLastChange) {
+        this.addressBookLastChange = addressBookLastChange;
+    }
+
+    /**
+     * @return
+     * 		lastChange of the membership service, MSNP13 and later
+     */
+    public String getMembershipLastChange() {
+        return membershipLastChange;
+    }
+
+    public void setMembershipLastChange(String membershipLastChange) {
+        this.membershipLastChange = membershipLastChange;
+    }
+
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    public List<Contact> getContacts() {
+        return contacts;
+    }
+
+    /**
+     * @return
+     * 		passport names by member role, MSNP13 and later
+     */
+    public Map<String, Set<String>> getMembers() {
+        return members;
+    }
+
+    public Set<String> getMembers(String role) {
+        Set<String> set = members.get(role);
+        if (set == null) {
+            set = new LinkedHashSet<String>();
+            members.put(role, set);
+        }
+        return set;
+    }
+
+    /**
+     * @return
+     * 		users waiting to be accepted, MSNP13 and later
+     */
+    public List<Pending> getPendings() {
+        return pendings;
+    }
+
+    public static final class Group {
+
+        private final String groupId;
+        private final String groupName;
+
+        public Group(String groupId, String groupName) {
+            this.groupId = groupId;
+            this.groupName = groupName;
+        }
+
+        public String getGroupId() {
+            return groupId;
+        }
+
+        public String getGroupName() {
+            return groupName;
+        }
+    }
+
+    public static final class Contact {
+
+        private String id;
+        private String email;
+        private String telephone;
+        private String friendlyName;
+        private String displayName;
+        private int listNumber;
+        private String[] groupIds = new String[0];
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public void setEmail(String email) {
+            this.email = email;
+        }
+
+        public String getTelephone() {
+            return telephone;
+        }
+
+        public void setTelephone(String telephone) {
+            this.telephone = telephone;
+        }
+
+        public String getFriendlyName() {
+            return friendlyName;
+        }
+
+        public void setFriendlyName(String friendlyName) {
+            this.friendlyName = friendlyName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public void setDisplayName(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public int getListNumber() {
+            return listNumber;
+        }
+
+        public void setListNumber(int listNumber) {
+            this.listNumber = listNumber;
+        }
+
+        public String[] getGroupIds() {
+            return groupIds;
+        }
+
+        public void setGroupIds(String[] groupIds) {
+            this.groupIds = groupIds == null ? new String[0] : groupIds;
+        }
+    }
+
+    public static final class Pending {
+
+        private final String email;
+        private final String displayName;
+        private final long joinedDate;
+
+        public Pending(String email, String displayName, long joinedDate) {
+            this.email = email;
+            this.displayName = displayName;
+            this.joinedDate = joinedDate;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * @return
+         * 		milliseconds since the epoch, or -1 if unknown
+         */
+        public long getJoinedDate() {
+            return joinedDate;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml;
+
+/**
+ * Keeps the contact list of an owner between logins. At login the cached
+ * list is restored before the server is asked, MSNP8-MSNP12 send its
+ * version with SYN and get no LST at all when it still matches, MSNP13
+ * and later ask the address book and membership services only for the
+ * changes since the cached lastChange stamps.
+ * <p>
+ * Implementations are called from the session threads and must not
+ * block for long.
+ * 
+ * @see net.sf.jml.impl.FileContactListCache
+ */
+public interface MsnContactListCache {
+
+    /**
+     * Load the cached contact list.
+     * 
+     * @param owner
+     * 		owner email
+     * @return
+     * 		the cached contact list, or null if there is none
+     */
+    public CachedContactList load(Email owner);
+
+    /**
+     * Store the contact list, replacing what was cached before.
+     * 
+     * @param owner
+     * 		owner email
+     * @param contactList
+     * 		the contact list
+     */
+    public void store(Email owner, CachedContactList contactList);
+
+    /**
+     * Drop the cached contact list.
+     * 
+     * @param owner
+     * 		owner email
+     */
+    public void remove(Email owner);
+}
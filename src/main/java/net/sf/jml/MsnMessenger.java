@@ -22,6 +22,7 @@ import net.sf.jml.exception.JmlException;
 import net.sf.jml.message.p2p.DisplayPictureDuelManager;
 import net.sf.jml.message.p2p.FileTransferManager;
 import net.sf.jml.protocol.MsnOutgoingMessage;
+import net.sf.jml.protocol.MsnResponseFuture;
 
 /**
  * Msn Messenger interface.
@@ -110,6 +111,23 @@ public interface MsnMessenger {
      */
     public MsnContactList getContactList();
 
+    /**
+     * Get the cache keeping the contact list between logins.
+     * 
+     * @return
+     * 		the contact list cache, null if the contact list isn't cached
+     */
+    public MsnContactListCache getContactListCache();
+
+    /**
+     * Set the cache keeping the contact list between logins. This will
+     * take effect at the next login.
+     * 
+     * @param cache
+     * 		the contact list cache, null to not cache the contact list
+     */
+    public void setContactListCache(MsnContactListCache cache);
+
     /**
      * Get current connection information.
      * 
@@ -177,6 +195,22 @@ public interface MsnMessenger {
      */
     public void send(MsnOutgoingMessage message);
 
+    /**
+     * Send a message to DS/NS server without waiting, and get the future of
+     * the server's answer: the response with the same transaction id, or
+     * an error. Many commands can be sent before any answer arrived.
+     * 
+     * @param message
+     * 		MsnOutgoingMessage with transaction id
+     * @return
+     * 		the future of the response
+     * @throws IllegalStateException
+     * 		if not logged in
+     * @throws IllegalArgumentException
+     * 		if the message has no transaction id
+     */
+    public MsnResponseFuture sendAndAwait(MsnOutgoingMessage message);
+
     /**
      * Create a switchboard and start. Send a message to NS server
      * and wait response to start a new switchboard. 
@@ -298,6 +332,8 @@ public interface MsnMessenger {
     /**
      * Send text message to someone without format. If the email address is not
      * in any switchboard, will create a switchboard and send the text. 
+     * If the contact is offline the text is queued as an offline message,
+     * see {@link net.sf.jml.event.MsnMessageListener#offlineMessageSent}.
      * 
      * @param email
      * 		email
@@ -19,6 +19,7 @@ import java.io.File;
 
 import net.sf.jml.message.MsnMimeMessage;
 import net.sf.jml.protocol.MsnOutgoingMessage;
+import net.sf.jml.protocol.MsnResponseFuture;
 
 /**
  * Msn switchboard, communication with MSN SB server.
@@ -185,4 +186,18 @@ public interface MsnSwitchboard {
      */
     public void send(MsnOutgoingMessage message);
 
+    /**
+     * Send a message to SB server without waiting, and get the future of
+     * the server's answer, for a MSG its ACK or NAK.
+     * 
+     * @param message
+     * 		MsnOutgoingMessage with transaction id
+     * @return
+     * 		the future of the response
+     * @throws IllegalArgumentException
+     * 		if the message has no transaction id
+     * @see MsnMessenger#sendAndAwait(MsnOutgoingMessage)
+     */
+    public MsnResponseFuture sendAndAwait(MsnOutgoingMessage message);
+
 }
\ No newline at end of file
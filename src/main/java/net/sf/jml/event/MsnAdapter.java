@@ -187,6 +187,16 @@ implements MsnContactListListener,
         // Empty implementation, intended to be overridden.
     }
 
+    /**
+	 * @see MsnMessageListener#offlineMessageSent(Email,String,boolean)
+	 */
+    public void offlineMessageSent(Email email,
+                                   String text,
+                                   boolean delivered)
+    {
+        // Empty implementation, intended to be overridden.
+    }
+
 	/**
 	 * @see MsnMessageListener#systemMessageReceived(MsnMessenger, MsnSystemMessage)
 	 */
@@ -17,6 +17,7 @@ package net.sf.jml.event;
 
 import java.util.Date;
 
+import net.sf.jml.Email;
 import net.sf.jml.MsnContact;
 import net.sf.jml.MsnMessenger;
 import net.sf.jml.MsnSwitchboard;
@@ -61,6 +62,16 @@ public class MsnMessageAdapter implements MsnMessageListener {
         // Empty implementation, intended to be overridden.
     }
 
+    /**
+	 * @see MsnMessageListener#offlineMessageSent(Email,String,boolean)
+	 */
+    public void offlineMessageSent(Email email,
+                                   String text,
+                                   boolean delivered)
+    {
+        // Empty implementation, intended to be overridden.
+    }
+
 	/**
 	 * @see MsnMessageListener#systemMessageReceived(MsnMessenger, MsnSystemMessage)
 	 */
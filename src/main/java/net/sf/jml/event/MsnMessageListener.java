@@ -17,6 +17,7 @@ package net.sf.jml.event;
 
 import java.util.Date;
 
+import net.sf.jml.Email;
 import net.sf.jml.MsnContact;
 import net.sf.jml.MsnMessenger;
 import net.sf.jml.MsnSwitchboard;
@@ -61,6 +62,17 @@ public interface MsnMessageListener {
                                        Date date, 
                                        MsnContact contact);
 
+    /**
+     * An offline text message was sent, or could not be sent.
+     *
+     * @param email the recipient
+     * @param text the text given to {@link MsnMessenger#sendText}
+     * @param delivered whether the message was accepted by the server
+     */
+    public void offlineMessageSent(Email email,
+                                   String text,
+                                   boolean delivered);
+
     /**
      * Received control message, such as typing text or recording voice clip.
      * 
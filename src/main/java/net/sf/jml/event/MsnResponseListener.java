@@ -0,0 +1,36 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.event;
+
+import net.sf.jml.protocol.MsnResponseFuture;
+
+/**
+ * Response listener.
+ * 
+ * @see MsnResponseFuture#addResponseListener(MsnResponseListener)
+ */
+public interface MsnResponseListener {
+
+    /**
+     * The request got its response, failed or was cancelled. Called on the
+     * thread delivering the response, so it should not block.
+     * 
+     * @param future
+     * 		the completed future
+     */
+    public void requestCompleted(MsnResponseFuture future);
+
+}
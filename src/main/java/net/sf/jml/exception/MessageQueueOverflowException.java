@@ -0,0 +1,54 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.exception;
+
+import net.sf.jml.net.Message;
+import net.sf.jml.net.OverflowPolicy;
+
+/**
+ * A message was dropped or rejected because the session queue was full.
+ * 
+ * @see net.sf.jml.net.Session#setOverflowPolicy(OverflowPolicy)
+ */
+public class MessageQueueOverflowException extends JmlException {
+
+    private final Message lostMessage;
+    private final OverflowPolicy policy;
+
+    public MessageQueueOverflowException(Message lostMessage,
+            OverflowPolicy policy) {
+        this.lostMessage = lostMessage;
+        this.policy = policy;
+    }
+
+    /**
+     * @return
+     *      the message which was not sent
+     */
+    public Message getLostMessage() {
+        return lostMessage;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+	public String toString() {
+        return "Message lost (" + policy + "): " + lostMessage;
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.exception;
+
+import net.sf.jml.protocol.MsnOutgoingMessage;
+
+/**
+ * No response to a message came within the request timeout.
+ * 
+ * @see net.sf.jml.util.JmlConstants#REQUEST_TIMEOUT
+ */
+public class RequestTimeoutException extends JmlException {
+
+    private final MsnOutgoingMessage outgoing;
+
+    public RequestTimeoutException(MsnOutgoingMessage outgoing) {
+        this.outgoing = outgoing;
+    }
+
+    public MsnOutgoingMessage getOutgoingMessage() {
+        return outgoing;
+    }
+
+    @Override
+	public String toString() {
+        return "no response to: " + outgoing;
+    }
+
+}
@@ -24,9 +24,11 @@ import net.sf.jml.message.p2p.DisplayPictureRetrieveWorker;
 import net.sf.jml.message.p2p.MsnP2PMessage;
 import net.sf.jml.protocol.MsnOutgoingMessage;
 import net.sf.jml.util.CopyOnWriteCollection;
+import net.sf.jml.util.JmlConstants;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -126,6 +128,27 @@ public abstract class AbstractMessenger implements MsnMessenger {
             this.supportedProtocol = supportedProtocol;
     }
 
+    ////////////////////////////////////////////////////////////////////////////
+
+    private volatile MsnContactListCache contactListCache =
+        JmlConstants.CONTACT_LIST_CACHE_DIR == null ? null
+            : new FileContactListCache(new File(
+                JmlConstants.CONTACT_LIST_CACHE_DIR));
+
+    /**
+     * @see MsnMessenger#getContactListCache()
+     */
+    public MsnContactListCache getContactListCache() {
+        return contactListCache;
+    }
+
+    /**
+     * @see MsnMessenger#setContactListCache(MsnContactListCache)
+     */
+    public void setContactListCache(MsnContactListCache cache) {
+        this.contactListCache = cache;
+    }
+
     ////////////////////////////////////////////////////////////////////////////
     
     /**
@@ -369,6 +392,22 @@ public abstract class AbstractMessenger implements MsnMessenger {
         }
     }
 
+    /**
+     * Notify the listeners that an offline message was sent or failed.
+     *
+     * @param email recipient of the message
+     * @param text text of the message
+     * @param delivered whether the message was accepted by the server
+     */
+    public void fireOfflineMessageSent(Email email,
+                                       String text,
+                                       boolean delivered)
+    {
+        for (MsnMessageListener listener : messageListeners) {
+            listener.offlineMessageSent(email, text, delivered);
+        }
+    }
+
     /**
      * Notify the listeners about a control message arrival.
      * 
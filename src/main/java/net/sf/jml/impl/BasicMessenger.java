@@ -36,6 +36,7 @@ import net.sf.jml.MsnUserStatus;
 import net.sf.jml.event.MsnSwitchboardAdapter;
 import net.sf.jml.protocol.MsnMessage;
 import net.sf.jml.protocol.MsnOutgoingMessage;
+import net.sf.jml.protocol.MsnResponseFuture;
 import net.sf.jml.protocol.MsnSession;
 import net.sf.jml.protocol.incoming.IncomingXFR;
 import net.sf.jml.protocol.outgoing.OutgoingCVR;
@@ -105,6 +106,8 @@ public abstract class BasicMessenger extends AbstractMessenger {
         synchronized (switchboards) {
             switchboards.clear();
         }
+        if (session.getContactList() != null)
+            session.getContactList().shutdown();
         session.close();
     }
 
@@ -121,6 +124,12 @@ public abstract class BasicMessenger extends AbstractMessenger {
 		return false;
 	}
 
+    public MsnResponseFuture sendAndAwait(MsnOutgoingMessage message) {
+        if (session == null)
+            throw new IllegalStateException("not logged in");
+        return session.sendRequest(message);
+    }
+
     public MsnSwitchboard[] getActiveSwitchboards() {
         synchronized (switchboards) {
             MsnSwitchboard[] sbs = new MsnSwitchboard[switchboards.size()];
@@ -198,7 +207,7 @@ public abstract class BasicMessenger extends AbstractMessenger {
         
         if(c != null && c.getStatus().equals(MsnUserStatus.OFFLINE))
         {
-            new OIM(session).sendOfflineMsg(email, text);
+            session.getOIMSender().send(email, text);
             return;
         }
         
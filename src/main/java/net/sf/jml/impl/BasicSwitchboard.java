@@ -26,6 +26,7 @@ import net.sf.jml.MsnMessageChain;
 import net.sf.jml.message.MsnMimeMessage;
 import net.sf.jml.net.Message;
 import net.sf.jml.protocol.MsnOutgoingMessage;
+import net.sf.jml.protocol.MsnResponseFuture;
 import net.sf.jml.protocol.MsnSession;
 import net.sf.jml.protocol.outgoing.OutgoingANS;
 import net.sf.jml.protocol.outgoing.OutgoingMSG;
@@ -113,6 +114,24 @@ public abstract class BasicSwitchboard extends AbstractSwitchboard {
     }
 
     public boolean send(MsnOutgoingMessage message, boolean block)
+    {
+        updateActivity();
+
+        if (block) {
+            return session.sendSynchronousMessage(message);
+        }
+
+        session.sendAsynchronousMessage(message);
+        return false;
+    }
+
+    public MsnResponseFuture sendAndAwait(MsnOutgoingMessage message)
+    {
+        updateActivity();
+        return session.sendRequest(message);
+    }
+
+    private void updateActivity()
     {
         // update the timeout on activity, cause we are tracking the
         // lack of activity
@@ -124,13 +143,6 @@ public abstract class BasicSwitchboard extends AbstractSwitchboard {
                 session.setSessionTimeout(SESSION_ACTIVITY_TIMEOUT);
             }
         }
-
-        if (block) {
-            return session.sendSynchronousMessage(message);
-        }
-
-        session.sendAsynchronousMessage(message);
-        return false;
     }
 
     @Override
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.jml.CachedContactList;
+import net.sf.jml.Email;
+import net.sf.jml.MsnContactListCache;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps every owner's contact list in a file of the given directory. A
+ * file which can't be read is ignored, the next login then does a full
+ * synchronization and writes it again.
+ * 
+ * @see net.sf.jml.util.JmlConstants#CONTACT_LIST_CACHE_DIR
+ */
+public class FileContactListCache implements MsnContactListCache {
+
+    private static final Log log = LogFactory.getLog(FileContactListCache.class);
+
+    private static final int MAGIC = 0x4a4d4c43; // JMLC
+    private static final int FORMAT = 1;
+
+    private final File directory;
+
+    public FileContactListCache(File directory) {
+        if (directory == null)
+            throw new NullPointerException("directory");
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private File getFile(Email owner) {
+        String name = owner.getEmailAddress().toLowerCase();
+        StringBuffer buffer = new StringBuffer(name.length() + 4);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.'
+                    || c == '-' || c == '_' || c == '@')
+                buffer.append(c);
+            else
+                buffer.append('_');
+        }
+        return new File(directory, buffer.append(".cl").toString());
+    }
+
+    public CachedContactList load(Email owner) {
+        File file = getFile(owner);
+        if (!file.isFile())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            return read(in);
+        } catch (IOException e) {
+            log.warn("can't read contact list cache " + file, e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    public synchronized void store(Email owner, CachedContactList contactList) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("can't create contact list cache directory " + directory);
+            return;
+        }
+        File file = getFile(owner);
+        File temp = new File(directory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            write(out, contactList);
+            out.close();
+            out = null;
+            // renameTo doesn't replace on every platform
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+                throw new IOException("can't rename " + temp + " to " + file);
+        } catch (IOException e) {
+            log.warn("can't write contact list cache " + file, e);
+            temp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    public synchronized void remove(Email owner) {
+        getFile(owner).delete();
+    }
+
+    private static void write(DataOutputStream out, CachedContactList cl)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        writeString(out, cl.getProtocol());
+        writeString(out, cl.getVersion());
+        writeString(out, cl.getAddressBookLastChange());
+        writeString(out, cl.getMembershipLastChange());
+
+        out.writeInt(cl.getGroups().size());
+        for (CachedContactList.Group group : cl.getGroups()) {
+            writeString(out, group.getGroupId());
+            writeString(out, group.getGroupName());
+        }
+
+        out.writeInt(cl.getContacts().size());
+        for (CachedContactList.Contact contact : cl.getContacts()) {
+            writeString(out, contact.getId());
+            writeString(out, contact.getEmail());
+            writeString(out, contact.getTelephone());
+            writeString(out, contact.getFriendlyName());
+            writeString(out, contact.getDisplayName());
+            out.writeInt(contact.getListNumber());
+            String[] groupIds = contact.getGroupIds();
+            out.writeInt(groupIds.length);
+            for (String groupId : groupIds)
+                writeString(out, groupId);
+        }
+
+        out.writeInt(cl.getMembers().size());
+        for (Map.Entry<String, Set<String>> entry : cl.getMembers().entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (String member : entry.getValue())
+                writeString(out, member);
+        }
+
+        out.writeInt(cl.getPendings().size());
+        for (CachedContactList.Pending pending : cl.getPendings()) {
+            writeString(out, pending.getEmail());
+            writeString(out, pending.getDisplayName());
+            out.writeLong(pending.getJoinedDate());
+        }
+    }
+
+    private static CachedContactList read(DataInputStream in)
+            throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT)
+            throw new IOException("unknown format");
+
+        CachedContactList cl = new CachedContactList();
+        cl.setProtocol(readString(in));
+        cl.setVersion(readString(in));
+        cl.setAddressBookLastChange(readString(in));
+        cl.setMembershipLastChange(readString(in));
+
+        for (int i = readCount(in); i > 0; i--)
+            cl.getGroups().add(new CachedContactList.Group(readString(in),
+                    readString(in)));
+
+        for (int i = readCount(in); i > 0; i--) {
+            CachedContactList.Contact contact = new CachedContactList.Contact();
+            contact.setId(readString(in));
+            contact.setEmail(readString(in));
+            contact.setTelephone(readString(in));
+            contact.setFriendlyName(readString(in));
+            contact.setDisplayName(readString(in));
+            contact.setListNumber(in.readInt());
+            String[] groupIds = new String[readCount(in)];
+            for (int j = 0; j < groupIds.length; j++)
+                groupIds[j] = readString(in);
+            contact.setGroupIds(groupIds);
+            cl.getContacts().add(contact);
+        }
+
+        for (int i = readCount(in); i > 0; i--) {
+            Set<String> members = cl.getMembers(readString(in));
+            for (int j = readCount(in); j > 0; j--)
+                members.add(readString(in));
+        }
+
+        for (int i = readCount(in); i > 0; i--)
+            cl.getPendings().add(new CachedContactList.Pending(readString(in),
+                    readString(in), in.readLong()));
+        return cl;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("bad count " + count);
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
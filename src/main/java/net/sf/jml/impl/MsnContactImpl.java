@@ -71,7 +71,11 @@ public class MsnContactImpl extends MsnUserImpl implements MsnContact {
      * @param id New Runtime identifier for this MsnContact.
      */
     public void setId(String id) {
+        String oldId = this.id;
         this.id = id;
+        if (contactList instanceof MsnContactListImpl
+                && !(id == null ? oldId == null : id.equals(oldId)))
+            ((MsnContactListImpl) contactList).contactIdChanged(this, oldId);
     }
     
     ////////////////////////////////////////////////////////////////////////////
@@ -102,7 +106,7 @@ public class MsnContactImpl extends MsnUserImpl implements MsnContact {
     /**
      * Location of this MsnContact in the list.
      */
-    private int listNumber;
+    private volatile int listNumber;
 
     /**
      * Retrieves the location in the list for this MsnContact.
@@ -120,6 +124,7 @@ public class MsnContactImpl extends MsnUserImpl implements MsnContact {
      */
     public void setListNumber(int listNumber) {
         this.listNumber = listNumber;
+        listsChanged();
     }
 
     /**
@@ -134,6 +139,12 @@ public class MsnContactImpl extends MsnUserImpl implements MsnContact {
         } else {
             listNumber = listNumber & ~list.getListId();
         }
+        listsChanged();
+    }
+
+    private void listsChanged() {
+        if (contactList instanceof MsnContactListImpl)
+            ((MsnContactListImpl) contactList).contactListsChanged();
     }
 
     /**
@@ -15,32 +15,65 @@
  */
 package net.sf.jml.impl;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.sf.jml.CachedContactList;
 import net.sf.jml.Email;
 import net.sf.jml.MsnContact;
 import net.sf.jml.MsnContactList;
+import net.sf.jml.MsnContactListCache;
 import net.sf.jml.MsnGroup;
 import net.sf.jml.MsnList;
 import net.sf.jml.MsnMessenger;
+import net.sf.jml.MsnProtocol;
+import net.sf.jml.Telephone;
 import net.sf.jml.util.JmlConstants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
+ * Contacts are indexed by email, id and list, reads take no lock. The
+ * arrays returned are copies of snapshots rebuilt on first read after a
+ * change, so a sync adding thousands of contacts builds them once.
+ * 
  * @author Roger Chen
  */
 public class MsnContactListImpl implements MsnContactList {
 
+    private static final Log log = LogFactory.getLog(MsnContactListImpl.class);
+
+    private static final MsnList[] LISTS = { MsnList.FL, MsnList.AL,
+            MsnList.BL, MsnList.RL, MsnList.PL };
+
+    private static final MsnContact[] NO_CONTACTS = new MsnContact[0];
+
     private final MsnMessenger messenger;
     private final MsnGroupImpl defaultGroup;
 
-    // increase query speed
+    // insertion order, guarded by themselves and only used by writers
     private final Map<String, MsnGroup> groupsMap = new LinkedHashMap<String, MsnGroup>();
     private final Map<Email, MsnContact> contactsMap = new LinkedHashMap<Email, MsnContact>();
-    private MsnGroup[] groups;
-    private MsnContact[] contacts;
+
+    // indexes
+    private final ConcurrentMap<String, MsnGroup> groupsById = new ConcurrentHashMap<String, MsnGroup>();
+    private final ConcurrentMap<Email, MsnContact> contactsByEmail = new ConcurrentHashMap<Email, MsnContact>();
+    private final ConcurrentMap<String, MsnContact> contactsById = new ConcurrentHashMap<String, MsnContact>();
+
+    // snapshots, null when stale
+    private volatile MsnGroup[] groups;
+    private volatile MsnContact[] contacts;
+    private volatile ListsSnapshot contactsInLists;
+
+    /**
+     * Bumped on every change of list membership, a lists snapshot built
+     * while a contact changed is not used.
+     */
+    private final AtomicInteger listsVersion = new AtomicInteger(0);
 
     private String version;
 
@@ -75,26 +108,42 @@ public class MsnContactListImpl implements MsnContactList {
     }
 
     public MsnGroup[] getGroups() {
+        return groupsSnapshot().clone();
+    }
+
+    private MsnGroup[] groupsSnapshot() {
+        MsnGroup[] result = groups;
+        if (result != null)
+            return result;
         synchronized (groupsMap) {
             if (groups == null) {
-                groups = new MsnGroup[groupsMap.size()];
-                groupsMap.values().toArray(groups);
+                result = new MsnGroup[groupsMap.size()];
+                groupsMap.values().toArray(result);
+                groups = result;
             }
             return groups;
         }
     }
 
     public MsnGroup getGroup(String groupId) {
-        synchronized (groupsMap) {
-            return groupsMap.get(groupId);
-        }
+        if (groupId == null)
+            return null;
+        return groupsById.get(groupId);
     }
 
     public MsnContact[] getContacts() {
+        return contactsSnapshot().clone();
+    }
+
+    private MsnContact[] contactsSnapshot() {
+        MsnContact[] result = contacts;
+        if (result != null)
+            return result;
         synchronized (contactsMap) {
             if (contacts == null) {
-                contacts = new MsnContact[contactsMap.size()];
-                contactsMap.values().toArray(contacts);
+                result = new MsnContact[contactsMap.size()];
+                contactsMap.values().toArray(result);
+                contacts = result;
             }
             return contacts;
         }
@@ -103,34 +152,66 @@ public class MsnContactListImpl implements MsnContactList {
     public MsnContact getContactById(String id) {
         if (id == null)
             return null;
-        MsnContact[] contacts = getContacts();
-        for (MsnContact contact : contacts) {
-            if (contact.getId().equals(id))
-                return contact;
-        }
-        return null;
+        return contactsById.get(id);
     }
 
     public MsnContact getContactByEmail(Email email) {
-        synchronized (contactsMap) {
-            return contactsMap.get(email);
-        }
+        if (email == null)
+            return null;
+        return contactsByEmail.get(email);
     }
 
     public MsnContact[] getContactsInList(MsnList list) {
         if (list == null)
-            return new MsnContact[0];
+            return NO_CONTACTS;
+        int index = Integer.numberOfTrailingZeros(list.getListId());
 
-        List<MsnContact> contactsList = new LinkedList<MsnContact>();
-        MsnContact[] contacts = getContacts();
-        for (MsnContact contact : contacts) {
-            if (contact.isInList(list))
-                contactsList.add(contact);
+        ListsSnapshot snapshot = contactsInLists;
+        if (snapshot == null || snapshot.version != listsVersion.get()) {
+            synchronized (contactsMap) {
+                snapshot = contactsInLists;
+                int version = listsVersion.get();
+                if (snapshot == null || snapshot.version != version) {
+                    snapshot = new ListsSnapshot(version,
+                            splitByList(contactsSnapshot()));
+                    contactsInLists = snapshot;
+                }
+            }
+        }
+        return index < snapshot.lists.length ? snapshot.lists[index].clone()
+                : NO_CONTACTS;
+    }
+
+    private static final class ListsSnapshot {
+        final int version;
+        final MsnContact[][] lists;
+
+        ListsSnapshot(int version, MsnContact[][] lists) {
+            this.version = version;
+            this.lists = lists;
         }
+    }
 
-        contacts = new MsnContact[contactsList.size()];
-        contactsList.toArray(contacts);
-        return contacts;
+    /**
+     * Build the contacts of every list in one pass.
+     */
+    private static MsnContact[][] splitByList(MsnContact[] contacts) {
+        int[] counts = new int[LISTS.length];
+        for (MsnContact contact : contacts) {
+            for (int i = 0; i < LISTS.length; i++)
+                if (contact.isInList(LISTS[i]))
+                    counts[i]++;
+        }
+        MsnContact[][] lists = new MsnContact[LISTS.length][];
+        for (int i = 0; i < LISTS.length; i++)
+            lists[i] = counts[i] == 0 ? NO_CONTACTS : new MsnContact[counts[i]];
+        int[] pos = new int[LISTS.length];
+        for (MsnContact contact : contacts) {
+            for (int i = 0; i < LISTS.length; i++)
+                if (contact.isInList(LISTS[i]))
+                    lists[i][pos[i]++] = contact;
+        }
+        return lists;
     }
 
     public void setVersion(String version) {
@@ -141,6 +222,7 @@ public class MsnContactListImpl implements MsnContactList {
         if (group != null && group.getContactList() == this) {
             synchronized (groupsMap) {
                 groupsMap.put(group.getGroupId(), group);
+                groupsById.put(group.getGroupId(), group);
                 groups = null;
             }
         }
@@ -149,8 +231,10 @@ public class MsnContactListImpl implements MsnContactList {
     public void removeGroup(String groupId) {
         if (groupId != null && !groupId.equals(defaultGroup.getGroupId())) {
             synchronized (groupsMap) {
-                if (groupsMap.remove(groupId) != null)
+                if (groupsMap.remove(groupId) != null) {
+                    groupsById.remove(groupId);
                     groups = null;
+                }
             }
         }
     }
@@ -172,16 +256,20 @@ public class MsnContactListImpl implements MsnContactList {
      * 		current group count
      */
     public int getCurrentGroupCount() {
-        synchronized (groupsMap) {
-            return groupsMap.size();
-        }
+        return groupsById.size();
     }
 
     public void addContact(MsnContact contact) {
         if (contact != null && contact.getContactList() == this) {
             synchronized (contactsMap) {
-                contactsMap.put(contact.getEmail(), contact);
+                MsnContact old = contactsMap.put(contact.getEmail(), contact);
+                if (old != null && old != contact && old.getId() != null)
+                    contactsById.remove(old.getId(), old);
+                contactsByEmail.put(contact.getEmail(), contact);
+                if (contact.getId() != null)
+                    contactsById.put(contact.getId(), contact);
                 contacts = null;
+                listsVersion.incrementAndGet();
             }
         }
     }
@@ -195,12 +283,39 @@ public class MsnContactListImpl implements MsnContactList {
     public void removeContactByEmail(Email email) {
         if (email != null) {
             synchronized (contactsMap) {
-                if (contactsMap.remove(email) != null)
+                MsnContact old = contactsMap.remove(email);
+                if (old != null) {
+                    contactsByEmail.remove(email);
+                    if (old.getId() != null)
+                        contactsById.remove(old.getId(), old);
                     contacts = null;
+                    listsVersion.incrementAndGet();
+                }
             }
         }
     }
 
+    /**
+     * Called by a contact when its id changed.
+     */
+    void contactIdChanged(MsnContact contact, String oldId) {
+        synchronized (contactsMap) {
+            if (contactsMap.get(contact.getEmail()) != contact)
+                return;
+            if (oldId != null)
+                contactsById.remove(oldId, contact);
+            if (contact.getId() != null)
+                contactsById.put(contact.getId(), contact);
+        }
+    }
+
+    /**
+     * Called by a contact when it was added to or removed from a list.
+     */
+    void contactListsChanged() {
+        listsVersion.incrementAndGet();
+    }
+
     public int getContactCount() {
         return contactCount;
     }
@@ -218,8 +333,141 @@ public class MsnContactListImpl implements MsnContactList {
      * 		current contact count
      */
     public int getCurrentContactCount() {
+        return contactsByEmail.size();
+    }
+
+    /**
+     * Remove all contacts and all groups but the default one, before a
+     * full synchronization.
+     */
+    public void clear() {
+        synchronized (groupsMap) {
+            groupsMap.clear();
+            groupsById.clear();
+            groupsMap.put(defaultGroup.getGroupId(), defaultGroup);
+            groupsById.put(defaultGroup.getGroupId(), defaultGroup);
+            groups = null;
+        }
+        defaultGroup.clear();
         synchronized (contactsMap) {
-            return contactsMap.size();
+            contactsMap.clear();
+            contactsByEmail.clear();
+            contactsById.clear();
+            contacts = null;
+            listsVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return
+     * 		the contacts, groups and version to be cached
+     */
+    public CachedContactList toCachedContactList() {
+        CachedContactList cached = new CachedContactList();
+        MsnProtocol protocol = messenger.getActualMsnProtocol();
+        if (protocol != null)
+            cached.setProtocol(protocol.toString());
+        cached.setVersion(version);
+        for (MsnGroup group : groupsSnapshot()) {
+            if (!group.isDefaultGroup())
+                cached.getGroups().add(new CachedContactList.Group(
+                        group.getGroupId(), group.getGroupName()));
+        }
+        for (MsnContact mc : contactsSnapshot()) {
+            MsnContactImpl contact = (MsnContactImpl) mc;
+            CachedContactList.Contact c = new CachedContactList.Contact();
+            c.setId(contact.getId());
+            c.setEmail(contact.getEmail().getEmailAddress());
+            if (contact.getTelephone() != null)
+                c.setTelephone(contact.getTelephone().getTelephoneNumber());
+            c.setFriendlyName(contact.getFriendlyName());
+            c.setDisplayName(contact.getDisplayName());
+            c.setListNumber(contact.getListNumber());
+            MsnGroup[] belongGroups = contact.getBelongGroups();
+            String[] groupIds = new String[belongGroups.length];
+            for (int i = 0; i < belongGroups.length; i++)
+                groupIds[i] = belongGroups[i].getGroupId();
+            c.setGroupIds(groupIds);
+            cached.getContacts().add(c);
+        }
+        return cached;
+    }
+
+    /**
+     * Replace the contact list by a cached one.
+     * 
+     * @param cached
+     * 		the cached contact list
+     */
+    public void restore(CachedContactList cached) {
+        clear();
+        version = cached.getVersion();
+        for (CachedContactList.Group g : cached.getGroups()) {
+            MsnGroupImpl group = new MsnGroupImpl(this);
+            group.setGroupId(g.getGroupId());
+            group.setGroupName(g.getGroupName());
+            addGroup(group);
+        }
+        for (CachedContactList.Contact c : cached.getContacts()) {
+            Email email = c.getEmail() == null ? null : Email.parseStr(c
+                    .getEmail());
+            if (email == null)
+                continue;
+            MsnContactImpl contact = new MsnContactImpl(this);
+            contact.setEmail(email);
+            if (c.getTelephone() != null)
+                contact.setTelephone(Telephone.parseStr(c.getTelephone()));
+            contact.setId(c.getId());
+            contact.setFriendlyName(c.getFriendlyName());
+            contact.setDisplayName(c.getDisplayName());
+            contact.setListNumber(c.getListNumber());
+            for (String groupId : c.getGroupIds())
+                contact.addBelongGroup(groupId);
+            addContact(contact);
+        }
+        contactCount = getCurrentContactCount();
+        groupCount = getCurrentGroupCount();
+    }
+
+    /**
+     * Restore the contact list from the cache of the messenger, if the
+     * cached list was synchronized with the protocol in use.
+     * 
+     * @return
+     * 		the cached contact list, null if nothing was restored
+     */
+    public CachedContactList restoreFromCache() {
+        MsnContactListCache cache = messenger.getContactListCache();
+        MsnProtocol protocol = messenger.getActualMsnProtocol();
+        if (cache == null || protocol == null)
+            return null;
+        try {
+            CachedContactList cached = cache.load(messenger.getOwner()
+                    .getEmail());
+            if (cached == null || !protocol.toString().equals(cached.getProtocol()))
+                return null;
+            restore(cached);
+            return cached;
+        } catch (RuntimeException e) {
+            log.warn("can't restore contact list", e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the contact list in the cache of the messenger.
+     * 
+     * @param cached
+     * 		the contact list, see {@link #toCachedContactList()}
+     */
+    public void storeToCache(CachedContactList cached) {
+        MsnContactListCache cache = messenger.getContactListCache();
+        if (cache == null)
+            return;
+        try {
+            cache.store(messenger.getOwner().getEmail(), cached);
+        } catch (RuntimeException e) {
+            log.warn("can't cache contact list", e);
         }
     }
 
@@ -230,9 +478,9 @@ public class MsnContactListImpl implements MsnContactList {
                 .append(" [ContactCount] ").append(contactCount).append(
                         JmlConstants.LINE_SEPARATOR);
         buffer.append("[Groups]").append(JmlConstants.LINE_SEPARATOR);
-        buffer.append(groupsMap.values()).append(JmlConstants.LINE_SEPARATOR);
+        buffer.append(Arrays.asList(groupsSnapshot())).append(JmlConstants.LINE_SEPARATOR);
         buffer.append("[Contacts]").append(JmlConstants.LINE_SEPARATOR);
-        buffer.append(contactsMap.values());
+        buffer.append(Arrays.asList(contactsSnapshot()));
         return buffer.toString();
     }
-}
\ No newline at end of file
+}
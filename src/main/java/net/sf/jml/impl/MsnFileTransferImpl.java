@@ -15,14 +15,20 @@
  */
 package net.sf.jml.impl;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import net.sf.jml.Email;
 import net.sf.jml.MsnFileTransferState;
+import net.sf.jml.message.p2p.FileTransferJournal;
 import net.sf.jml.message.p2p.FileTransferWorker;
+import net.sf.jml.message.p2p.MsnFileInviteMessage;
 import net.sf.jml.message.p2p.MsnP2PMessage;
 import net.sf.jml.message.p2p.MsnP2PSlpMessage;
 import net.sf.jml.protocol.MsnSession;
+import net.sf.jml.util.JmlConstants;
+import net.sf.jml.util.RangeSet;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
@@ -43,6 +49,29 @@ public class MsnFileTransferImpl
     private String sessionId = null;
     private Email email = null;
 
+    /**
+     * The file being received, open until the transfer is done.
+     */
+    private FileChannel channel = null;
+
+    /**
+     * Parts of the file received so far.
+     */
+    private final RangeSet received = new RangeSet();
+
+    /**
+     * The journal entry of the transfer, null if there is no journal or
+     * it wasn't opened yet.
+     */
+    private FileTransferJournal.Entry journalEntry = null;
+    private long journalTime = 0;
+
+    /**
+     * Offset the data starts from, everything before it was received by
+     * an interrupted transfer of the file.
+     */
+    private long resumeOffset = 0;
+
     public MsnFileTransferImpl(
         String sessionId,
         Email email,
@@ -68,6 +97,9 @@ public class MsnFileTransferImpl
     {
         setState(MsnFileTransferState.ACCEPTED);
 
+        if(isReceiver())
+            openJournal();
+
         FileTransferWorker worker = getSession().getMessenger()
             .getFileTransferManager().getFileTransferWorker(sessionId);
 
@@ -98,9 +130,13 @@ public class MsnFileTransferImpl
     public void cancel(boolean sendNotify)
     {
         setState(MsnFileTransferState.CANCELED);
+        closeFile();
 
         if(sendNotify)
         {
+            // cancelled here, the file won't be resumed
+            removeJournal();
+
             FileTransferWorker ftw =
                 getSession().getMessenger()
                     .getFileTransferManager().getFileTransferWorker(sessionId);
@@ -126,8 +162,9 @@ public class MsnFileTransferImpl
     }
 
     /**
-     * Method to process new incoming data. Stores the data and fires
-     * events for processing and if finished the final event.
+     * Method to process new incoming data. Stores the data at its offset
+     * and fires events for processing and if finished the final event.
+     * Chunks may come in any order, a chunk already received is ignored.
      * Here we must remove the transfer from active ones if finished.
      *
      * @param bodyPart the current body bytes.
@@ -138,24 +175,48 @@ public class MsnFileTransferImpl
     public synchronized void process(byte[] bodyPart, 
         int currentLength, long totalLength, long offset, MsnP2PMessage origMsg)
     {
-        if(getState() == MsnFileTransferState.CANCELED)
+        if(getState() == MsnFileTransferState.CANCELED
+            || getState() == MsnFileTransferState.FAILED)
+            return;
+
+        if(received.contains(offset, offset + currentLength))
             return;
 
-        FileOutputStream out = null;
         try
         {
-            out = new FileOutputStream(getFile(), true);
-            out.write(bodyPart);
-            out.flush();
-            out.close();
+            if(channel == null)
+            {
+                channel = new RandomAccessFile(getFile(), "rw").getChannel();
+                // keep what an interrupted transfer of the file got
+                if(received.size() == 0)
+                    channel.truncate(0);
+            }
+
+            ByteBuffer data = ByteBuffer.wrap(bodyPart, 0, currentLength);
+            long position = offset;
+            while(data.hasRemaining())
+                position += channel.write(data, position);
+
+            received.add(offset, offset + currentLength);
+            setTransferredSize(received.size());
 
-            setTransferredSize(getTransferredSize() + currentLength);
+            if(isJournalDue())
+            {
+                // only record what is on disk
+                channel.force(false);
+                updateJournal();
+            }
 
             ((AbstractMessenger)getSession().getMessenger()).
                 fireFileTransferProcess(this);
 
-            if(getTransferredSize() == getFileTotalSize())
+            if(received.size() >= getFileTotalSize())
             {
+                // sync once, not every chunk
+                channel.force(false);
+                closeFile();
+                removeJournal();
+
                 setState(MsnFileTransferState.COMPLETED);
 
                 getSession().getMessenger().getFileTransferManager()
@@ -168,21 +229,113 @@ public class MsnFileTransferImpl
                     removeFileTransfer(sessionId);
             }
         }
-        catch (Exception ex)
+        catch (IOException ex)
         {
             logger.error("Cannot save to this file:" + getFile(), ex);
+
+            closeFile();
+            setState(MsnFileTransferState.FAILED);
+
+            ((AbstractMessenger)getSession().getMessenger()).
+                fireFileTransferFinished(this);
+
+            getSession().getMessenger().getFileTransferManager().
+                removeFileTransfer(sessionId);
+        }
+    }
+
+    /**
+     * @return the offset the data starts from
+     */
+    public long getResumeOffset()
+    {
+        return resumeOffset;
+    }
+
+    /**
+     * Sets the offset the data starts from, as announced by the receiver.
+     */
+    public void setResumeOffset(long resumeOffset)
+    {
+        this.resumeOffset = resumeOffset;
+    }
+
+    /**
+     * Takes over the journal entry of an unfinished transfer of the same
+     * file, if there is a journal and the sender gave a hash of the file.
+     */
+    private synchronized void openJournal()
+    {
+        FileTransferJournal journal = getSession().getMessenger()
+            .getFileTransferManager().getJournal();
+        String fileHash = reqMessage == null ? null : reqMessage
+            .getSlpMessage().getBodys()
+            .getProperty(MsnFileInviteMessage.KEY_FILE_HASH);
+        if(journal == null || fileHash == null)
+            return;
+
+        journalEntry = journal.open(
+            sessionId, email, getFile(), getFileTotalSize(), fileHash);
+        journalTime = System.currentTimeMillis();
+
+        received.addAll(journalEntry.getRanges());
+        // the sender would have nothing to send, receive it again
+        if(received.size() >= getFileTotalSize())
+            received.clear();
+        Long end = received.getRanges().get(0L);
+        resumeOffset = end == null ? 0 : end;
+        setTransferredSize(received.size());
+    }
+
+    /**
+     * @return whether the received parts should be written to the journal
+     * now, at most once per
+     * {@link JmlConstants#FILE_TRANSFER_JOURNAL_INTERVAL}.
+     */
+    private boolean isJournalDue()
+    {
+        if(journalEntry == null)
+            return false;
+        long now = System.currentTimeMillis();
+        if(now - journalTime < JmlConstants.FILE_TRANSFER_JOURNAL_INTERVAL)
+            return false;
+        journalTime = now;
+        return true;
+    }
+
+    private void updateJournal()
+    {
+        FileTransferJournal journal = getSession().getMessenger()
+            .getFileTransferManager().getJournal();
+        if(journalEntry != null && journal != null)
+            journal.update(journalEntry, sessionId, received);
+    }
+
+    /**
+     * Forgets the transfer, it is done or won't be resumed.
+     */
+    private synchronized void removeJournal()
+    {
+        FileTransferJournal journal = getSession().getMessenger()
+            .getFileTransferManager().getJournal();
+        if(journalEntry != null && journal != null)
+            journal.remove(journalEntry, sessionId);
+        journalEntry = null;
+    }
+
+    private synchronized void closeFile()
+    {
+        if(channel == null)
+            return;
+        try
+        {
+            channel.close();
         }
-        finally
+        catch (IOException ex)
         {
-            try
-            {
-                out.close();
-            }
-            catch (IOException ex)
-            {
-                logger.error(null, ex);
-            }
+            logger.error(null, ex);
         }
+        channel = null;
     }
 
     /**
@@ -17,12 +17,17 @@ package net.sf.jml.impl;
 
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.sf.jml.MsnContact;
 import net.sf.jml.MsnContactList;
 import net.sf.jml.MsnGroup;
 
 /**
+ * Reads of the members take no lock, {@link #getContacts()} returns a
+ * copy of a snapshot rebuilt on first read after a change.
+ * 
  * @author Roger Chen
  */
 public class MsnGroupImpl implements MsnGroup {
@@ -32,7 +37,10 @@ public class MsnGroupImpl implements MsnGroup {
 
     private String groupId;
     private String groupName;
+    // insertion order, guarded by itself
     private final Set<MsnContact> contacts = new LinkedHashSet<MsnContact>();
+    private final ConcurrentMap<MsnContact, Boolean> members = new ConcurrentHashMap<MsnContact, Boolean>();
+    private volatile MsnContact[] snapshot;
 
     public MsnGroupImpl(MsnContactList contactList) {
         this(contactList, false);
@@ -60,17 +68,25 @@ public class MsnGroupImpl implements MsnGroup {
     }
 
     public MsnContact[] getContacts() {
-        synchronized (contacts) {
-            MsnContact[] result = new MsnContact[contacts.size()];
-            contacts.toArray(result);
+        return contactsSnapshot().clone();
+    }
+
+    private MsnContact[] contactsSnapshot() {
+        MsnContact[] result = snapshot;
+        if (result != null)
             return result;
+        synchronized (contacts) {
+            if (snapshot == null) {
+                result = new MsnContact[contacts.size()];
+                contacts.toArray(result);
+                snapshot = result;
+            }
+            return snapshot;
         }
     }
 
     public boolean containContact(MsnContact contact) {
-        synchronized (contacts) {
-            return contacts.contains(contact);
-        }
+        return contact != null && members.containsKey(contact);
     }
 
     public void setGroupId(String groupId) {
@@ -94,20 +110,33 @@ public class MsnGroupImpl implements MsnGroup {
     }
 
     public void clear() {
-        MsnContact[] contacts = getContacts();
+        MsnContact[] contacts = contactsSnapshot();
         for (MsnContact contact : contacts) {
             removeContact(contact);
         }
     }
 
     void addContact(MsnContact contactPerson) {
-        contacts.add(contactPerson);
+        synchronized (contacts) {
+            if (contacts.add(contactPerson)) {
+                members.put(contactPerson, Boolean.TRUE);
+                snapshot = null;
+            }
+        }
         if (!contactPerson.belongGroup(this))
             ((MsnContactImpl) contactPerson).addBelongGroup(this);
     }
 
     void removeContact(MsnContact contactPerson) {
-        if (contacts.remove(contactPerson))
+        boolean removed;
+        synchronized (contacts) {
+            removed = contacts.remove(contactPerson);
+            if (removed) {
+                members.remove(contactPerson);
+                snapshot = null;
+            }
+        }
+        if (removed)
             if (contactPerson.belongGroup(this))
                 ((MsnContactImpl) contactPerson).removeBelongGroup(this);
     }
@@ -75,7 +75,7 @@ public class SimpleMessenger extends BasicMessenger {
         }
         else
         {
-            session.getContactList().createGroup(groupName);
+            session.getContactList().createGroupAsync(groupName);
         }
     }
 
@@ -92,7 +92,7 @@ public class SimpleMessenger extends BasicMessenger {
             }
             else
             {
-                session.getContactList().removeGroup(groupId);
+                session.getContactList().removeGroupAsync(groupId);
             }
         }
     }
@@ -113,7 +113,7 @@ public class SimpleMessenger extends BasicMessenger {
             }
             else
             {
-                session.getContactList().renameGroup(groupId, newGroupName);
+                session.getContactList().renameGroupAsync(groupId, newGroupName);
             }
         }
     }
@@ -140,7 +140,7 @@ public class SimpleMessenger extends BasicMessenger {
         } 
         else if(protocol.after(MsnProtocol.MSNP13)) 
         {
-            session.getContactList().addFriend(email, friendlyName);
+            session.getContactList().addFriendAsync(email, friendlyName);
         }
         else
         {
@@ -182,7 +182,7 @@ public class SimpleMessenger extends BasicMessenger {
         }
         else
         {
-            session.getContactList().removeFriend(list, email, id, groupId);
+            session.getContactList().removeFriendAsync(list, email, id, groupId);
         }
     }
 
@@ -194,7 +194,7 @@ public class SimpleMessenger extends BasicMessenger {
 
         if(!getActualMsnProtocol().before(MsnProtocol.MSNP13))
         {
-            session.getContactList().addFriend(email, friendlyName);
+            session.getContactList().addFriendAsync(email, friendlyName);
             return;
         }
 
@@ -205,13 +205,13 @@ public class SimpleMessenger extends BasicMessenger {
                 if(getActualMsnProtocol().before(MsnProtocol.MSNP13))
                     addFriend(MsnList.FL, email, friendlyName);
                 else
-                    session.getContactList().addFriendToList(new MsnList[]{MsnList.FL}, (MsnContactImpl)contact);
+                    session.getContactList().addFriendToListAsync(new MsnList[]{MsnList.FL}, (MsnContactImpl)contact);
             }
             if (!contact.isInList(MsnList.AL)) {
                 if(getActualMsnProtocol().before(MsnProtocol.MSNP13))
                     addFriend(MsnList.AL, email, friendlyName);
                 else
-                    session.getContactList().addFriendToList(new MsnList[]{MsnList.AL}, (MsnContactImpl)contact);
+                    session.getContactList().addFriendToListAsync(new MsnList[]{MsnList.AL}, (MsnContactImpl)contact);
             }
         }
         else {
@@ -221,7 +221,7 @@ public class SimpleMessenger extends BasicMessenger {
                 addFriend(MsnList.AL, email, friendlyName);
             }
             else
-                session.getContactList().addFriend(email, friendlyName);
+                session.getContactList().addFriendAsync(email, friendlyName);
         }
     }
 
@@ -233,7 +233,7 @@ public class SimpleMessenger extends BasicMessenger {
             addFriend(MsnList.BL, email, null);
         }
         else
-            session.getContactList().blockFriend(email);
+            session.getContactList().blockFriendAsync(email);
     }
 
     public void copyFriend(Email email, String groupId) {
@@ -262,7 +262,7 @@ public class SimpleMessenger extends BasicMessenger {
         }
         else
         {
-            session.getContactList().copyFriend(email, groupId);
+            session.getContactList().copyFriendAsync(email, groupId);
         }
     }
 
@@ -286,7 +286,7 @@ public class SimpleMessenger extends BasicMessenger {
         }
         else
         {
-            session.getContactList().moveFriend(email, srcGroupId, destGroupId);
+            session.getContactList().moveFriendAsync(email, srcGroupId, destGroupId);
         }
     }
 
@@ -336,7 +336,7 @@ public class SimpleMessenger extends BasicMessenger {
             }
             else if(protocol.after(MsnProtocol.MSNP13))
             {
-                session.getContactList().updateFriend(email, contact.getId(), friendlyName);
+                session.getContactList().updateFriendAsync(email, contact.getId(), friendlyName);
             }
             else
             {
@@ -356,7 +356,7 @@ public class SimpleMessenger extends BasicMessenger {
             addFriend(MsnList.AL, email, null);
         }
         else
-            session.getContactList().unblockFriend(email);
+            session.getContactList().unblockFriendAsync(email);
         
     }
     
@@ -7,9 +7,11 @@ import net.sf.jml.protocol.msnslp.MsnslpMessage;
 import net.sf.jml.protocol.msnslp.MsnslpResponse;
 import net.sf.jml.protocol.outgoing.OutgoingMSG;
 import net.sf.jml.util.Charset;
+import net.sf.jml.util.HashedWheelTimer;
 import net.sf.jml.util.JmlConstants;
 import net.sf.jml.util.NumberUtils;
 import net.sf.jml.util.StringHolder;
+import net.sf.jml.util.ThreadUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -27,6 +29,9 @@ public class DisplayPictureDuel {
 	private DisplayPictureDuelManager duelManager;
 	private MsnSession session;
 	private int timerStatus;
+	private HashedWheelTimer.Timeout duelTimeout;
+
+	private static final long DUEL_TIMEOUT = 1000 * 60;
 
 	/**
 	 * step: 
@@ -69,6 +74,8 @@ public class DisplayPictureDuel {
 
 	public void processError() {
 		duelManager.remove(getBaseId());
+		if (duelTimeout != null)
+			duelTimeout.cancel();
 		log.warn("display picture duel process error,in step:" + step);
 	}
 
@@ -114,11 +121,11 @@ public class DisplayPictureDuel {
 			}
 
 			// Make it in parallel
-			Thread thread = new Thread() {
+			Runnable sender = new Runnable() {
 			
 				private MsnContact contact;
 				
-				public Thread setValue(MsnContact c) {
+				public Runnable setValue(MsnContact c) {
 					this.contact = c;
 					return this;
 				}
@@ -130,8 +137,9 @@ public class DisplayPictureDuel {
 		                int offset = displayPicture.position();
 						int dataLength = displayPicture.remaining() > MsnP2PDataMessage.MAX_DATA_LENGTH ? MsnP2PDataMessage.MAX_DATA_LENGTH
 								: displayPicture.remaining();
-						byte data[] = new byte[dataLength];
-						displayPicture.get(data);
+						ByteBuffer data = displayPicture.slice();
+						data.limit(dataLength);
+						displayPicture.position(offset + dataLength);
 		
 						MsnP2PDataMessage dataMessage = new MsnP2PDataMessage(
 								sessionId, currentBaseId, offset, displayPicture
@@ -147,7 +155,8 @@ public class DisplayPictureDuel {
 					step = 3;
 				}
 			}.setValue(contact);
-			thread.start();
+			ThreadUtils.newThread(sender,
+					"net.sf.jml.message.p2p.DisplayPictureDuel.sender").start();
 			
 			break;
 		case 3:
@@ -166,6 +175,8 @@ public class DisplayPictureDuel {
 				return;
 			}
 			duelManager.remove(getBaseId());
+			if (duelTimeout != null)
+				duelTimeout.cancel();
 			step = 4;
 			return;
 		}
@@ -220,11 +231,26 @@ public class DisplayPictureDuel {
 
 	private void startDuelTimer() {
 		this.timerStatus++;
-		DisplayPictureDuelTimer.getDuelTimer().schedule(
-				new DisplayPictureDuelTimerTask(getBaseId(), this.timerStatus, duelManager),
-				1000 * 60);
+		// one timeout per duel, moved on every step
+		if (duelTimeout == null) {
+			duelTimeout = DisplayPictureDuelTimer.getDuelTimer().schedule(
+					new Runnable() {
+						public void run() {
+							// this duel only, the id may be reused meanwhile
+							duelManager.remove(DisplayPictureDuel.this);
+						}
+					}, DUEL_TIMEOUT);
+		} else {
+			duelTimeout.reschedule(DUEL_TIMEOUT);
+		}
 	}
 
+	/**
+	 * @return the number of times the duel timer was started
+	 * @deprecated the duel keeps one timeout, moved on every step, there is
+	 *             no need to tell the timers apart anymore
+	 */
+	@Deprecated
 	public int getDuelTimerStatus() {
 		return this.timerStatus;
 	}
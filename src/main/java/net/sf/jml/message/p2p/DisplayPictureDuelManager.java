@@ -91,6 +91,17 @@ public class DisplayPictureDuelManager {
 		return duels.remove(duel);
 	}
 
+	/**
+	 * Removes the given DisplayPictureDuel, not another one which got the
+	 * same id since.
+	 * 
+	 * @param duel Instance of the worker.
+	 * @return True if it was removed and false if not.
+	 */
+	public synchronized boolean remove(DisplayPictureDuel duel) {
+		return duels.remove(duel);
+	}
+
 	/**
 	 * Get the number of actual workers.
 	 * 
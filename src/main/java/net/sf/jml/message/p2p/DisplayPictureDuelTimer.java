@@ -1,6 +1,8 @@
 package net.sf.jml.message.p2p;
 
-import java.util.*;
+import java.util.TimerTask;
+
+import net.sf.jml.util.HashedWheelTimer;
 
 public class DisplayPictureDuelTimer {
 
@@ -11,12 +13,28 @@ public class DisplayPictureDuelTimer {
         return duelTimer;
     }
 
-    private java.util.Timer timer;
+    private final HashedWheelTimer timer;
     private DisplayPictureDuelTimer() {
-        timer = new Timer();
+        timer = HashedWheelTimer.getInstance();
+    }
+
+    /**
+     * Schedule a task which can be moved later with
+     * {@link HashedWheelTimer.Timeout#reschedule(long)}.
+     */
+    public HashedWheelTimer.Timeout schedule(Runnable task, long delay) {
+        return timer.newTimeout(task, delay);
     }
 
+    /**
+     * Schedule a task on the same timer. Cancelling the task doesn't stop
+     * it from running.
+     *
+     * @deprecated use {@link #schedule(Runnable, long)} and cancel the
+     *             returned timeout
+     */
+    @Deprecated
     public void schedule(TimerTask task, long delay) {
-        timer.schedule(task, delay);
+        timer.newTimeout(task, delay);
     }
 }
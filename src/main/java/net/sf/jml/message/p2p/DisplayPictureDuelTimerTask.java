@@ -1,5 +1,12 @@
 package net.sf.jml.message.p2p;
 
+/**
+ * Removes a duel whose timer wasn't started again since.
+ *
+ * @deprecated a duel schedules its own timeout with
+ *             {@link DisplayPictureDuelTimer#schedule(Runnable, long)}
+ */
+@Deprecated
 public class DisplayPictureDuelTimerTask extends java.util.TimerTask {
 
     private int baseId;
@@ -19,10 +26,10 @@ public class DisplayPictureDuelTimerTask extends java.util.TimerTask {
         try {
             DisplayPictureDuel d = duelManager.get(baseId);
             if (d != null && lastStatus == d.getDuelTimerStatus()) {
-            	duelManager.remove(baseId);
+            	duelManager.remove(d);
             }
         } catch (RuntimeException e) {
         	e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.message.p2p;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.sf.jml.MsnFileTransferState;
+import net.sf.jml.MsnSwitchboard;
+import net.sf.jml.event.MsnResponseListener;
+import net.sf.jml.impl.AbstractMessenger;
+import net.sf.jml.impl.MsnFileTransferImpl;
+import net.sf.jml.protocol.MsnResponseFuture;
+import net.sf.jml.protocol.incoming.IncomingACK;
+import net.sf.jml.protocol.outgoing.OutgoingMSG;
+import net.sf.jml.util.JmlConstants;
+import net.sf.jml.util.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sends the data of a file transfer through the switchboard, keeping
+ * several chunks waiting for their ACK instead of one.
+ * <p>
+ * The window starts at two chunks and grows by one with every ACK which
+ * came back about as fast as the fastest one seen, up to
+ * {@link JmlConstants#P2P_WINDOW}. A slow ACK means messages are queueing
+ * at the switchboard and shrinks it by one, a NAK or a lost ACK halves it
+ * and the chunk is sent again.
+ * <p>
+ * Chunks are slices of the file mapped in memory, written to the socket
+ * without being copied.
+ * <p>
+ * When the receiver kept the beginning of the file from an interrupted
+ * transfer, sending starts at the offset it announced.
+ *
+ * @author Damian Minkov
+ */
+final class FileDataSender
+{
+    private static final Log logger = LogFactory.getLog(FileDataSender.class);
+
+    /**
+     * Failed chunks in a row after which the transfer fails.
+     */
+    private static final int MAX_FAILURES = 3;
+
+    /**
+     * Bytes of the file mapped at a time.
+     */
+    private static final int MAP_REGION = 1 << 23;
+
+    private final MsnFileTransferImpl fileTransfer;
+    private final MsnSwitchboard switchboard;
+    private final int identifier;
+    private final int field7 = NumberUtils.getIntRandom();
+
+    private final FileChannel file;
+    private final long totalSize;
+
+    /**
+     * The mapped part of the file chunks are sliced from, only used by
+     * {@link #slice}.
+     */
+    private MappedByteBuffer region = null;
+    private long regionStart = 0;
+
+    private long nextOffset = 0;
+    private long ackedSize = 0;
+    private int inFlight = 0;
+
+    /**
+     * Offsets of chunks to send again.
+     */
+    private final LinkedList<Long> resend = new LinkedList<Long>();
+
+    private double window = 2;
+    private long minRtt = Long.MAX_VALUE;
+    private int failures = 0;
+    private boolean finished = false;
+
+    FileDataSender(MsnFileTransferImpl fileTransfer, MsnSwitchboard switchboard,
+        int identifier)
+        throws IOException
+    {
+        this.fileTransfer = fileTransfer;
+        this.switchboard = switchboard;
+        this.identifier = identifier;
+        this.file = new FileInputStream(fileTransfer.getFile()).getChannel();
+        this.totalSize = fileTransfer.getFileTotalSize();
+    }
+
+    /**
+     * Sends as many chunks as the window allows.
+     */
+    void start()
+    {
+        long resumeOffset = fileTransfer.getResumeOffset();
+        if(resumeOffset > 0)
+        {
+            synchronized(this)
+            {
+                nextOffset = ackedSize = Math.min(resumeOffset, totalSize);
+            }
+            logger.info("resuming transfer of " + fileTransfer.getFile()
+                + " at " + nextOffset);
+            fileTransfer.setTransferredSize(nextOffset);
+        }
+
+        if(ackedSize >= totalSize)
+        {
+            synchronized(this)
+            {
+                finish(MsnFileTransferState.COMPLETED);
+            }
+            return;
+        }
+        pump();
+    }
+
+    private void pump()
+    {
+        List<Chunk> toSend = new LinkedList<Chunk>();
+        synchronized(this)
+        {
+            if(finished)
+                return;
+            if(fileTransfer.getState() == MsnFileTransferState.CANCELED)
+            {
+                finish(null);
+                return;
+            }
+
+            while(inFlight < (int)window)
+            {
+                long offset;
+                if(!resend.isEmpty())
+                    offset = resend.removeFirst();
+                else if(nextOffset < totalSize)
+                {
+                    offset = nextOffset;
+                    nextOffset += chunkLength(offset);
+                }
+                else
+                    break;
+
+                inFlight++;
+                toSend.add(new Chunk(offset, chunkLength(offset)));
+            }
+        }
+
+        for (Chunk chunk : toSend)
+        {
+            try
+            {
+                send(chunk);
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot read from file", e);
+                synchronized(this)
+                {
+                    finish(MsnFileTransferState.FAILED);
+                }
+                return;
+            }
+        }
+    }
+
+    private int chunkLength(long offset)
+    {
+        return (int)Math.min(MsnP2PDataMessage.MAX_DATA_LENGTH,
+            totalSize - offset);
+    }
+
+    /**
+     * @return the chunk as a view of the mapped file
+     */
+    private synchronized ByteBuffer slice(Chunk chunk)
+        throws IOException
+    {
+        if(region == null
+            || chunk.offset < regionStart
+            || chunk.offset + chunk.length > regionStart + region.capacity())
+        {
+            if(chunk.offset + chunk.length > file.size())
+                throw new IOException("file is shorter than " + totalSize);
+            regionStart = chunk.offset;
+            region = file.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                Math.min(MAP_REGION, totalSize - regionStart));
+        }
+
+        ByteBuffer data = region.duplicate();
+        data.position((int)(chunk.offset - regionStart));
+        data.limit(data.position() + chunk.length);
+        return data;
+    }
+
+    private void send(Chunk chunk)
+        throws IOException
+    {
+        MsnP2PDataMessage dataMessage = new MsnP2PDataMessage(
+            Integer.parseInt(fileTransfer.getID()),
+            identifier,
+            chunk.offset,
+            totalSize,
+            slice(chunk),
+            fileTransfer.getEmail().getEmailAddress());
+        dataMessage.setFlag(MsnP2PMessage.FLAG_OLD_DATA);
+        dataMessage.setField7(field7);
+
+        OutgoingMSG[] outgoingMessages = dataMessage.toOutgoingMsg(
+            fileTransfer.getSession().getMessenger().getActualMsnProtocol());
+
+        chunk.sent = System.currentTimeMillis();
+        MsnResponseFuture future = switchboard.sendAndAwait(outgoingMessages[0]);
+        future.addResponseListener(new ChunkListener(chunk));
+    }
+
+    private void acked(Chunk chunk)
+    {
+        long rtt = Math.max(1, System.currentTimeMillis() - chunk.sent);
+        synchronized(this)
+        {
+            inFlight--;
+            failures = 0;
+            ackedSize += chunk.length;
+
+            if(rtt < minRtt)
+                minRtt = rtt;
+            if(rtt <= 2 * minRtt)
+                window = Math.min(JmlConstants.P2P_WINDOW, window + 1);
+            else
+                window = Math.max(1, window - 1);
+
+            if(finished)
+                return;
+
+            fileTransfer.setTransferredSize(ackedSize);
+            ((AbstractMessenger)fileTransfer.getSession().getMessenger()).
+                fireFileTransferProcess(fileTransfer);
+
+            if(ackedSize >= totalSize)
+            {
+                finish(MsnFileTransferState.COMPLETED);
+                return;
+            }
+        }
+        pump();
+    }
+
+    private void failed(Chunk chunk, Object reason)
+    {
+        synchronized(this)
+        {
+            inFlight--;
+            window = Math.max(1, window / 2);
+            resend.addFirst(chunk.offset);
+
+            if(++failures >= MAX_FAILURES && !finished)
+            {
+                logger.error("Cannot send file, chunk at " + chunk.offset
+                    + " failed: " + reason);
+                finish(MsnFileTransferState.FAILED);
+                return;
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Stops sending, with the state to set and report or null if the
+     * transfer was cancelled. Called holding the lock.
+     */
+    private void finish(MsnFileTransferState state)
+    {
+        if(finished)
+            return;
+        finished = true;
+        region = null;
+
+        try
+        {
+            file.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot close file", e);
+        }
+
+        if(state == null)
+            return;
+
+        fileTransfer.setState(state);
+        ((AbstractMessenger)fileTransfer.getSession().getMessenger()).
+            fireFileTransferFinished(fileTransfer);
+    }
+
+    private static final class Chunk
+    {
+        final long offset;
+        final int length;
+        long sent;
+
+        Chunk(long offset, int length)
+        {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final class ChunkListener
+        implements MsnResponseListener
+    {
+        private final Chunk chunk;
+
+        ChunkListener(Chunk chunk)
+        {
+            this.chunk = chunk;
+        }
+
+        public void requestCompleted(MsnResponseFuture future)
+        {
+            if(future.getResponse() instanceof IncomingACK)
+                acked(chunk);
+            else
+                failed(chunk, future.getResponse());
+        }
+    }
+}
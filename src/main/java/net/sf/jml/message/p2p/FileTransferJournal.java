@@ -0,0 +1,329 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.message.p2p;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+import net.sf.jml.Email;
+import net.sf.jml.util.DigestUtils;
+import net.sf.jml.util.RangeSet;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the state of unfinished incoming file transfers on disk, so a
+ * transfer which was interrupted, for instance because its switchboard
+ * was closed, continues where it stopped when the same file is sent
+ * again.
+ * <p>
+ * There is one entry per contact and file received to. It holds the hash
+ * the sender gave for the file and the parts of the file written to disk
+ * so far. When the file is sent again, the new transfer takes over the
+ * entry and tells the sender to start after the part received without a
+ * gap. From then on the previous transfer can't change the entry anymore.
+ * A different hash starts over.
+ *
+ * @see net.sf.jml.util.JmlConstants#FILE_TRANSFER_JOURNAL_DIR
+ * @author Damian Minkov
+ */
+public class FileTransferJournal
+{
+    private static final Log logger =
+        LogFactory.getLog(FileTransferJournal.class);
+
+    private static final int MAGIC = 0x4a4d4c4a; // JMLJ
+    private static final int FORMAT = 1;
+
+    private final File directory;
+
+    /**
+     * Entries opened since startup, by key.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public FileTransferJournal(File directory)
+    {
+        if(directory == null)
+            throw new NullPointerException("directory");
+        this.directory = directory;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * A quick hash of the file to send, the same file modified meanwhile
+     * gets another hash.
+     */
+    public static String getFileHash(File file)
+    {
+        return DigestUtils.md5(file.getName() + "|" + file.length() + "|"
+            + file.lastModified());
+    }
+
+    /**
+     * Takes over the entry of an unfinished transfer of the file or
+     * starts a new one.
+     *
+     * @param sessionId the id of the transfer taking over the entry.
+     * @param peer the contact the file is received from.
+     * @param file the file received to.
+     * @param fileSize the size of the file.
+     * @param fileHash the hash the sender gave for the file.
+     * @return the entry, owned by the given transfer.
+     */
+    public synchronized Entry open(String sessionId, Email peer,
+        File file, long fileSize, String fileHash)
+    {
+        String key = DigestUtils.md5(peer.getEmailAddress().toLowerCase()
+            + "|" + file.getAbsolutePath());
+
+        Entry entry = entries.get(key);
+        if(entry == null)
+            entry = load(key);
+        if(entry == null
+            || entry.fileSize != fileSize
+            || !entry.fileHash.equals(fileHash)
+            || !isIntact(entry, file))
+        {
+            entry = new Entry(key, peer, file, fileSize, fileHash);
+        }
+        else if(!entry.ranges.getRanges().isEmpty())
+        {
+            logger.info("resuming transfer of " + file + " at "
+                + entry.ranges);
+        }
+
+        entry.sessionId = sessionId;
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Records the parts of the file on disk, unless another transfer took
+     * over the entry.
+     */
+    public synchronized void update(Entry entry, String sessionId,
+        RangeSet ranges)
+    {
+        if(entries.get(entry.key) != entry
+            || !entry.sessionId.equals(sessionId))
+            return;
+
+        entry.ranges = new RangeSet(ranges);
+        store(entry);
+    }
+
+    /**
+     * Forgets a transfer which is done, unless another transfer took over
+     * the entry.
+     */
+    public synchronized void remove(Entry entry, String sessionId)
+    {
+        if(entries.get(entry.key) != entry
+            || !entry.sessionId.equals(sessionId))
+            return;
+
+        entries.remove(entry.key);
+        getFile(entry.key).delete();
+    }
+
+    /**
+     * @return whether the file received to still holds the recorded parts
+     */
+    private static boolean isIntact(Entry entry, File file)
+    {
+        SortedMap<Long, Long> ranges = entry.ranges.getRanges();
+        if(ranges.isEmpty())
+            return true;
+        return file.isFile()
+            && file.length() >= ranges.get(ranges.lastKey());
+    }
+
+    private File getFile(String key)
+    {
+        return new File(directory, key + ".ftj");
+    }
+
+    private Entry load(String key)
+    {
+        File file = getFile(key);
+        if(!file.isFile())
+            return null;
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+            if(in.readInt() != MAGIC || in.readInt() != FORMAT)
+                throw new IOException("unknown format");
+
+            in.readUTF(); // session id of the last transfer
+            Entry entry = new Entry(key,
+                Email.parseStr(in.readUTF()),
+                new File(in.readUTF()),
+                in.readLong(),
+                in.readUTF());
+            for (int i = in.readInt(); i > 0; i--)
+                entry.ranges.add(in.readLong(), in.readLong());
+            return entry;
+        }
+        catch (IOException e)
+        {
+            logger.warn("can't read file transfer journal " + file, e);
+            return null;
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    private void store(Entry entry)
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            logger.warn("can't create file transfer journal directory "
+                + directory);
+            return;
+        }
+        File file = getFile(entry.key);
+        File temp = new File(directory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeUTF(entry.sessionId);
+            out.writeUTF(entry.peer.getEmailAddress());
+            out.writeUTF(entry.file.getAbsolutePath());
+            out.writeLong(entry.fileSize);
+            out.writeUTF(entry.fileHash);
+            SortedMap<Long, Long> ranges = entry.ranges.getRanges();
+            out.writeInt(ranges.size());
+            for (Map.Entry<Long, Long> range : ranges.entrySet())
+            {
+                out.writeLong(range.getKey());
+                out.writeLong(range.getValue());
+            }
+            out.close();
+            out = null;
+            // renameTo doesn't replace on every platform
+            if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+                throw new IOException("can't rename " + temp + " to " + file);
+        }
+        catch (IOException e)
+        {
+            logger.warn("can't write file transfer journal " + file, e);
+            temp.delete();
+        }
+        finally
+        {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable c)
+    {
+        if(c == null)
+            return;
+        try
+        {
+            c.close();
+        }
+        catch (IOException e)
+        {
+            // ignore
+        }
+    }
+
+    /**
+     * The journal entry of a file transfer.
+     */
+    public static final class Entry
+    {
+        private final String key;
+        private final Email peer;
+        private final File file;
+        private final long fileSize;
+        private final String fileHash;
+
+        private String sessionId = null;
+        private RangeSet ranges = new RangeSet();
+
+        private Entry(String key, Email peer, File file, long fileSize,
+            String fileHash)
+        {
+            this.key = key;
+            this.peer = peer;
+            this.file = file;
+            this.fileSize = fileSize;
+            this.fileHash = fileHash;
+        }
+
+        /**
+         * @return the id of the transfer owning the entry
+         */
+        public String getSessionId()
+        {
+            return sessionId;
+        }
+
+        public Email getPeer()
+        {
+            return peer;
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        public long getFileSize()
+        {
+            return fileSize;
+        }
+
+        public String getFileHash()
+        {
+            return fileHash;
+        }
+
+        /**
+         * @return the parts of the file on disk when the entry was last
+         * written
+         */
+        public RangeSet getRanges()
+        {
+            return new RangeSet(ranges);
+        }
+    }
+}
@@ -51,6 +51,11 @@ public class FileTransferManager
         activeFileTransfers = new Hashtable<String, FileTransferWorker>();
     private MsnSession session = null;
 
+    private volatile FileTransferJournal journal =
+        JmlConstants.FILE_TRANSFER_JOURNAL_DIR == null ? null
+            : new FileTransferJournal(
+                new File(JmlConstants.FILE_TRANSFER_JOURNAL_DIR));
+
     public void addFileTransfer(String id, FileTransferWorker ftw)
     {
         activeFileTransfers.put(id, ftw);
@@ -194,6 +199,9 @@ public class FileTransferManager
 				         MsnFileInviteMessage.GUID_EUF);
 		body.setProperty("SessionID", lastRandomIdentifier);
 		body.setProperty("AppID", 2);
+        // before the context, which must stay last
+        body.setProperty(MsnFileInviteMessage.KEY_FILE_HASH,
+            FileTransferJournal.getFileHash(file));
         try
         {
             body.setProperty(MsnP2PInvitationMessage.KEY_CONTEXT,
@@ -243,6 +251,27 @@ public class FileTransferManager
         return fileTransfer;
     }
 
+    /**
+     * @return the journal of unfinished incoming transfers, null if
+     * transfers aren't resumed
+     */
+    public FileTransferJournal getJournal()
+    {
+        return journal;
+    }
+
+    /**
+     * Sets the journal of unfinished incoming transfers. A file received
+     * again from the same contact to the same file then keeps the parts
+     * already received, and the sender continues after them.
+     *
+     * @param journal the journal, or null not to resume transfers
+     */
+    public void setJournal(FileTransferJournal journal)
+    {
+        this.journal = journal;
+    }
+
     /**
      * @param session the session to set
      */
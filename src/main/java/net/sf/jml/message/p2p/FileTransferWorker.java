@@ -15,16 +15,10 @@
  */
 package net.sf.jml.message.p2p;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import net.sf.jml.MsnFileTransferState;
 import net.sf.jml.MsnSwitchboard;
-import net.sf.jml.impl.AbstractMessenger;
 import net.sf.jml.impl.MsnFileTransferImpl;
-import net.sf.jml.protocol.MsnIncomingMessage;
-import net.sf.jml.protocol.MsnSession;
 import net.sf.jml.protocol.msnslp.MsnslpMessage;
 import net.sf.jml.protocol.msnslp.MsnslpRequest;
 import net.sf.jml.protocol.msnslp.MsnslpResponse;
@@ -56,9 +50,6 @@ public class FileTransferWorker
 
     private MsnSwitchboard switchboard = null;
 
-    private FileInputStream fileInput = null;
-    private long fileOffset = 0;
-
 
     public FileTransferWorker(MsnFileTransferImpl fileTransfer)
     {
@@ -115,6 +106,9 @@ public class FileTransferWorker
 
             StringHolder body = new StringHolder();
             body.setProperty("SessionID", fileTransfer.getID());
+            if(fileTransfer.getResumeOffset() > 0)
+                body.setProperty(MsnFileOkMessage.KEY_OFFSET,
+                    String.valueOf(fileTransfer.getResumeOffset()));
 
             okSlpMessage.setBody(body.toString() + JmlConstants.LINE_SEPARATOR
                     + "\0");
@@ -142,98 +136,11 @@ public class FileTransferWorker
         {
             try
             {
-                if(fileInput == null)
-                {
-                    fileInput = new FileInputStream(fileTransfer.getFile());
-                    // increase identifier
-                    getNextIdentifier();
-                }
-
-                int remaining = (int)(fileTransfer.getFile().length() - fileOffset);
-
-                int dataLength = remaining > MsnP2PDataMessage.MAX_DATA_LENGTH ?
-                    MsnP2PDataMessage.MAX_DATA_LENGTH : remaining;
-
-                byte data[] = new byte[dataLength];
-                fileInput.read(data);
-
-                MsnP2PDataMessage dataMessage = new MsnP2PDataMessage(
-                        Integer.parseInt(fileTransfer.getID()),
-                        getLastIdentifier(),
-                        (int)fileOffset,
-                        (int)fileTransfer.getFileTotalSize(),
-                        data,
-                        fileTransfer.getEmail().getEmailAddress())
-                {
-                    protected void receivedResponse(MsnSession session,
-                        MsnIncomingMessage response)
-                    {
-                        try
-                        {
-                            int remaining =
-                                (int)(fileTransfer.getFile().length() - fileOffset);
-
-                            if(remaining == 0)
-                            {
-                                fileTransfer.setState(
-                                    MsnFileTransferState.COMPLETED);
-
-                                 ((AbstractMessenger)fileTransfer.getSession().
-                                     getMessenger()).
-                                        fireFileTransferFinished(fileTransfer);
-                                 return;
-                            }
-
-                            if(fileTransfer.getState()
-                                    == MsnFileTransferState.CANCELED)
-                                return;
-
-                            binaryHeader.rewind();
-
-                            int dataLength = remaining > MsnP2PDataMessage.MAX_DATA_LENGTH ?
-                                MsnP2PDataMessage.MAX_DATA_LENGTH : remaining;
-
-                            byte data[] = new byte[dataLength];
-                            fileInput.read(data);
-
-                            setCurrentLength(data.length);
-                            parseP2PBody(ByteBuffer.wrap(data));
-
-                            setOffset(fileOffset);
-
-                            fileOffset += data.length;
-
-                            fileTransfer.setTransferredSize(getOffset());
-                            ((AbstractMessenger)fileTransfer.getSession().getMessenger()).
-                                fireFileTransferProcess(fileTransfer);
-
-                            OutgoingMSG[] outgoingMessages = toOutgoingMsg(
-                                session.getMessenger().getActualMsnProtocol());
-                            for (OutgoingMSG outgoingMessage : outgoingMessages)
-                            {
-                                switchboard.send(outgoingMessage);
-                            }
-                        }
-                        catch (IOException e)
-                        {
-                            logger.info("Cannot send file", e);
-                        }
-                    }
-                };
-                dataMessage.setFlag(MsnP2PMessage.FLAG_OLD_DATA);
-                fileOffset += data.length;
-
-                fileTransfer.setTransferredSize(fileOffset);
-                ((AbstractMessenger)fileTransfer.getSession().getMessenger()).
-                    fireFileTransferProcess(fileTransfer);
-
-                OutgoingMSG[] outgoingDataMessages = dataMessage
-                        .toOutgoingMsg(fileTransfer.getSession().getMessenger()
-                                .getActualMsnProtocol());
-                for (OutgoingMSG outgoingDataMessage : outgoingDataMessages)
-                {
-                    switchboard.send(outgoingDataMessage);
-                }
+                // increase identifier
+                getNextIdentifier();
+
+                new FileDataSender(fileTransfer, switchboard,
+                    getLastIdentifier()).start();
             }
             catch (FileNotFoundException ex)
             {
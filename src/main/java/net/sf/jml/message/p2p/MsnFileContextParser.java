@@ -48,11 +48,14 @@ public class MsnFileContextParser
         return (endIndex < 0) ? str : str.substring(0, endIndex);
     }
 
+    /**
+     * The file size is a 64-bit little endian value.
+     */
     public static long getFileSize(byte[] bytes, int offset)
     {
         long value = 0;
-        for (int i = 0; i < 4; i++)
-            value |= ((bytes[offset + i] & 0xFF) << (i * 8));
+        for (int i = 0; i < 8; i++)
+            value |= ((long) (bytes[offset + i] & 0xFF) << (i * 8));
         return value;
     }
 
@@ -62,15 +65,20 @@ public class MsnFileContextParser
             bytes[offset + i] = (byte) ((value >>> i * 8) & 0xFF);
     }
 
+    private static void writeUInt64(long value, byte[] bytes, int offset)
+    {
+        for (int i = 0; i < 8; i++)
+            bytes[offset + i] = (byte) ((value >>> i * 8) & 0xFF);
+    }
+
     public static String getEncodedContext(File file)
         throws UnsupportedEncodingException
     {
         int headerSize
             = 4 // 32-bit unsigned int for the size of the context
             + 4 // 32-bit unsigned int for the first unknown struct field
-            + 4 // 32-bit unsigned int for the file size
-            + 4 // 32-bit unsigned int for the second unknown struct field
-            + 4;// 32-bit unsigned int for the third unknown struct field
+            + 8 // 64-bit unsigned int for the file size
+            + 4;// 32-bit unsigned int for the second unknown struct field
         int contextSize
             = headerSize
             + MAX_FILE_NAME_LENGTH
@@ -85,14 +93,11 @@ public class MsnFileContextParser
         writeUInt32(2, bytes, offset);
         offset += 4;
         // the file size
-        writeUInt32(file.length(), bytes, offset);
-        offset += 4;
+        writeUInt64(file.length(), bytes, offset);
+        offset += 8;
         // the second unknown struct field
         writeUInt32(0, bytes, offset);
         offset += 4;
-        // the third unknown struct field
-        writeUInt32(0, bytes, offset);
-        offset += 4;
 
         // the file name
         byte[] fileNameBytes = file.getName().getBytes("UTF-16LE");
@@ -44,8 +44,8 @@ public class MsnFileDataMessage
     	setFlag(FLAG_OLD_DATA);
     }
 
-    public MsnFileDataMessage(int sessionId, int identifier, int offset,
-                             int totalLength, byte[] data, String p2pDest)
+    public MsnFileDataMessage(int sessionId, int identifier, long offset,
+                             long totalLength, byte[] data, String p2pDest)
     {
         this.body = data;
         setP2PDest(p2pDest);
@@ -42,6 +42,13 @@ public class MsnFileInviteMessage
     public static final String KEY_CONTEXT = "Context";
     public static final String KEY_FROM = "From";
 
+    /**
+     * Hash of the file, lets the receiver resume an interrupted transfer.
+     *
+     * @see FileTransferJournal#getFileHash(java.io.File)
+     */
+    public static final String KEY_FILE_HASH = "FileHash";
+
     public static final String GUID_EUF =
             "{5D3E02AB-6190-11D3-BBBB-00C04F795683}";
 
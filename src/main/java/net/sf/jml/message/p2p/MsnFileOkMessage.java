@@ -32,6 +32,12 @@ public class MsnFileOkMessage
 {
     private static final Log logger = LogFactory.getLog(MsnFileOkMessage.class);
 
+    /**
+     * Offset the sender should start from, the receiver has everything
+     * before it from an interrupted transfer.
+     */
+    public static final String KEY_OFFSET = "Offset";
+
     public MsnFileOkMessage()
     {
 	}
@@ -51,6 +57,19 @@ public class MsnFileOkMessage
         if(ft == null)
             return;
 
+        String offset = msnslpResponse.getBodys().getProperty(KEY_OFFSET);
+        if(offset != null)
+        {
+            try
+            {
+                ft.setResumeOffset(Long.parseLong(offset.trim()));
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.warn("invalid offset " + offset);
+            }
+        }
+
         ft.setContact(contact);
         ft.start();
     }
@@ -11,12 +11,17 @@ public class MsnP2PDataMessage extends MsnP2PMessage {
 
     private byte[] body;
 
+    /**
+     * Body sent without copying, such as a slice of a mapped file.
+     */
+    private ByteBuffer bodyBuffer;
+
     public MsnP2PDataMessage(){
     	setFlag(FLAG_DATA);
     }
 
-    public MsnP2PDataMessage(int sessionId, int identifier, int offset,
-                             int totalLength, byte[] data, String p2pDest) {
+    public MsnP2PDataMessage(int sessionId, int identifier, long offset,
+                             long totalLength, byte[] data, String p2pDest) {
         this.body = data;
         setP2PDest(p2pDest);
         setSessionId(sessionId);
@@ -29,19 +34,49 @@ public class MsnP2PDataMessage extends MsnP2PMessage {
         setAppId(1);
     }
 
+    /**
+     * A data message which body is the remaining bytes of the buffer. The
+     * buffer is sent as it is and must not change until then.
+     */
+    public MsnP2PDataMessage(int sessionId, int identifier, long offset,
+                             long totalLength, ByteBuffer data, String p2pDest) {
+        this.bodyBuffer = data;
+        setP2PDest(p2pDest);
+        setSessionId(sessionId);
+        setIdentifier(identifier);
+        setOffset(offset);
+        setTotalLength(totalLength);
+        setCurrentLength(data.remaining());
+        setFlag(FLAG_DATA);
+        setField7(NumberUtils.getIntRandom());
+        setAppId(1);
+    }
+
     @Override
 	protected byte[] bodyToMessage() {
+        if (body == null && bodyBuffer != null) {
+            body = new byte[bodyBuffer.remaining()];
+            bodyBuffer.duplicate().get(body);
+        }
         return body;
     }
 
+    @Override
+	protected ByteBuffer bodyToBuffer() {
+        if (bodyBuffer != null)
+            return bodyBuffer.duplicate();
+        return super.bodyToBuffer();
+    }
+
     @Override
 	protected void parseP2PBody(ByteBuffer buffer) {
         body = new byte[this.getCurrentLength()];
         buffer.get(body);
+        bodyBuffer = null;
     }
     
 	protected String toDebugBody() {
-		return StringUtils.debug(ByteBuffer.wrap(body));		
+		return StringUtils.debug(bodyToBuffer());		
 	}
     
 }
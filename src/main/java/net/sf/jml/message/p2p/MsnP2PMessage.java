@@ -99,33 +99,36 @@ public abstract class MsnP2PMessage extends MsnMimeMessage {
         };
 		message.setMsgType(OutgoingMSG.TYPE_MSNC1);
 
-		byte[] mimeMessageHeader = Charset.encodeAsByteArray(toString());
+		ByteBuffer mimeMessageHeader = Charset.encode(toString());
 
-		byte[] body = bodyToMessage();
+		ByteBuffer body = bodyToBuffer();
 		if (body == null) {
-			body = new byte[0];
+			body = ByteBuffer.allocate(0);
 		}
 
         // move to next data, as the body is the whole actual body
         // and we obey the length,currentLength and offset
         // if body is not the whole (length not equal to total length )
         // it means that external will take care fill the data
-        if(getTotalLength() > getCurrentLength() && body.length == getTotalLength())
+        if(getTotalLength() > getCurrentLength() && body.remaining() == getTotalLength())
         {
-            byte[] newBody = new byte[getCurrentLength()];
-            System.arraycopy(body, (int)getOffset(), newBody, 0, newBody.length);
-            body = newBody;
+            body = body.duplicate();
+            body.position(body.position() + (int)getOffset());
+            body.limit(body.position() + getCurrentLength());
         }
 
-		ByteBuffer msg = ByteBuffer
-				.allocate(mimeMessageHeader.length + BINARY_HEADER_LEN
-						+ body.length + BINARY_FOOTER_LEN);
-
-		msg.put(mimeMessageHeader);
-		msg.put(binaryHeader);
-		msg.put(body);
-		msg.put(binaryFooter);
-		message.setMsg(msg.array());
+		// the headers are copied, the message may be changed and sent
+		// again, the body is written as it is
+		ByteBuffer header = ByteBuffer.allocate(mimeMessageHeader.remaining()
+				+ BINARY_HEADER_LEN);
+		header.put(mimeMessageHeader);
+		header.put((ByteBuffer) binaryHeader.duplicate().clear());
+		header.flip();
+		ByteBuffer footer = ByteBuffer.allocate(BINARY_FOOTER_LEN);
+		footer.put((ByteBuffer) binaryFooter.duplicate().clear());
+		footer.flip();
+
+		message.setMsg(new ByteBuffer[] { header, body, footer });
 		return new OutgoingMSG[] { message };
 	}
 
@@ -170,6 +173,17 @@ public abstract class MsnP2PMessage extends MsnMimeMessage {
 	 */
 	protected abstract byte[] bodyToMessage();
 
+	/**
+	 * Retrieve the body part for this P2P message without copying it, by
+	 * default a wrap of {@link #bodyToMessage()}.
+	 * 
+	 * @return Buffer with the body part, from its position to its limit.
+	 */
+	protected ByteBuffer bodyToBuffer() {
+		byte[] body = bodyToMessage();
+		return body == null ? null : ByteBuffer.wrap(body);
+	}
+
 	/**
 	 * Creates a debug representation for this P2P message.
 	 * @return String representation for the message.
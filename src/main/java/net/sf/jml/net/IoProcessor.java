@@ -0,0 +1,230 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jml.util.JmlConstants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Shared pool of selector threads serving the non-blocking sessions.
+ * Every session is bound to one selector thread for its whole life, the
+ * events of the session are delivered on a shared dispatch pool.
+ *
+ * @see JmlConstants#IO_THREADS
+ * @see JmlConstants#DISPATCH_THREADS
+ */
+final class IoProcessor
+{
+    private static final Log logger = LogFactory.getLog(IoProcessor.class);
+
+    private static IoProcessor instance = null;
+
+    private final SelectorLoop[] loops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+    private final ThreadPoolExecutor dispatchExecutor;
+
+    static synchronized IoProcessor getInstance()
+        throws IOException
+    {
+        if(instance == null)
+            instance = new IoProcessor(JmlConstants.IO_THREADS,
+                JmlConstants.DISPATCH_THREADS);
+        return instance;
+    }
+
+    private IoProcessor(int ioThreads, int dispatchThreads)
+        throws IOException
+    {
+        loops = new SelectorLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++)
+        {
+            loops[i] = new SelectorLoop();
+            Thread t = new Thread(loops[i],
+                "net.sf.jml.net.IoProcessor.selector-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        dispatchExecutor = new ThreadPoolExecutor(
+            Math.max(1, dispatchThreads), Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new DaemonThreadFactory("net.sf.jml.net.IoProcessor.dispatcher-"));
+    }
+
+    /**
+     * Creates an executor which runs the given tasks in order on the
+     * shared dispatch pool.
+     */
+    SerialExecutor newSerialExecutor()
+    {
+        return new SerialExecutor(dispatchExecutor);
+    }
+
+    /**
+     * Registers a channel, which connect was already initiated, with one
+     * of the selector threads.
+     */
+    SelectorLoop register(final Session session, final SocketChannel channel)
+    {
+        final SelectorLoop loop =
+            loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+
+        loop.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    int ops = channel.isConnected() ?
+                        SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+                    SelectionKey key =
+                        channel.register(loop.selector, ops, session);
+                    session.channelRegistered(key);
+                }
+                catch (IOException ex)
+                {
+                    session.channelFailed(ex);
+                }
+            }
+        });
+
+        return loop;
+    }
+
+    /**
+     * One selector thread. All interest changes of the keys registered
+     * with this loop are done on its own thread through {@link #execute}.
+     */
+    static final class SelectorLoop
+        implements Runnable, Executor
+    {
+        private final Selector selector;
+
+        private final Queue<Runnable> tasks =
+            new ConcurrentLinkedQueue<Runnable>();
+
+        private volatile Thread thread = null;
+
+        SelectorLoop()
+            throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        boolean inLoop()
+        {
+            return Thread.currentThread() == thread;
+        }
+
+        public void execute(Runnable task)
+        {
+            tasks.add(task);
+            if(!inLoop())
+                selector.wakeup();
+        }
+
+        public void run()
+        {
+            thread = Thread.currentThread();
+
+            while(true)
+            {
+                try
+                {
+                    selector.select();
+
+                    Runnable task;
+                    while((task = tasks.poll()) != null)
+                        task.run();
+
+                    Iterator<SelectionKey> iter =
+                        selector.selectedKeys().iterator();
+                    while(iter.hasNext())
+                    {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+
+                        processKey(key);
+                    }
+                }
+                catch (Throwable t)
+                {
+                    logger.error("error in selector loop", t);
+                }
+            }
+        }
+
+        private void processKey(SelectionKey key)
+        {
+            Session session = (Session)key.attachment();
+            try
+            {
+                if(key.isConnectable())
+                    session.processConnect();
+                if(key.isValid() && key.isReadable())
+                    session.processRead();
+                if(key.isValid() && key.isWritable())
+                    session.processWrite();
+            }
+            catch (CancelledKeyException ex)
+            {
+                // session closed meanwhile
+            }
+            catch (IOException ex)
+            {
+                session.channelFailed(ex);
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory
+        implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        private final String prefix;
+
+        DaemonThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, prefix + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.net;
+
+/**
+ * A bounded queue used by the sessions for received and outgoing
+ * messages. Implementations must be safe for several producers and
+ * consumers and should not block, waiting is done by the session.
+ *
+ * @see Session#setMessageQueueFactory(MessageQueueFactory)
+ */
+public interface MessageQueue<E>
+{
+    /**
+     * Inserts the element if there is room for it.
+     *
+     * @return false if the queue is full
+     */
+    public abstract boolean offer(E e);
+
+    /**
+     * @return the head of the queue or null if it is empty
+     */
+    public abstract E poll();
+
+    public abstract int size();
+
+    public abstract int capacity();
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.net;
+
+/**
+ * What a session does with a message when its queue is full.
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Wait until the queue has room.
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest queued message to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Reject the new message.
+     */
+    FAIL_FAST
+}
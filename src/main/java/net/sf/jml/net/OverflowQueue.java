@@ -0,0 +1,198 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Applies an {@link OverflowPolicy} to a {@link MessageQueue} and lets
+ * the session threads wait on it. Waiting threads are parked and woken by
+ * the other side, the queue itself is never locked.
+ */
+final class OverflowQueue<E>
+{
+    private static final long PRODUCER_RECHECK_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final MessageQueue<E> queue;
+
+    private final OverflowPolicy policy;
+
+    private volatile Thread consumer = null;
+
+    private final Queue<Thread> producers = new ConcurrentLinkedQueue<Thread>();
+
+    private volatile boolean closed = false;
+
+    OverflowQueue(MessageQueue<E> queue, OverflowPolicy policy)
+    {
+        this.queue = queue;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues the element applying the overflow policy.
+     *
+     * @return null when queued without loss, otherwise the element that
+     * was dropped or rejected
+     */
+    E put(E e)
+        throws InterruptedException
+    {
+        E lost = null;
+        while(true)
+        {
+            if(queue.offer(e))
+            {
+                wakeConsumer();
+                return lost;
+            }
+
+            switch(policy)
+            {
+                case FAIL_FAST:
+                    return e;
+                case DROP_OLDEST:
+                    E oldest = queue.poll();
+                    if(lost == null)
+                        lost = oldest;
+                    break;
+                default:
+                    if(closed)
+                        return e;
+                    awaitRoom(e);
+                    if(Thread.interrupted())
+                        throw new InterruptedException();
+            }
+        }
+    }
+
+    private void awaitRoom(E e)
+    {
+        Thread current = Thread.currentThread();
+        producers.add(current);
+        try
+        {
+            // recheck after registering so a poll in between is not missed
+            if(queue.size() >= queue.capacity() && !closed)
+                LockSupport.parkNanos(this, PRODUCER_RECHECK_NANOS);
+        }
+        finally
+        {
+            producers.remove(current);
+        }
+    }
+
+    E poll()
+    {
+        E e = queue.poll();
+        if(e != null)
+        {
+            Thread producer = producers.peek();
+            if(producer != null)
+                LockSupport.unpark(producer);
+        }
+        return e;
+    }
+
+    /**
+     * Waits for an element. Only one thread may wait at a time.
+     *
+     * @return the element or null once closed and empty
+     */
+    E take()
+        throws InterruptedException
+    {
+        while(true)
+        {
+            E e = poll();
+            if(e != null || closed)
+                return e;
+
+            consumer = Thread.currentThread();
+            try
+            {
+                e = poll();
+                if(e != null || closed)
+                    return e;
+                LockSupport.park(this);
+            }
+            finally
+            {
+                consumer = null;
+            }
+
+            if(Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Waits until at least <tt>count</tt> elements are queued or the
+     * time is over.
+     */
+    void awaitSize(int count, long timeoutMillis)
+    {
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        consumer = Thread.currentThread();
+        try
+        {
+            long left;
+            while(!closed && queue.size() < count
+                && (left = deadline - System.nanoTime()) > 0)
+            {
+                LockSupport.parkNanos(this, left);
+            }
+        }
+        finally
+        {
+            consumer = null;
+        }
+    }
+
+    int size()
+    {
+        return queue.size();
+    }
+
+    boolean isEmpty()
+    {
+        return queue.size() == 0;
+    }
+
+    /**
+     * Wakes all waiting threads, producers with {@link OverflowPolicy#BLOCK}
+     * fail from now on.
+     */
+    void close()
+    {
+        closed = true;
+        wakeConsumer();
+        for (Thread producer : producers)
+            LockSupport.unpark(producer);
+    }
+
+    private void wakeConsumer()
+    {
+        Thread t = consumer;
+        if(t != null)
+            LockSupport.unpark(t);
+    }
+}
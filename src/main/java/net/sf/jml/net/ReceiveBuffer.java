@@ -0,0 +1,117 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.net;
+
+import java.nio.ByteBuffer;
+
+import net.sf.jml.util.ByteBufferPool;
+import net.sf.jml.util.JmlConstants;
+
+/**
+ * The read buffer of a session. The socket reads straight into a pooled
+ * buffer and messages are parsed in place. Unparsed bytes stay where they
+ * are until the buffer runs out of room, only then they are moved to the
+ * front or the buffer is doubled.
+ * <p>
+ * When a parsed message keeps a view of the buffer, the buffer is handed
+ * over to that message and reading continues in a fresh one.
+ */
+final class ReceiveBuffer
+{
+    private ByteBuffer buffer;
+
+    /**
+     * Start of the bytes not parsed yet.
+     */
+    private int start = 0;
+
+    ReceiveBuffer()
+    {
+        buffer = ByteBufferPool.acquire(JmlConstants.READ_BUFFER_SIZE);
+    }
+
+    /**
+     * @return the buffer positioned to receive more bytes
+     */
+    ByteBuffer writable()
+    {
+        if(!buffer.hasRemaining())
+        {
+            if(start > 0)
+            {
+                buffer.limit(buffer.position());
+                buffer.position(start);
+                buffer.compact();
+            }
+            else
+            {
+                ByteBuffer bigger =
+                    ByteBufferPool.acquire(buffer.capacity() << 1);
+                buffer.flip();
+                bigger.put(buffer);
+                ByteBufferPool.release(buffer);
+                buffer = bigger;
+            }
+            start = 0;
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the buffer positioned on the bytes not parsed yet
+     */
+    ByteBuffer readable()
+    {
+        buffer.limit(buffer.position());
+        buffer.position(start);
+        return buffer;
+    }
+
+    /**
+     * Called after parsing, the position of the buffer is the start of
+     * the bytes not parsed yet.
+     *
+     * @param retained whether a parsed message holds a view of the buffer
+     */
+    void parsed(boolean retained)
+    {
+        if(retained)
+        {
+            ByteBuffer fresh = ByteBufferPool.acquire(Math.max(
+                JmlConstants.READ_BUFFER_SIZE, buffer.remaining() << 1));
+            fresh.put(buffer);
+            buffer = fresh;
+            start = 0;
+        }
+        else if(!buffer.hasRemaining())
+        {
+            buffer.clear();
+            start = 0;
+        }
+        else
+        {
+            start = buffer.position();
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+    }
+
+    void release()
+    {
+        ByteBufferPool.release(buffer);
+        buffer = null;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.net;
+
+/**
+ * A message which may keep a view of the buffer it was read from instead
+ * of copying its content. The session won't reuse such a buffer.
+ */
+public interface RetainingMessage
+    extends Message
+{
+    /**
+     * @return whether the last {@link #readFromBuffer} kept a view of the
+     * buffer
+     */
+    public abstract boolean isRetainingBuffer();
+}
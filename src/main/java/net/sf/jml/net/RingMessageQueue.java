@@ -0,0 +1,132 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock free bounded queue on a ring of slots. Each slot carries a
+ * sequence number telling whether it is free for the producer or filled
+ * for the consumer at a given position, so producers and consumers only
+ * compete on one compare and set each.
+ */
+public final class RingMessageQueue<E>
+    implements MessageQueue<E>
+{
+    /**
+     * Creates {@link RingMessageQueue}s.
+     */
+    public static final MessageQueueFactory FACTORY = new MessageQueueFactory()
+    {
+        public <T> MessageQueue<T> createQueue(int capacity)
+        {
+            return new RingMessageQueue<T>(capacity);
+        }
+    };
+
+    private final int mask;
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RingMessageQueue(int capacity)
+    {
+        if(capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("bad capacity " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+            size <<= 1;
+
+        mask = size - 1;
+        items = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    public boolean offer(E e)
+    {
+        if(e == null)
+            throw new NullPointerException();
+
+        long pos = tail.get();
+        while(true)
+        {
+            int index = (int)pos & mask;
+            long diff = sequences.get(index) - pos;
+            if(diff == 0)
+            {
+                if(tail.compareAndSet(pos, pos + 1))
+                {
+                    items.lazySet(index, e);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            }
+            else if(diff < 0)
+                return false;
+            else
+                pos = tail.get();
+        }
+    }
+
+    public E poll()
+    {
+        long pos = head.get();
+        while(true)
+        {
+            int index = (int)pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if(diff == 0)
+            {
+                if(head.compareAndSet(pos, pos + 1))
+                {
+                    E e = items.get(index);
+                    items.lazySet(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return e;
+                }
+                pos = head.get();
+            }
+            else if(diff < 0)
+                return null;
+            else
+                pos = head.get();
+        }
+    }
+
+    public int size()
+    {
+        long size = tail.get() - head.get();
+        if(size < 0)
+            return 0;
+        return (int)Math.min(size, mask + 1);
+    }
+
+    public int capacity()
+    {
+        return mask + 1;
+    }
+}
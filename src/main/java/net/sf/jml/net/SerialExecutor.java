@@ -0,0 +1,118 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs the tasks of one session one after another, in submission order,
+ * on a shared executor. This keeps the event ordering of the per session
+ * dispatcher thread without holding a thread while the session is idle.
+ */
+final class SerialExecutor
+    implements Executor
+{
+    private static final Log logger = LogFactory.getLog(SerialExecutor.class);
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private final Executor executor;
+
+    private volatile Runnable lowWaterTask = null;
+
+    private int lowWater = 0;
+
+    private final Runnable drain = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                Runnable task;
+                while((task = tasks.poll()) != null)
+                {
+                    size.decrementAndGet();
+                    try
+                    {
+                        task.run();
+                    }
+                    catch(Throwable t)
+                    {
+                        logger.error("error running session task", t);
+                    }
+
+                    Runnable lowWaterTask = SerialExecutor.this.lowWaterTask;
+                    if(lowWaterTask != null && size.get() <= lowWater)
+                        lowWaterTask.run();
+                }
+            }
+            finally
+            {
+                scheduled.set(false);
+                // a task may have slipped in after the last poll
+                if(!tasks.isEmpty())
+                    schedule();
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    public void execute(Runnable task)
+    {
+        size.incrementAndGet();
+        tasks.add(task);
+        schedule();
+    }
+
+    /**
+     * Sets a task run on the executing thread after each task which leaves
+     * at most <tt>lowWater</tt> tasks waiting.
+     */
+    void setLowWaterTask(int lowWater, Runnable lowWaterTask)
+    {
+        this.lowWater = lowWater;
+        this.lowWaterTask = lowWaterTask;
+    }
+
+    /**
+     * @return the number of tasks waiting to run
+     */
+    int size()
+    {
+        return size.get();
+    }
+
+    private void schedule()
+    {
+        if(scheduled.compareAndSet(false, true))
+            executor.execute(drain);
+    }
+}
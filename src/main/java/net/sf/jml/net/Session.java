@@ -9,19 +9,25 @@
 
 package net.sf.jml.net;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import net.sf.jml.util.ByteBufferUtils;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import net.sf.jml.exception.MessageQueueOverflowException;
+import net.sf.jml.util.HashedWheelTimer;
+import net.sf.jml.util.JmlConstants;
+import net.sf.jml.util.ThreadUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *
@@ -34,8 +40,11 @@ public class Session
     private final Collection<SessionListener> sessionListeners = new CopyOnWriteArrayList<SessionListener>();
 
     private Socket socket = null;
-    private InputStream in = null;
-    private OutputStream out = null;
+    /**
+     * Not a monitor, so a virtual thread blocked in a write doesn't pin
+     * its carrier thread.
+     */
+    private final Lock writeLock = new ReentrantLock();
 
     private boolean isStarted = false;
 
@@ -52,7 +61,34 @@ public class Session
     private MsgSender msgSender = null;
     private MsgDispatcher msgDispatcher = null;
 
-    private Timer timoutTimer = null;
+    private volatile HashedWheelTimer.Timeout timeout = null;
+    private final Object timeoutLock = new Object();
+
+    private boolean nonBlocking = JmlConstants.NIO_TRANSPORT;
+
+    private SocketChannel channel = null;
+    private SelectionKey selectionKey = null;
+    private IoProcessor.SelectorLoop selectorLoop = null;
+    private SerialExecutor eventExecutor = null;
+    private ReceiveBuffer channelReadBuffer = null;
+
+    /**
+     * Whether a message parsed from the current read keeps a view of the
+     * read buffer. Only touched by the reading thread.
+     */
+    private boolean bufferRetained = false;
+    private OverflowQueue<PendingWrite> writeQueue = null;
+    /**
+     * Writes taken from the queue, only touched on the selector thread.
+     */
+    private final List<PendingWrite> inFlight = new ArrayList<PendingWrite>();
+    private boolean writeBlocked = false;
+    private volatile boolean readPaused = false;
+
+    private MessageQueueFactory queueFactory = RingMessageQueue.FACTORY;
+    private int queueCapacity = JmlConstants.SESSION_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = JmlConstants.SESSION_OVERFLOW_POLICY;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
 
     /** Creates a new instance of SocketSession */
     public Session()
@@ -106,18 +142,111 @@ public class Session
         return isAvailable;
     }
 
+    /**
+     * Whether this session uses the shared selector threads instead of
+     * own reader, dispatcher and sender threads.
+     * Defaults to {@link JmlConstants#NIO_TRANSPORT}.
+     */
+    public boolean isNonBlocking()
+    {
+        return nonBlocking;
+    }
+
+    public void setNonBlocking(boolean nonBlocking)
+        throws IllegalStateException
+    {
+        if(isStarted)
+            throw new IllegalStateException(
+                "can't change transport after session started");
+        this.nonBlocking = nonBlocking;
+    }
+
+    /**
+     * Sets the factory creating the received and outgoing message queues.
+     */
+    public void setMessageQueueFactory(MessageQueueFactory queueFactory)
+        throws IllegalStateException
+    {
+        if(isStarted)
+            throw new IllegalStateException(
+                "can't change queues after session started");
+        this.queueFactory = queueFactory;
+    }
+
+    /**
+     * Sets the capacity of the received and outgoing message queues.
+     * Defaults to {@link JmlConstants#SESSION_QUEUE_CAPACITY}.
+     */
+    public void setQueueCapacity(int queueCapacity)
+        throws IllegalStateException
+    {
+        if(isStarted)
+            throw new IllegalStateException(
+                "can't change queues after session started");
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets what happens to outgoing messages when the outgoing queue is
+     * full. Lost messages are reported through
+     * {@link SessionListener#exceptionCaught} with a
+     * {@link MessageQueueOverflowException}. Received messages always wait
+     * for room, which stops reading from the socket.
+     * Defaults to {@link JmlConstants#SESSION_OVERFLOW_POLICY}.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+        throws IllegalStateException
+    {
+        if(isStarted)
+            throw new IllegalStateException(
+                "can't change queues after session started");
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return the number of received messages waiting to be dispatched
+     */
+    public int getIncomingQueueSize()
+    {
+        if(msgDispatcher != null)
+            return msgDispatcher.queue.size();
+        if(eventExecutor != null)
+            return eventExecutor.size();
+        return 0;
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    public int getOutgoingQueueSize()
+    {
+        if(msgSender != null)
+            return msgSender.queue.size();
+        if(writeQueue != null)
+            return writeQueue.size() + inFlight.size();
+        return 0;
+    }
+
     public void start(boolean flag)
         throws IllegalStateException
     {
+        isStarted = true;
+
+        if(nonBlocking)
+        {
+            startNonBlocking();
+            return;
+        }
+
         msgDispatcher = new MsgDispatcher();
-        Thread msgDispatcherThread = new Thread(msgDispatcher, "net.sf.jml.net.SocketSession.msgDispatcher");
+        Thread msgDispatcherThread = ThreadUtils.newThread(msgDispatcher, "net.sf.jml.net.SocketSession.msgDispatcher");
         msgDispatcherThread.start();
 
         msgSender = new MsgSender();
-        Thread msgSenderThread = new Thread(msgSender, "net.sf.jml.net.SocketSession.msgSender");
+        Thread msgSenderThread = ThreadUtils.newThread(msgSender, "net.sf.jml.net.SocketSession.msgSender");
         msgSenderThread.start();
 
-        new Thread
+        ThreadUtils.newThread
         (
             new Runnable()
         {
@@ -125,15 +254,13 @@ public class Session
             {
                 try
                 {
-                    socket = new Socket();
+                    channel = SocketChannel.open();
+                    socket = channel.socket();
 
                     socket.connect(socketAddress);
                     socket.setKeepAlive(true);
                     isAvailable = true;
 
-                    in = socket.getInputStream();
-                    out = socket.getOutputStream();
-
                     fireSessionEstablished();
 
                 } catch (Exception ex)
@@ -145,46 +272,19 @@ public class Session
                     return;
                 }
 
-                ByteBuffer readBuffer = ByteBufferUtils.allocate(0x20000, false);
-
-                byte[] buff;
-                byte[] readBytes;
+                ReceiveBuffer readBuffer = new ReceiveBuffer();
                 try
                 {
                     int readBytesLen;
                     do
                     {
-                        synchronized (readBuffer)
-                        {
-                            if(readBuffer == null)
-                            {
-                                readBuffer = ByteBufferUtils.allocate(
-                                    0x20000, false);
-                            }
-                            else if(!readBuffer.hasRemaining())
-                            {
-                                readBuffer = ByteBufferUtils.increaseCapacity(
-                                    readBuffer, 0x20000);
-                            }
-
-                            buff = new byte[4096];
-
-                            readBytesLen = in.read(buff);
+                        readBytesLen = channel.read(readBuffer.writable());
 
-                            if(readBytesLen < 0)
-                                return;
-
-                            readBytes = new byte[readBytesLen];
-                            System.arraycopy(buff, 0, readBytes, 0, readBytesLen);
-
-                            readBuffer.put(readBytes);
-
-                            readBuffer.flip();
+                        if(readBytesLen < 0)
+                            return;
 
-                            recognizeMessageAndDispatch(readBuffer);
-                            readBuffer.compact();
-                        }
-                    }while(readBytesLen > 0);
+                        processReceived(readBuffer);
+                    }while(readBytesLen >= 0);
                     }
                     catch(SocketException ex)
                     {
@@ -200,17 +300,32 @@ public class Session
                     }
                     catch (IOException ex)
                     {
-                        logger.error("Smth happen to connection - IO ex", ex);
+                        // the channel is closed asynchronously on close()
                         if(!isClosing)
                         {
+                            logger.error("Smth happen to connection - IO ex", ex);
                             fireSessionClosed();
                         }
                     }
+                    finally
+                    {
+                        readBuffer.release();
+                    }
                 }
         },
         "net.sf.jml.net.SocketSession.reader").start();
     }
 
+    /**
+     * Parses and dispatches the messages received so far.
+     */
+    private void processReceived(ReceiveBuffer readBuffer)
+    {
+        bufferRetained = false;
+        recognizeMessageAndDispatch(readBuffer.readable());
+        readBuffer.parsed(bufferRetained);
+    }
+
     protected void recognizeMessageAndDispatch(ByteBuffer bytebuffer)
     {
         do
@@ -220,10 +335,27 @@ public class Session
             Message message = recognizeMessage(bytebuffer);
             if(message == null)
                 break;
-            msgDispatcher.dispacthMsg(message);
+            dispatchMessage(message);
         } while(true);
     }
 
+    private void dispatchMessage(final Message message)
+    {
+        if(eventExecutor != null)
+        {
+            eventExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    fireMessageReceived(message);
+                }
+            });
+            checkIncomingBacklog();
+        }
+        else
+            msgDispatcher.dispacthMsg(message);
+    }
+
     protected Message recognizeMessage(ByteBuffer bytebuffer)
     {
         Message message;
@@ -235,61 +367,63 @@ public class Session
         flag = message.readFromBuffer(bytebuffer);
 
         if(flag)
+        {
+            if(message instanceof RetainingMessage
+                && ((RetainingMessage)message).isRetainingBuffer())
+                bufferRetained = true;
             return message;
+        }
 
         return null;
     }
 
-    private class MsgDispatcher extends Thread
+    private class MsgDispatcher implements Runnable
     {
-        final Vector<Message> queue = new Vector<Message>();
+        final OverflowQueue<Message> queue = new OverflowQueue<Message>(
+            queueFactory.<Message>createQueue(queueCapacity),
+            OverflowPolicy.BLOCK);
 
-        boolean isRunning = true;
-
-        byte[] notDispatchedBuffer = null;
+        volatile boolean isRunning = true;
 
         public void stopDispatcher() {
             isRunning = false;
-            this.interrupt();
             // Flush the queue
-            while (!queue.isEmpty()) {
-                Message msg = queue.remove(0);
+            Message msg;
+            while ((msg = queue.poll()) != null) {
                 fireMessageReceived(msg);
             }
 
-            synchronized(queue)
-            {
-                queue.notifyAll();
-            }
+            queue.close();
         }
 
         public void run()
         {
             while(isRunning)
             {
-                synchronized (queue) {
-                    if(queue.isEmpty())
-                        try {
-                            queue.wait();
-                        }
-                        catch (InterruptedException ex) {
-                            return;
-                        }
+                Message msg;
+                try {
+                    msg = queue.take();
+                }
+                catch (InterruptedException ex) {
+                    return;
                 }
-                if(queue.isEmpty())
-                    continue;
+                if(msg == null)
+                    return;
 
-                Message msg = queue.remove(0);
                 fireMessageReceived(msg);
             }
         }
 
         void dispacthMsg(Message msg)
         {
-            synchronized (queue)
+            try
             {
-                queue.add(msg);
-                queue.notifyAll();
+                // waits for room, the reader stops reading meanwhile
+                queue.put(msg);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -371,6 +505,12 @@ public class Session
 
         isClosing = true;
 
+        if(nonBlocking)
+        {
+            closeNonBlocking();
+            return;
+        }
+
         msgDispatcher.stopDispatcher();
         msgSender.stopSender();
 
@@ -388,12 +528,11 @@ public class Session
             logger.error("error flushing remaining output on socket", e);
         }
 
-        if(timoutTimer != null)
+        if(timeout != null)
         {
-            // cancel all left tasks, or we will get "Socket closed" exception
+            // cancel the timeout, or we will get "Socket closed" exception
             // as we will close the socket
-            timoutTimer.cancel();
-            timoutTimer = null;
+            timeout.cancel();
         }
 
         try
@@ -412,6 +551,12 @@ public class Session
     public void write(Message message)
         throws IllegalArgumentException, IllegalStateException
     {
+        if(nonBlocking)
+        {
+            enqueueWrite(message);
+            return;
+        }
+
         msgSender.sendMsg(message);
     }
 
@@ -419,29 +564,60 @@ public class Session
         throws IllegalArgumentException, IllegalStateException
     {
         try {
-            sendMessage(message);
+            blockWriteOrThrow(message);
         }
         catch (IOException ex) {
             logger.error("error sending msg", ex);
             return false;
         }
 
-        fireMessageSent(message);
-
         return true;
     }
 
-     private class MsgSender extends Thread
+    /**
+     * Like {@link #blockWrite(Message)}, but tells why the message wasn't
+     * written.
+     *
+     * @throws IOException if the message wasn't written
+     */
+    public void blockWriteOrThrow(Message message)
+        throws IOException
     {
-        final Vector<Message> queue = new Vector<Message>();
-        boolean isRunning = true;
+        if(nonBlocking)
+        {
+            PendingWrite pending = enqueueWrite(message);
+            try
+            {
+                if(!pending.await())
+                    throw new IOException("session closed, msg not sent: "
+                        + message);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted sending msg: "
+                    + message);
+            }
+            return;
+        }
+
+        sendMessage(message);
+        fireMessageSent(message);
+    }
+
+     private class MsgSender implements Runnable
+    {
+        final OverflowQueue<Message> queue = new OverflowQueue<Message>(
+            queueFactory.<Message>createQueue(queueCapacity),
+            overflowPolicy);
+        volatile boolean isRunning = true;
 
         public void stopSender() {
             isRunning = false;
-            this.interrupt();
+            queue.close();
             // Flush the remains of the queue
-            while (!queue.isEmpty()) {
-                Message message = queue.remove(0);
+            Message message;
+            while ((message = queue.poll()) != null) {
                 try {
                     Session.this.sendMessage(message);
                     fireMessageSent(message);
@@ -450,81 +626,148 @@ public class Session
                     logger.error("error sending msg: "+message, ex);
                 }
             }
-
-            synchronized(queue)
-            {
-                queue.notifyAll();
-            }
         }
 
         public void run()
         {
+            List<Message> batch = new ArrayList<Message>();
             while(isRunning)
             {
-                synchronized (queue) {
-                    if (queue.isEmpty())
-                        try {
-                            queue.wait();
-                        }
-                        catch (InterruptedException ex) {
-                            return;
-                        }
+                Message message;
+                try {
+                    message = queue.take();
+                }
+                catch (InterruptedException ex) {
+                    return;
+                }
 
-                    // Secondary check just in case we have a slip-by
-                    if (queue.isEmpty()) return;
+                // closed
+                if (message == null) return;
 
-                    Message message = queue.remove(0);
-                    try
-                    {
-                        Session.this.sendMessage(message);
-                        fireMessageSent(message);
-                    }
-                    catch (IOException ex)
-                    {
-                        logger.error("error sending msg: "+message, ex);
-                        ex.printStackTrace();
-                    }
+                batch.add(message);
+
+                // gives following messages up to
+                // JmlConstants.WRITE_COALESCE_DELAY to join the batch
+                if (JmlConstants.WRITE_COALESCE_DELAY > 0)
+                    queue.awaitSize(JmlConstants.MAX_WRITE_BATCH - 1,
+                        JmlConstants.WRITE_COALESCE_DELAY);
+
+                while (batch.size() < JmlConstants.MAX_WRITE_BATCH
+                    && (message = queue.poll()) != null)
+                    batch.add(message);
+
+                try
+                {
+                    Session.this.sendMessages(batch);
+                    for (Message sent : batch)
+                        fireMessageSent(sent);
                 }
+                catch (IOException ex)
+                {
+                    logger.error("error sending msgs: " + batch, ex);
+                }
+                batch.clear();
             }
         }
 
         void sendMsg(Message message)
         {
-            synchronized (queue)
+            try
             {
-                queue.add(message);
-                queue.notifyAll();
+                Message lost = queue.put(message);
+                if (lost != null)
+                    firExceptionCaught(new MessageQueueOverflowException(
+                        lost, overflowPolicy));
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                firExceptionCaught(new MessageQueueOverflowException(
+                    message, overflowPolicy));
             }
         }
     }
 
-    private synchronized void sendMessage(Message message)
+    private void sendMessage(Message message)
         throws IOException
     {
-        ByteArrayOutputStream o = new ByteArrayOutputStream();
-
         ByteBuffer[] toSendBuffs = message.toByteBuffer();
-        for (ByteBuffer buf : toSendBuffs) {
-            byte[] bsToWrite = new byte[buf.limit()];
-            buf.get(bsToWrite, 0, bsToWrite.length);
+        writeLock.lock();
+        try
+        {
+            writeFully(toSendBuffs);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
 
-            o.write(bsToWrite);
+    /**
+     * Writes the messages with a single gathering write.
+     */
+    private void sendMessages(List<Message> messages)
+        throws IOException
+    {
+        if (messages.size() == 1)
+        {
+            sendMessage(messages.get(0));
+            return;
         }
 
-        o.writeTo(out);
-        out.flush();
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (Message message : messages)
+            Collections.addAll(buffers, message.toByteBuffer());
+
+        ByteBuffer[] toSendBuffs = buffers.toArray(new ByteBuffer[buffers.size()]);
+        writeLock.lock();
+        try
+        {
+            writeFully(toSendBuffs);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers)
+        throws IOException
+    {
+        int offset = 0;
+        while (offset < buffers.length)
+        {
+            if (!buffers[offset].hasRemaining())
+            {
+                offset++;
+                continue;
+            }
+            channel.write(buffers, offset, buffers.length - offset);
+        }
     }
 
     public void setSessionTimeout(int i)
     {
         logger.debug("setSessionTimeout:" + i);
 
-        if(socket != null)
+        // a session has one deadline, which is moved on every call
+        if(socket != null && !isClosing)
         {
-            if(timoutTimer == null)
-                timoutTimer = new Timer();
-
-            timoutTimer.schedule(new TimeoutFire(), i);
+            HashedWheelTimer.Timeout t = timeout;
+            if(t == null)
+            {
+                synchronized(timeoutLock)
+                {
+                    if(timeout == null)
+                    {
+                        timeout = HashedWheelTimer.getInstance().newTimeout(
+                            new TimeoutFire(), i);
+                        return;
+                    }
+                    t = timeout;
+                }
+            }
+            t.reschedule(i);
         }
 //            try
 //            {
@@ -535,12 +778,450 @@ public class Session
 //            }
     }
 
+    private void startNonBlocking()
+    {
+        try
+        {
+            IoProcessor processor = IoProcessor.getInstance();
+            eventExecutor = processor.newSerialExecutor();
+            eventExecutor.setLowWaterTask(queueCapacity / 2, new Runnable()
+            {
+                public void run()
+                {
+                    if(readPaused)
+                        resumeReading();
+                }
+            });
+            writeQueue = new OverflowQueue<PendingWrite>(
+                queueFactory.<PendingWrite>createQueue(queueCapacity),
+                overflowPolicy);
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            socket = channel.socket();
+            socket.setKeepAlive(true);
+            channel.connect(socketAddress);
+
+            selectorLoop = processor.register(this, channel);
+        } catch (Exception ex)
+        {
+            logger.error("error establishing connection " , ex );
+
+            firExceptionCaught(ex);
+        }
+    }
+
+    /**
+     * Called on the selector thread once the channel is registered.
+     */
+    void channelRegistered(SelectionKey key)
+        throws IOException
+    {
+        selectionKey = key;
+
+        if(isClosing)
+            closeChannel();
+        else if(channel.isConnected())
+            channelConnected();
+    }
+
+    /**
+     * Called on the selector thread when the channel is connectable.
+     */
+    void processConnect()
+        throws IOException
+    {
+        if(channel.finishConnect())
+            channelConnected();
+    }
+
+    private void channelConnected()
+        throws IOException
+    {
+        isAvailable = true;
+        channelReadBuffer = new ReceiveBuffer();
+        updateInterest();
+
+        eventExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                fireSessionEstablished();
+            }
+        });
+
+        // messages written while connecting
+        processWrite();
+    }
+
+    /**
+     * Called on the selector thread when the channel is readable.
+     */
+    void processRead()
+        throws IOException
+    {
+        if(channel.read(channelReadBuffer.writable()) < 0)
+        {
+            channelFailed(null);
+            return;
+        }
+
+        processReceived(channelReadBuffer);
+    }
+
+    /**
+     * Called on the selector thread when the channel is writable or
+     * new messages were queued. Writes as much as the socket accepts and
+     * waits for the channel to become writable again for the rest.
+     */
+    void processWrite()
+        throws IOException
+    {
+        if(!isAvailable || !selectionKey.isValid())
+            return;
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        while(true)
+        {
+            // gather everything queued so far into one write
+            PendingWrite pending;
+            while(inFlight.size() < JmlConstants.MAX_WRITE_BATCH
+                && (pending = writeQueue.poll()) != null)
+                inFlight.add(pending);
+
+            if(inFlight.isEmpty())
+                break;
+
+            long toWrite = 0;
+            for (PendingWrite p : inFlight)
+            {
+                for (ByteBuffer buf : p.buffers)
+                {
+                    if(buf.hasRemaining())
+                    {
+                        buffers.add(buf);
+                        toWrite += buf.remaining();
+                    }
+                }
+            }
+            long written = channel.write(
+                buffers.toArray(new ByteBuffer[buffers.size()]));
+            buffers.clear();
+
+            int done = 0;
+            while(done < inFlight.size() && !inFlight.get(done).hasRemaining())
+            {
+                pending = inFlight.get(done++);
+                pending.completed(true);
+
+                final Message message = pending.message;
+                eventExecutor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        fireMessageSent(message);
+                    }
+                });
+            }
+            inFlight.subList(0, done).clear();
+
+            if(written < toWrite)
+            {
+                // the socket buffer is full, wait until writable
+                writeBlocked = true;
+                updateInterest();
+                return;
+            }
+        }
+
+        writeBlocked = false;
+        updateInterest();
+    }
+
+    /**
+     * Called on the selector thread.
+     */
+    private void updateInterest()
+    {
+        int ops = 0;
+        if(!readPaused)
+            ops |= SelectionKey.OP_READ;
+        if(writeBlocked)
+            ops |= SelectionKey.OP_WRITE;
+        selectionKey.interestOps(ops);
+    }
+
+    /**
+     * Stops reading while too many received messages wait to be
+     * dispatched. Called on the selector thread.
+     */
+    private void checkIncomingBacklog()
+    {
+        if(readPaused || eventExecutor.size() < queueCapacity)
+            return;
+
+        readPaused = true;
+        // the dispatcher may have caught up before it saw the flag
+        if(eventExecutor.size() <= queueCapacity / 2)
+            readPaused = false;
+        else
+            updateInterest();
+    }
+
+    private void resumeReading()
+    {
+        selectorLoop.execute(new Runnable()
+        {
+            public void run()
+            {
+                if(readPaused && selectionKey.isValid())
+                {
+                    readPaused = false;
+                    updateInterest();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on the selector thread when the connection is lost,
+     * <tt>ex</tt> is null when the remote side closed the connection.
+     */
+    void channelFailed(IOException ex)
+    {
+        boolean wasClosing = isClosing;
+        boolean wasAvailable = isAvailable;
+
+        isClosing = true;
+        closeChannel();
+
+        if(wasClosing)
+            return;
+
+        if(ex != null)
+            logger.debug("Smth happen to connection", ex);
+
+        if(!wasAvailable && ex != null)
+        {
+            final IOException cause = ex;
+            eventExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    firExceptionCaught(cause);
+                }
+            });
+        }
+        else
+        {
+            eventExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    fireSessionClosed();
+                }
+            });
+        }
+    }
+
+    private PendingWrite enqueueWrite(Message message)
+    {
+        PendingWrite pending = new PendingWrite(message);
+
+        if(isClosing || selectorLoop == null)
+        {
+            logger.error("session closed, cannot send msg: " + message);
+            pending.completed(false);
+            return pending;
+        }
+
+        PendingWrite lost;
+        try
+        {
+            lost = writeQueue.put(pending);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            lost = pending;
+        }
+
+        if(lost != null)
+        {
+            lost.completed(false);
+            firExceptionCaught(new MessageQueueOverflowException(
+                lost.message, overflowPolicy));
+            if(lost == pending)
+                return pending;
+        }
+
+        if(flushScheduled.compareAndSet(false, true))
+        {
+            selectorLoop.execute(new Runnable()
+            {
+                public void run()
+                {
+                    flushScheduled.set(false);
+                    try
+                    {
+                        processWrite();
+                    }
+                    catch (IOException ex)
+                    {
+                        channelFailed(ex);
+                    }
+                }
+            });
+        }
+
+        return pending;
+    }
+
+    private void closeNonBlocking()
+    {
+        if(timeout != null)
+            timeout.cancel();
+
+        if(selectorLoop == null)
+        {
+            closeChannel();
+        }
+        else
+        {
+            selectorLoop.execute(new Runnable()
+            {
+                public void run()
+                {
+                    // flush what the socket accepts without blocking
+                    try
+                    {
+                        processWrite();
+                    }
+                    catch (IOException ex)
+                    {
+                        logger.error("error flushing remaining output", ex);
+                    }
+
+                    closeChannel();
+                }
+            });
+        }
+
+        if(eventExecutor != null)
+        {
+            eventExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    fireSessionClosed();
+                }
+            });
+        }
+        else
+            fireSessionClosed();
+    }
+
+    private void closeChannel()
+    {
+        isAvailable = false;
+
+        if(selectionKey != null)
+            selectionKey.cancel();
+
+        if(channel != null)
+        {
+            try
+            {
+                channel.close();
+            } catch (IOException ex)
+            {
+                logger.error("error closing channel", ex);
+            }
+        }
+
+        for (PendingWrite pending : inFlight)
+            pending.completed(false);
+        inFlight.clear();
+
+        if(writeQueue != null)
+        {
+            writeQueue.close();
+            PendingWrite pending;
+            while((pending = writeQueue.poll()) != null)
+                pending.completed(false);
+        }
+
+        if(channelReadBuffer != null)
+        {
+            channelReadBuffer.release();
+            channelReadBuffer = null;
+        }
+    }
+
+    /**
+     * A message waiting to be written on the non-blocking channel.
+     */
+    private static class PendingWrite
+    {
+        final Message message;
+        final ByteBuffer[] buffers;
+
+        private boolean done = false;
+        private boolean success = false;
+
+        PendingWrite(Message message)
+        {
+            this.message = message;
+            this.buffers = message.toByteBuffer();
+        }
+
+        boolean hasRemaining()
+        {
+            for (ByteBuffer buf : buffers)
+            {
+                if(buf.hasRemaining())
+                    return true;
+            }
+            return false;
+        }
+
+        synchronized void completed(boolean success)
+        {
+            this.done = true;
+            this.success = success;
+            notifyAll();
+        }
+
+        synchronized boolean await()
+            throws InterruptedException
+        {
+            while(!done)
+                wait();
+            return success;
+        }
+    }
+
     private class TimeoutFire
-        extends TimerTask
+        implements Runnable
     {
         public void run()
         {
-            fireSessionTimeout();
+            if(isClosing)
+                return;
+
+            // keep the order with the other events of the session
+            if(eventExecutor != null)
+            {
+                eventExecutor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        fireSessionTimeout();
+                    }
+                });
+            }
+            else
+                fireSessionTimeout();
         }
     }
 
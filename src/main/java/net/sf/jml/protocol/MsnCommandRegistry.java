@@ -0,0 +1,304 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol;
+
+import net.sf.jml.MsnProtocol;
+import net.sf.jml.message.IncomingMimeMessage;
+import net.sf.jml.protocol.incoming.*;
+import net.sf.jml.util.CommandTable;
+
+/**
+ * The commands known by the NS and SB sessions. Extensions may register
+ * their own commands, or replace the message of a known one.
+ * <p>
+ * Commands of three digits are errors and always create an
+ * {@link IncomingError}, unknown commands an {@link IncomingUnknown}.
+ */
+public final class MsnCommandRegistry {
+
+    private static final CommandTable<MsnIncomingMessageFactory> table = new CommandTable<MsnIncomingMessageFactory>();
+
+    static {
+        register("MSG", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingMimeMessage(protocol);
+            }
+        });
+        register("VER", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingVER(protocol);
+            }
+        });
+        register("CVR", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingCVR(protocol);
+            }
+        });
+        register("XFR", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingXFR(protocol);
+            }
+        });
+        register("USR", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingUSR(protocol);
+            }
+        });
+        register("SYN", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingSYN(protocol);
+            }
+        });
+        register("GTC", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingGTC(protocol);
+            }
+        });
+        register("BLP", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingBLP(protocol);
+            }
+        });
+        register("PRP", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingPRP(protocol);
+            }
+        });
+        register("SBP", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingSBP(protocol);
+            }
+        });
+        register("LSG", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingLSG(protocol);
+            }
+        });
+        register("LST", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingLST(protocol);
+            }
+        });
+        register("OUT", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingOUT(protocol);
+            }
+        });
+        register("CHG", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingCHG(protocol);
+            }
+        });
+        register("ILN", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingILN(protocol);
+            }
+        });
+        register("FLN", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingFLN(protocol);
+            }
+        });
+        register("NLN", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingNLN(protocol);
+            }
+        });
+        register("QNG", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingQNG(protocol);
+            }
+        });
+        register("CHL", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingCHL(protocol);
+            }
+        });
+        register("QRY", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingQRY(protocol);
+            }
+        });
+        register("ADD", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingADD(protocol);
+            }
+        });
+        register("REM", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingREM(protocol);
+            }
+        });
+        register("REA", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingREA(protocol);
+            }
+        });
+        register("ADG", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingADG(protocol);
+            }
+        });
+        register("RMG", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingRMG(protocol);
+            }
+        });
+        register("REG", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingREG(protocol);
+            }
+        });
+        register("CAL", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingCAL(protocol);
+            }
+        });
+        register("JOI", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingJOI(protocol);
+            }
+        });
+        register("BYE", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingBYE(protocol);
+            }
+        });
+        register("RNG", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingRNG(protocol);
+            }
+        });
+        register("ANS", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingANS(protocol);
+            }
+        });
+        register("IRO", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingIRO(protocol);
+            }
+        });
+        register("ACK", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingACK(protocol);
+            }
+        });
+        register("NAK", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingNAK(protocol);
+            }
+        });
+        register("BPR", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingBPR(protocol);
+            }
+        });
+        register("ADC", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingADC(protocol);
+            }
+        });
+        register("SBS", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingSBS(protocol);
+            }
+        });
+        register("URL", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingURL(protocol);
+            }
+        });
+        register("UBX", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingUBX(protocol);
+            }
+        });
+        register("UUX", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingUUX(protocol);
+            }
+        });
+        register("UBN", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingUBN(protocol);
+            }
+        });
+        register("NOT", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingNOT(protocol);
+            }
+        });
+        register("GCF", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingGCF(protocol);
+            }
+        });
+        register("ADL", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingADL(protocol);
+            }
+        });
+        register("RFS", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingRFS(protocol);
+            }
+        });
+        register("RML", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingRML(protocol);
+            }
+        });
+        register("FQY", new MsnIncomingMessageFactory() {
+            public MsnIncomingMessage createMessage(MsnProtocol protocol) {
+                return new IncomingFQY(protocol);
+            }
+        });
+    }
+
+    private MsnCommandRegistry() {
+    }
+
+    /**
+     * Register the message of a command.
+     * 
+     * @param command
+     * 		three upper case letters
+     * @param factory
+     * 		creates the message, null unregisters the command
+     * @return
+     * 		the factory registered before
+     * @throws IllegalArgumentException
+     * 		if the command is not three upper case letters
+     */
+    public static MsnIncomingMessageFactory register(String command,
+            MsnIncomingMessageFactory factory) {
+        return table.put(command, factory);
+    }
+
+    public static MsnIncomingMessageFactory getFactory(String command) {
+        return table.get(command);
+    }
+
+    /**
+     * @param packed
+     * 		a command packed by {@link CommandTable#pack}
+     */
+    static MsnIncomingMessageFactory getFactory(int packed) {
+        return table.get(packed);
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol;
+
+import net.sf.jml.MsnProtocol;
+
+/**
+ * Creates the incoming message of a command.
+ * 
+ * @see MsnCommandRegistry
+ */
+public interface MsnIncomingMessageFactory {
+
+    /**
+     * @param protocol
+     * 		the protocol of the session
+     * @return
+     * 		a new message, ready to be loaded
+     */
+    public MsnIncomingMessage createMessage(MsnProtocol protocol);
+
+}
@@ -18,13 +18,11 @@ package net.sf.jml.protocol;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.sf.jml.util.ByteBufferUtils;
 import net.sf.jml.MsnProtocol;
 import net.sf.jml.util.Charset;
+import net.sf.jml.util.CommandTable;
 import net.sf.jml.util.JmlConstants;
 import net.sf.jml.util.NumberUtils;
 import net.sf.jml.util.StringUtils;
@@ -40,7 +38,24 @@ public abstract class MsnMessage {
     private String command;
     private int trId = -1;
     private final List<String> params = new ArrayList<String>();
+
+    /**
+     * The params of a loaded message are kept as bytes of its command line
+     * and decoded when asked for, until they are changed.
+     */
+    private byte[] line;
+    private int[] paramBounds;
+    private String[] loadedParams;
+    private int loadedParamCount;
     private byte[] chunkData;
+    private ByteBuffer chunkBuffer;
+    private boolean retainingBuffer;
+
+    /**
+     * Outgoing chunk made of several buffers, written by one gathering
+     * write without being copied together.
+     */
+    private ByteBuffer[] chunkParts;
 
     protected final MsnProtocol protocol; //the msn protocol which the message used
 
@@ -80,6 +95,18 @@ public abstract class MsnMessage {
     }
 
     protected final String getParam(int index) {
+        if (line != null) {
+            if (index < 0 || index >= loadedParamCount)
+                return null;
+            String param = loadedParams[index];
+            if (param == null) {
+                int start = paramBounds[index << 1];
+                param = Charset.decode(line, start,
+                        paramBounds[(index << 1) + 1] - start);
+                loadedParams[index] = param;
+            }
+            return param;
+        }
         if (index < params.size()) {
             return params.get(index);
         }
@@ -87,10 +114,28 @@ public abstract class MsnMessage {
     }
 
     protected final int getParamCount() {
+        if (line != null)
+            return loadedParamCount;
         return params.size();
     }
 
+    /**
+     * Turn the loaded params into the list before changing them.
+     */
+    private void decodeParams() {
+        if (line == null)
+            return;
+        params.clear();
+        for (int i = 0; i < loadedParamCount; i++)
+            params.add(getParam(i));
+        line = null;
+        paramBounds = null;
+        loadedParams = null;
+        loadedParamCount = 0;
+    }
+
     protected final void setParam(int index, String s) {
+        decodeParams();
         for (int i = params.size() - index - 1; i < 0; i++) {
             params.add("");
         }
@@ -98,12 +143,17 @@ public abstract class MsnMessage {
     }
 
     protected final void addParam(String s) {
+        decodeParams();
         if (s != null) {
             params.add(s);
         }
     }
 
     protected final void clearParams() {
+        line = null;
+        paramBounds = null;
+        loadedParams = null;
+        loadedParamCount = 0;
         params.clear();
     }
 
@@ -118,72 +168,228 @@ public abstract class MsnMessage {
     }
 
     protected final byte[] getChunkData() {
+        if (chunkData == null && chunkParts != null) {
+            chunkData = new byte[getChunkLength()];
+            ByteBuffer joined = ByteBuffer.wrap(chunkData);
+            for (ByteBuffer part : chunkParts)
+                joined.put(part.duplicate());
+        }
+        if (chunkData == null && chunkBuffer != null) {
+            chunkData = new byte[chunkBuffer.remaining()];
+            chunkBuffer.duplicate().get(chunkData);
+        }
         return chunkData;
     }
 
+    /**
+     * Get the chunk data without copying it. Large incoming chunks are a
+     * view of the buffer they were read from.
+     * 
+     * @return
+     * 		read only chunk data, or null if there is no chunk data
+     */
+    protected final ByteBuffer getChunkBuffer() {
+        if (chunkParts != null)
+            return ByteBuffer.wrap(getChunkData()).asReadOnlyBuffer();
+        if (chunkBuffer != null)
+            return chunkBuffer.asReadOnlyBuffer();
+        if (chunkData != null)
+            return ByteBuffer.wrap(chunkData).asReadOnlyBuffer();
+        return null;
+    }
+
     protected final void setChunkData(byte[] chunkData) {
-        if (isSupportChunkData())
+        if (isSupportChunkData()) {
             this.chunkData = chunkData;
+            this.chunkBuffer = null;
+            this.chunkParts = null;
+        }
     }
 
     protected final void setChunkData(String chunkData) {
         this.chunkData = Charset.encodeAsByteArray(chunkData);
+        this.chunkBuffer = null;
+        this.chunkParts = null;
     }
 
-    private static final Pattern noChunkPattern = Pattern
-            .compile("(\\S{3})(.*)");
+    /**
+     * Set the chunk data as several buffers which are written as they are,
+     * from their position to their limit. The buffers must not change
+     * until the message was sent.
+     * 
+     * @param parts
+     * 		the parts of the chunk data, in order
+     */
+    protected final void setChunkData(ByteBuffer[] parts) {
+        if (isSupportChunkData()) {
+            this.chunkData = null;
+            this.chunkBuffer = null;
+            this.chunkParts = parts;
+        }
+    }
+
+    private int getChunkLength() {
+        if (chunkParts != null) {
+            int length = 0;
+            for (ByteBuffer part : chunkParts)
+                length += part.remaining();
+            return length;
+        }
+        if (chunkBuffer != null)
+            return chunkBuffer.remaining();
+        return chunkData.length;
+    }
 
-    private static final Pattern chunkPattern = Pattern
-            .compile("(\\S{3})(.*) (\\d+)");
+    /**
+     * Whether the last load kept a view of the buffer it was read from.
+     */
+    final boolean isRetainingBuffer() {
+        return retainingBuffer;
+    }
 
     private static final ByteBuffer split = Charset
             .encode(JmlConstants.LINE_SEPARATOR);
 
+    /**
+     * The names of the commands seen so far, so loading doesn't create a
+     * string per message for them.
+     */
+    private static final CommandTable<String> commandNames = new CommandTable<String>();
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f'
+                || b == 0x0B;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Parse a decimal number the way {@link NumberUtils#stringToInt(String)}
+     * does, 0 if it overflows.
+     */
+    private static int parseInt(byte[] b, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (b[i] - '0');
+            if (value > Integer.MAX_VALUE)
+                return 0;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Load the message from its command line, and chunk data if supported:
+     * <pre>
+     *     cmd [trId] [params...] [chunkLen]\r\n[chunk]
+     * </pre>
+     * The line is copied once and split in a single pass, params are only
+     * decoded when asked for.
+     * 
+     * @return
+     * 		false if the buffer doesn't hold the whole message yet or it's
+     * not well formed
+     */
     protected boolean load(ByteBuffer buffer) {
+        retainingBuffer = false;
+        chunkParts = null;
         int index = ByteBufferUtils.indexOf(buffer, split);
         if (index < 0)
             return false;
 
-        String s = Charset.decode((ByteBuffer) buffer.slice().limit(
-                index - buffer.position()));
-        Matcher matcher;
-        if (isSupportChunkData())
-            matcher = chunkPattern.matcher(s);
-        else
-            matcher = noChunkPattern.matcher(s);
-
-        if (!matcher.matches()) //Not match
+        int lineLen = index - buffer.position();
+        if (lineLen < 3)
+            return false;
+        byte[] b = new byte[lineLen];
+        buffer.duplicate().get(b);
+        if (isWhitespace(b[0]) || isWhitespace(b[1]) || isWhitespace(b[2]))
             return false;
-        if (isSupportChunkData()) { //Check chunk data is completed
-            int chunkLen = NumberUtils.stringToInt(matcher.group(3));
+
+        // split the params, keeping start and end of each
+        int[] bounds = new int[16];
+        int count = 0;
+        int i = 3;
+        while (i < lineLen) {
+            if (isWhitespace(b[i])) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < lineLen && !isWhitespace(b[i]))
+                i++;
+            if ((count << 1) == bounds.length) {
+                int[] bigger = new int[bounds.length << 1];
+                System.arraycopy(bounds, 0, bigger, 0, bounds.length);
+                bounds = bigger;
+            }
+            bounds[count << 1] = start;
+            bounds[(count << 1) + 1] = i;
+            count++;
+        }
+
+        if (isSupportChunkData()) { //last param is the chunk length
+            if (count == 0)
+                return false;
+            int start = bounds[(count - 1) << 1];
+            int end = bounds[((count - 1) << 1) + 1];
+            if (end != lineLen || b[start - 1] != ' ')
+                return false;
+            for (int j = start; j < end; j++)
+                if (!isDigit(b[j]))
+                    return false;
+            count--;
+
+            int chunkLen = parseInt(b, start, end);
             if (buffer.limit() < index + split.remaining() + chunkLen)
                 return false;
             buffer.position(index + split.remaining());
 
-            chunkData = new byte[chunkLen];
-            buffer.get(chunkData);
+            if (chunkLen >= JmlConstants.CHUNK_SLICE_THRESHOLD) {
+                chunkData = null;
+                chunkBuffer = buffer.slice();
+                chunkBuffer.limit(chunkLen);
+                buffer.position(buffer.position() + chunkLen);
+                retainingBuffer = true;
+            } else {
+                chunkBuffer = null;
+                chunkData = new byte[chunkLen];
+                buffer.get(chunkData);
+            }
         } else {
             buffer.position(index + split.remaining());
         }
 
-        setCommand(matcher.group(1));
-        String params = matcher.group(2);
-        if (params != null) {
-            clearParams();
-
-            StringTokenizer st = new StringTokenizer(params);
-            if (isSupportTransactionId() && st.hasMoreTokens()) {
-                String token = st.nextToken();
-                if (NumberUtils.isDigits(token)) {
-                    setTransactionId(NumberUtils.stringToInt(token));
-                } else {
-                    addParam(token);
-                }
-            }
-            while (st.hasMoreTokens()) {
-                addParam(st.nextToken());
+        int packed = CommandTable.pack(b, 0);
+        String name = commandNames.get(packed);
+        if (name == null) {
+            name = Charset.decode(b, 0, 3);
+            if (packed >= 0)
+                commandNames.put(name, name);
+        }
+        setCommand(name);
+
+        clearParams();
+        int first = 0;
+        if (isSupportTransactionId() && count > 0) {
+            int start = bounds[0];
+            int end = bounds[1];
+            boolean digits = true;
+            for (int j = start; j < end && digits; j++)
+                digits = isDigit(b[j]);
+            if (digits) {
+                setTransactionId(parseInt(b, start, end));
+                first = 1;
             }
         }
+        if (first > 0) {
+            count--;
+            System.arraycopy(bounds, 2, bounds, 0, count << 1);
+        }
+        line = b;
+        paramBounds = bounds;
+        loadedParams = new String[count];
+        loadedParamCount = count;
         return true;
     }
 
@@ -193,27 +399,36 @@ public abstract class MsnMessage {
         if (trId >= 0) {
             buffer.append(" ").append(trId);
         }
-        for(String param : params) {
-            buffer.append(" ").append(param);
+        for (int i = 0, n = getParamCount(); i < n; i++) {
+            buffer.append(" ").append(getParam(i));
         }
-        if (chunkData != null) { //append chunk data len
-            buffer.append(" ").append(chunkData.length);
+        if (chunkData != null || chunkBuffer != null || chunkParts != null) { //append chunk data len
+            buffer.append(" ").append(getChunkLength());
         }
         buffer.append(JmlConstants.LINE_SEPARATOR);
         return buffer.toString();
     }
 
     protected ByteBuffer[] save() {
-        ByteBuffer[] result = new ByteBuffer[chunkData == null ? 1 : 2];
+        if (chunkParts != null) {
+            ByteBuffer[] result = new ByteBuffer[chunkParts.length + 1];
+            result[0] = Charset.encode(bodyToString());
+            for (int i = 0; i < chunkParts.length; i++)
+                result[i + 1] = chunkParts[i].duplicate();
+            return result;
+        }
+        ByteBuffer chunk = getChunkBuffer();
+        ByteBuffer[] result = new ByteBuffer[chunk == null ? 1 : 2];
         result[0] = Charset.encode(bodyToString());
-        if (chunkData != null)
-            result[1] = ByteBuffer.wrap(chunkData);
+        if (chunk != null)
+            result[1] = chunk;
         return result;
     }
 
     @Override
 	public String toString() {
-        if (chunkData == null)
+        ByteBuffer chunk = getChunkBuffer();
+        if (chunk == null)
             return bodyToString();
         StringBuffer buffer = new StringBuffer();
         buffer.append(bodyToString());
@@ -223,7 +438,7 @@ public abstract class MsnMessage {
                 JmlConstants.LINE_SEPARATOR);
         buffer.append("====================").append(
                 JmlConstants.LINE_SEPARATOR);
-        buffer.append(Charset.decode(chunkData)).append(
+        buffer.append(Charset.decode(chunk.duplicate())).append(
                 JmlConstants.LINE_SEPARATOR);
         buffer.append("====================").append(
                 JmlConstants.LINE_SEPARATOR);
@@ -231,17 +446,18 @@ public abstract class MsnMessage {
                 JmlConstants.LINE_SEPARATOR);
         buffer.append("====================").append(
                 JmlConstants.LINE_SEPARATOR);
-        buffer.append(StringUtils.debug(ByteBuffer.wrap(chunkData)));
+        buffer.append(StringUtils.debug(chunk));
         return buffer.toString();
     }
     
     public String asString() {
-    	if (chunkData == null) {
+        ByteBuffer chunk = getChunkBuffer();
+    	if (chunk == null) {
             return bodyToString();
     	}
         StringBuffer buffer = new StringBuffer();
         buffer.append(bodyToString());
-        buffer.append(Charset.decode(chunkData));
+        buffer.append(Charset.decode(chunk));
         return buffer.toString();
     }
 }
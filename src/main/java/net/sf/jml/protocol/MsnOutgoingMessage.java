@@ -28,6 +28,18 @@ public abstract class MsnOutgoingMessage extends MsnMessage {
         super(protocol);
     }
 
+    /**
+     * If expecting a response, the session keeps the message until the
+     * response arrived or {@link net.sf.jml.util.JmlConstants#REQUEST_TIMEOUT}
+     * passed.
+     * 
+     * @return
+     * 		is expecting response
+     */
+    protected boolean isExpectingResponse() {
+        return isSupportTransactionId();
+    }
+
     /**
      * The message have been sent.
      * 
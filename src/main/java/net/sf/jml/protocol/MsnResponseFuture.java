@@ -0,0 +1,209 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.sf.jml.event.MsnResponseListener;
+import net.sf.jml.protocol.incoming.IncomingError;
+import net.sf.jml.util.HashedWheelTimer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The response of an outgoing message with a transaction id. Completed with
+ * the first incoming message carrying the same transaction id, which may be
+ * an error, or failed if no response came in time or the session closed.
+ * 
+ * <p>
+ * Many requests can be sent without waiting on each, their results
+ * collected later or through a {@link MsnResponseListener}.
+ * 
+ * @see MsnSession#sendRequest(MsnOutgoingMessage)
+ * @see net.sf.jml.MsnMessenger#sendAndAwait(MsnOutgoingMessage)
+ */
+public final class MsnResponseFuture implements Future<MsnIncomingMessage> {
+
+    private static final Log log = LogFactory.getLog(MsnResponseFuture.class);
+
+    private final PendingRequests owner;
+    private final MsnOutgoingMessage request;
+
+    private MsnIncomingMessage response;
+    private Throwable cause;
+    private boolean done;
+    private boolean cancelled;
+    private List<MsnResponseListener> listeners;
+
+    /**
+     * Set by the owner once registered.
+     */
+    volatile HashedWheelTimer.Timeout timeout;
+
+    MsnResponseFuture(PendingRequests owner, MsnOutgoingMessage request) {
+        this.owner = owner;
+        this.request = request;
+    }
+
+    public MsnOutgoingMessage getRequest() {
+        return request;
+    }
+
+    /**
+     * Add a listener called once the future is done, or right away if it
+     * already is.
+     * 
+     * @param listener
+     * 		the listener
+     */
+    public void addResponseListener(MsnResponseListener listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null)
+                    listeners = new ArrayList<MsnResponseListener>(1);
+                listeners.add(listener);
+                return;
+            }
+        }
+        fireRequestCompleted(listener);
+    }
+
+    boolean complete(MsnIncomingMessage response) {
+        List<MsnResponseListener> toCall;
+        synchronized (this) {
+            if (done)
+                return false;
+            this.response = response;
+            toCall = finish();
+        }
+        fireRequestCompleted(toCall);
+        return true;
+    }
+
+    boolean fail(Throwable cause) {
+        List<MsnResponseListener> toCall;
+        synchronized (this) {
+            if (done)
+                return false;
+            this.cause = cause;
+            toCall = finish();
+        }
+        fireRequestCompleted(toCall);
+        return true;
+    }
+
+    private List<MsnResponseListener> finish() {
+        done = true;
+        notifyAll();
+        List<MsnResponseListener> toCall = listeners;
+        listeners = null;
+        return toCall;
+    }
+
+    private void fireRequestCompleted(List<MsnResponseListener> toCall) {
+        if (toCall != null)
+            for (MsnResponseListener listener : toCall)
+                fireRequestCompleted(listener);
+    }
+
+    private void fireRequestCompleted(MsnResponseListener listener) {
+        try {
+            listener.requestCompleted(this);
+        } catch (Exception e) { //Protect catch
+            log.error("error in response listener", e);
+        }
+    }
+
+    /**
+     * @return
+     * 		the response, or null if not done, failed or cancelled
+     */
+    public synchronized MsnIncomingMessage getResponse() {
+        return response;
+    }
+
+    /**
+     * @return
+     * 		whether the server answered with an error
+     */
+    public synchronized boolean isError() {
+        return response instanceof IncomingError;
+    }
+
+    /**
+     * Stop waiting for the response. The message itself is not recalled.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<MsnResponseListener> toCall;
+        synchronized (this) {
+            if (done)
+                return false;
+            cancelled = true;
+            toCall = finish();
+        }
+        owner.remove(this);
+        fireRequestCompleted(toCall);
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized MsnIncomingMessage get() throws InterruptedException,
+            ExecutionException {
+        while (!done)
+            wait();
+        return result();
+    }
+
+    public synchronized MsnIncomingMessage get(long time, TimeUnit unit)
+            throws InterruptedException, ExecutionException,
+            TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        while (!done) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return result();
+    }
+
+    private MsnIncomingMessage result() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException();
+        if (cause != null)
+            throw new ExecutionException(cause);
+        return response;
+    }
+
+    @Override
+	public String toString() {
+        return "MsnResponseFuture[" + request.getCommand() + " "
+                + request.getTransactionId() + "]";
+    }
+}
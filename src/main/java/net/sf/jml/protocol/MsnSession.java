@@ -20,16 +20,16 @@ import net.sf.jml.net.Session;
 import net.sf.jml.net.SessionAdapter;
 import net.sf.jml.net.SessionListener;
 import net.sf.jml.MsnMessageChain;
-import net.sf.jml.MsnMessageIterator;
 import net.sf.jml.MsnMessenger;
 import net.sf.jml.MsnSwitchboard;
+import net.sf.jml.exception.MessageQueueOverflowException;
 import net.sf.jml.impl.AbstractMessenger;
 import net.sf.jml.impl.MsnMessageChainImpl;
-import net.sf.jml.protocol.incoming.IncomingQNG;
 import net.sf.jml.util.JmlConstants;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.IOException;
 import java.net.SocketAddress;
 import net.sf.jml.protocol.soap.*;
 
@@ -46,6 +46,7 @@ public final class MsnSession {
 
     private SSO sso = null;
     private ContactList contactList = null;
+    private OIMSender oimSender = null;
 
     private final MsnMessenger messenger;
     private final MsnSwitchboard switchboard;
@@ -55,6 +56,7 @@ public final class MsnSession {
             JmlConstants.MESSAGE_CHAIN_LENGTH);
     private final MsnMessageChainImpl incomingChain = new MsnMessageChainImpl(
             JmlConstants.MESSAGE_CHAIN_LENGTH);
+    private final PendingRequests pendingRequests = new PendingRequests();
 
     public MsnSession(final MsnMessenger messenger, SocketAddress address) {
         this.messenger = messenger;
@@ -90,19 +92,7 @@ public final class MsnSession {
                 MsnIncomingMessage incoming = (MsnIncomingMessage) ((WrapperMessage) message)
                         .getMessage();
                 incomingChain.addMsnMessage(incoming);
-                if (incoming.getTransactionId() > 0
-                        || (incoming instanceof IncomingQNG)) {
-                    int trId = incoming.getTransactionId();
-                    for (MsnMessageIterator iter = outgoingChain.iterator(); iter
-                            .hasPrevious();) {
-                        MsnOutgoingMessage outgoing = (MsnOutgoingMessage) iter
-                                .previous();
-                        if (outgoing.getTransactionId() == trId) {
-                            incoming.setOutgoingMessage(outgoing);
-                            break;
-                        }
-                    }
-                }
+                incoming.setOutgoingMessage(pendingRequests.getRequest(incoming));
                 try {
                     incoming.messageReceived(MsnSession.this);
                 } catch (Exception e) { //Protect catch
@@ -116,6 +106,8 @@ public final class MsnSession {
                     } catch (Exception e) { //Protect catch
                         exceptionCaught(session, e);
                     }
+
+                pendingRequests.responseReceived(incoming);
             }
 
             @Override
@@ -129,6 +121,7 @@ public final class MsnSession {
                 MsnOutgoingMessage outgoing = (MsnOutgoingMessage) ((WrapperMessage) message)
                         .getMessage();
                 outgoingChain.addMsnMessage(outgoing);
+                pendingRequests.messageSent(outgoing);
                 try {
                     outgoing.messageSent(MsnSession.this);
                 } catch (Exception e) { //Protect catch
@@ -136,8 +129,22 @@ public final class MsnSession {
                 }
             }
 
+            @Override
+			public void sessionClosed(Session session) {
+                pendingRequests.clear();
+            }
+
             @Override
 			public void exceptionCaught(Session session, Throwable cause) {
+                if (cause instanceof MessageQueueOverflowException) {
+                    Message lost = ((MessageQueueOverflowException) cause)
+                            .getLostMessage();
+                    if (lost instanceof WrapperMessage
+                            && ((WrapperMessage) lost).getMessage() instanceof MsnOutgoingMessage)
+                        pendingRequests.sendFailed(
+                                (MsnOutgoingMessage) ((WrapperMessage) lost)
+                                        .getMessage(), cause);
+                }
                 ((AbstractMessenger) messenger).fireExceptionCaught(cause);
             }
         });
@@ -176,23 +183,58 @@ public final class MsnSession {
         session.close(false);
     }
 
+    private MsnResponseFuture prepare(MsnOutgoingMessage message,
+            boolean track) {
+        if (!message.isSupportTransactionId())
+            return null;
+        message.setTransactionId(trId.nextTransactionId());
+        if (track || message.isExpectingResponse())
+            return pendingRequests.register(message);
+        return null;
+    }
+
     public void sendAsynchronousMessage(MsnOutgoingMessage message) {
         if (message != null) {
-            if (message.isSupportTransactionId())
-                message.setTransactionId(trId.nextTransactionId());
+            prepare(message, false);
             session.write(new WrapperMessage(message));
         }
     }
 
     public boolean sendSynchronousMessage(MsnOutgoingMessage message) {
         if (message != null) {
-            if (message.isSupportTransactionId())
-                message.setTransactionId(trId.nextTransactionId());
-            return session.blockWrite(new WrapperMessage(message));
+            prepare(message, false);
+            try {
+                session.blockWriteOrThrow(new WrapperMessage(message));
+                return true;
+            } catch (IOException e) {
+                log.error("error sending msg: " + message, e);
+                // no response will come, don't keep its caller waiting
+                pendingRequests.sendFailed(message, e);
+                return false;
+            }
         }
         return false;
     }
 
+    /**
+     * Send a message and get the future of its response.
+     * 
+     * @param message
+     * 		a message with transaction id
+     * @return
+     * 		the future completed with the response
+     * @throws IllegalArgumentException
+     * 		if the message has no transaction id
+     */
+    public MsnResponseFuture sendRequest(MsnOutgoingMessage message) {
+        if (message == null || !message.isSupportTransactionId())
+            throw new IllegalArgumentException(
+                    "message has no transaction id: " + message);
+        MsnResponseFuture future = prepare(message, true);
+        session.write(new WrapperMessage(message));
+        return future;
+    }
+
     public void addSessionListener(SessionListener listener) {
         session.addSessionListener(listener);
     }
@@ -209,6 +251,26 @@ public final class MsnSession {
         return incomingChain;
     }
 
+    /**
+     * Get the number of received messages not dispatched yet.
+     * 
+     * @return
+     * 		incoming queue depth
+     */
+    public int getIncomingQueueSize() {
+        return session.getIncomingQueueSize();
+    }
+
+    /**
+     * Get the number of messages waiting to be written.
+     * 
+     * @return
+     * 		outgoing queue depth
+     */
+    public int getOutgoingQueueSize() {
+        return session.getOutgoingQueueSize();
+    }
+
     public void setSessionTimeout(int timeout) {
         session.setSessionTimeout(timeout);
     }
@@ -222,6 +284,7 @@ public final class MsnSession {
     {
         sso = new SSO(username, pass, policy, nonce);
         contactList = new ContactList(this);
+        oimSender = new OIMSender(this);
         return sso;
     }
 
@@ -229,4 +292,9 @@ public final class MsnSession {
     {
         return contactList;
     }
+
+    public OIMSender getOIMSender()
+    {
+        return oimSender;
+    }
 }
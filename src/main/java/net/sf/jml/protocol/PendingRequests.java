@@ -0,0 +1,141 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.jml.exception.JmlException;
+import net.sf.jml.exception.RequestTimeoutException;
+import net.sf.jml.protocol.incoming.IncomingQNG;
+import net.sf.jml.protocol.outgoing.OutgoingPNG;
+import net.sf.jml.util.HashedWheelTimer;
+import net.sf.jml.util.JmlConstants;
+
+/**
+ * The outgoing messages of a session waiting for their response, keyed by
+ * transaction id.
+ * <p>
+ * An outgoing message may have more than one response, so an entry stays
+ * for a short while after its future was completed, every further response
+ * moving that deadline again.
+ * 
+ * @see JmlConstants#REQUEST_TIMEOUT
+ */
+final class PendingRequests {
+
+    /**
+     * Milliseconds an answered request still matches later responses.
+     */
+    private static final int RESPONSE_LINGER = 10000;
+
+    private final ConcurrentMap<Integer, MsnResponseFuture> pending = new ConcurrentHashMap<Integer, MsnResponseFuture>();
+
+    /**
+     * QNG has no transaction id, it answers the last PNG.
+     */
+    private volatile OutgoingPNG lastPing;
+
+    /**
+     * Register a message which was given its transaction id but not sent
+     * yet, so even a very fast response finds it.
+     */
+    MsnResponseFuture register(MsnOutgoingMessage request) {
+        final MsnResponseFuture future = new MsnResponseFuture(this, request);
+        MsnResponseFuture old = pending.put(request.getTransactionId(),
+                future);
+        if (old != null) { // transaction id wrapped round
+            old.fail(new RequestTimeoutException(old.getRequest()));
+            if (old.timeout != null)
+                old.timeout.cancel();
+        }
+
+        future.timeout = HashedWheelTimer.getInstance().newTimeout(
+                new Runnable() {
+                    public void run() {
+                        remove(future);
+                        future.fail(new RequestTimeoutException(future
+                                .getRequest()));
+                    }
+                }, JmlConstants.REQUEST_TIMEOUT);
+        return future;
+    }
+
+    void messageSent(MsnOutgoingMessage outgoing) {
+        if (outgoing instanceof OutgoingPNG)
+            lastPing = (OutgoingPNG) outgoing;
+    }
+
+    /**
+     * @return
+     * 		the request answered by the message or null if none is waiting
+     */
+    MsnOutgoingMessage getRequest(MsnIncomingMessage incoming) {
+        if (incoming instanceof IncomingQNG)
+            return lastPing;
+
+        MsnResponseFuture future = pending.get(incoming.getTransactionId());
+        return future == null ? null : future.getRequest();
+    }
+
+    /**
+     * Complete the future of the request answered by the message, once the
+     * message was processed.
+     */
+    void responseReceived(MsnIncomingMessage incoming) {
+        MsnResponseFuture future = pending.get(incoming.getTransactionId());
+        if (future == null)
+            return;
+
+        future.complete(incoming);
+        HashedWheelTimer.Timeout timeout = future.timeout;
+        if (timeout != null)
+            timeout.reschedule(RESPONSE_LINGER);
+    }
+
+    /**
+     * A registered message could not be sent.
+     */
+    void sendFailed(MsnOutgoingMessage request, Throwable cause) {
+        MsnResponseFuture future = pending.get(request.getTransactionId());
+        if (future == null || future.getRequest() != request)
+            return;
+        remove(future);
+        future.fail(cause);
+    }
+
+    void remove(MsnResponseFuture future) {
+        pending.remove(future.getRequest().getTransactionId(), future);
+        HashedWheelTimer.Timeout timeout = future.timeout;
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    /**
+     * Fail everything still waiting, the session is closed.
+     */
+    void clear() {
+        for (Iterator<MsnResponseFuture> iter = pending.values().iterator(); iter
+                .hasNext();) {
+            MsnResponseFuture future = iter.next();
+            iter.remove();
+            if (future.timeout != null)
+                future.timeout.cancel();
+            future.fail(new JmlException("session closed"));
+        }
+    }
+}
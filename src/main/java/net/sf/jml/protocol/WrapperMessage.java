@@ -17,14 +17,14 @@ package net.sf.jml.protocol;
 
 import java.nio.ByteBuffer;
 
-import net.sf.jml.net.Message;
+import net.sf.jml.net.RetainingMessage;
 
 /**
  * Used for decoupling jml and cindy.
  * 
  * @author Roger Chen
  */
-public final class WrapperMessage implements Message {
+public final class WrapperMessage implements RetainingMessage {
 
     private final MsnMessage message;
 
@@ -40,6 +40,10 @@ public final class WrapperMessage implements Message {
         return message.load(buffer);
     }
 
+    public boolean isRetainingBuffer() {
+        return message.isRetainingBuffer();
+    }
+
     public ByteBuffer[] toByteBuffer() {
         return message.save();
     }
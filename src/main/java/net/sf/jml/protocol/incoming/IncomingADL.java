@@ -10,11 +10,10 @@ import java.nio.ByteBuffer;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import net.sf.jml.Email;
+import net.sf.jml.MsnContact;
 import net.sf.jml.MsnList;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import net.sf.jml.MsnMessageChain;
-import net.sf.jml.MsnMessageIterator;
 import net.sf.jml.MsnProtocol;
 import net.sf.jml.impl.AbstractMessenger;
 import net.sf.jml.impl.MsnContactImpl;
@@ -71,36 +70,22 @@ public class IncomingADL
     {
         super.messageReceived(session);
         
-        if (protocol.after(MsnProtocol.MSNP13) && session.getContactList().isADLSent())
-            session.getContactList().processInit();
-
-        MsnMessageChain chain = session.getOutgoingMessageChain();
-        int trId = getTransactionId();
-
-        for (MsnMessageIterator iterator = chain.iterator(); iterator.hasPrevious();)
+        MsnOutgoingMessage message = getOutgoingMessage();
+        if (message instanceof OutgoingADL)
         {
-            MsnOutgoingMessage message = (MsnOutgoingMessage) iterator.previous();
-            if (message.getTransactionId() == trId)
+            MsnContactImpl contact = ((OutgoingADL) message).getContact();
+            if(contact != null)
             {
-                MsnContactImpl contact = ((OutgoingADL) message).getContact();
-                if(contact != null)
-                {
-                    MsnList list = null;
-
-                    if(contact.isInList(MsnList.FL))
-                        list = MsnList.FL;
-                    else if(contact.isInList(MsnList.AL))
-                        list = MsnList.AL;
-
-                    ((AbstractMessenger) session.getMessenger())
-                        .fireContactAddCompleted(contact, list);
-
-                    OutgoingFQY m = new OutgoingFQY(protocol);
-                    m.setContact(contact);
-                    session.getMessenger().send(m);
+                contactAdded(session, contact);
+                return;
+            }
 
-                    return;
-                }
+            if(((OutgoingADL) message).isReportingAdds())
+            {
+                MsnContact[] added = ((OutgoingADL) message).getContacts();
+                for (int i = 0; i < added.length; i++)
+                    contactAdded(session, (MsnContactImpl) added[i]);
+                return;
             }
         }
 
@@ -158,7 +143,7 @@ public class IncomingADL
             // when we are added from other user we receive ADL for
             // the event and must add him to the Reverse List
             // its server initiated transaction so its 0
-            if(trId == 0 && listNumber == MsnList.RL.getListId())
+            if(getTransactionId() == 0 && listNumber == MsnList.RL.getListId())
             {
                 contact.setInList(MsnList.RL, true);
 
@@ -189,4 +174,21 @@ public class IncomingADL
         }
         
     }
+
+    private void contactAdded(MsnSession session, MsnContactImpl contact)
+    {
+        MsnList list = null;
+
+        if(contact.isInList(MsnList.FL))
+            list = MsnList.FL;
+        else if(contact.isInList(MsnList.AL))
+            list = MsnList.AL;
+
+        ((AbstractMessenger) session.getMessenger())
+            .fireContactAddCompleted(contact, list);
+
+        OutgoingFQY m = new OutgoingFQY(protocol);
+        m.setContact(contact);
+        session.getMessenger().send(m);
+    }
 }
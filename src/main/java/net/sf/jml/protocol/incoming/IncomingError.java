@@ -15,8 +15,6 @@
  */
 package net.sf.jml.protocol.incoming;
 
-import net.sf.jml.MsnMessageChain;
-import net.sf.jml.MsnMessageIterator;
 import net.sf.jml.MsnProtocol;
 import net.sf.jml.exception.MsnProtocolException;
 import net.sf.jml.protocol.MsnIncomingMessage;
@@ -65,22 +63,19 @@ public class IncomingError extends MsnIncomingMessage {
 	protected void messageReceived(MsnSession session) {
         super.messageReceived(session);
 
-        MsnMessageChain chain = session.getOutgoingMessageChain();
         int errorCode = getErrorCode();
-        int trId = getTransactionId();
 
         if(isSupportChunkData() && getChunkData() != null)
             logger.trace("Error " + errorCode + ": " +
                     new String(getChunkData()));
 
-        for (MsnMessageIterator iterator = chain.iterator(); iterator
-                .hasPrevious();) {
-            MsnOutgoingMessage message = (MsnOutgoingMessage) iterator
-                    .previous();
-            if (message.getTransactionId() == trId) {
-                throw new MsnProtocolException(errorCode, this, message);
-            }
-        }
+        // authentication failed, the cached passport tickets may be stale
+        if (errorCode == 911 && session.getSSO() != null)
+            session.getSSO().invalidate();
+
+        MsnOutgoingMessage message = getOutgoingMessage();
+        if (message != null)
+            throw new MsnProtocolException(errorCode, this, message);
     }
 
 }
\ No newline at end of file
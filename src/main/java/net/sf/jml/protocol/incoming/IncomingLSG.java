@@ -86,6 +86,7 @@ public class IncomingLSG extends MsnIncomingMessage {
                 .getContactCount()
                 && contactList.getCurrentGroupCount() == contactList
                         .getGroupCount()) {
+            contactList.storeToCache(contactList.toCachedContactList());
             ((AbstractMessenger) session.getMessenger())
                     .fireContactListSyncCompleted(); //Sync completed
         }
@@ -150,6 +150,7 @@ public class IncomingLST extends MsnIncomingMessage {
                 .getContactCount()
                 && contactList.getCurrentGroupCount() == contactList
                         .getGroupCount()) {
+            contactList.storeToCache(contactList.toCachedContactList());
             ((AbstractMessenger) session.getMessenger())
                     .fireContactListSyncCompleted(); //Sync completed
         }
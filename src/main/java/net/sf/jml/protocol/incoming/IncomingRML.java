@@ -17,8 +17,6 @@ package net.sf.jml.protocol.incoming;
 
 import net.sf.jml.MsnGroup;
 import net.sf.jml.MsnList;
-import net.sf.jml.MsnMessageChain;
-import net.sf.jml.MsnMessageIterator;
 import net.sf.jml.MsnProtocol;
 import net.sf.jml.impl.AbstractMessenger;
 import net.sf.jml.impl.MsnContactImpl;
@@ -51,46 +49,54 @@ public class IncomingRML
         MsnContactListImpl contactList =
             (MsnContactListImpl) session.getMessenger().getContactList();
 
-        MsnMessageChain chain = session.getOutgoingMessageChain();
-        int trId = getTransactionId();
-
-        for (MsnMessageIterator iterator = chain.iterator(); iterator.hasPrevious();)
+        MsnOutgoingMessage message = getOutgoingMessage();
+        if (message instanceof OutgoingRML)
         {
-            MsnOutgoingMessage message = (MsnOutgoingMessage) iterator.previous();
-            if (message.getTransactionId() == trId)
-            {
-                MsnContactImpl contact = (MsnContactImpl)((OutgoingRML) message).getContact();
+            OutgoingRML rml = (OutgoingRML) message;
 
-                MsnList list = ((OutgoingRML) message).getList();
-
-                contact.setInList(list, false);
-                if (contact.getListNumber() == 0)
-                { //Not in any group, delete from contact list
-                    contactList.removeContactByEmail(contact.getEmail());
-                }
-                if (list == MsnList.FL)
-                { //In FL, remove user from the group.
-                    try
-                    {
-                        MsnGroup[] gs = contact.getBelongGroups();
-                        for (int i = 0; i < gs.length; i++)
-                        {
-                            MsnGroup msnGroup = gs[i];
-                            contact.removeBelongGroup(msnGroup.getGroupId());
-                            
-                            ((AbstractMessenger) session.getMessenger()).
-                                fireContactRemoveFromGroupCompleted(contact, msnGroup);
-                        }
-                    }
-                    catch (Exception e)
-                    {
-                        e.printStackTrace();
-                    }
+            if (rml.getContacts() != null)
+            {
+                for (int i = 0; i < rml.getContacts().length; i++)
+                    contactRemoved(session, contactList,
+                        (MsnContactImpl) rml.getContacts()[i], rml.getList());
+            }
+            else
+            {
+                contactRemoved(session, contactList,
+                    (MsnContactImpl) rml.getContact(), rml.getList());
+            }
+        }
+    }
 
+    private void contactRemoved(MsnSession session,
+        MsnContactListImpl contactList, MsnContactImpl contact, MsnList list)
+    {
+        contact.setInList(list, false);
+        if (contact.getListNumber() == 0)
+        { //Not in any group, delete from contact list
+            contactList.removeContactByEmail(contact.getEmail());
+        }
+        if (list == MsnList.FL)
+        { //In FL, remove user from the group.
+            try
+            {
+                MsnGroup[] gs = contact.getBelongGroups();
+                for (int i = 0; i < gs.length; i++)
+                {
+                    MsnGroup msnGroup = gs[i];
+                    contact.removeBelongGroup(msnGroup.getGroupId());
+                    
                     ((AbstractMessenger) session.getMessenger()).
-                        fireContactRemoveCompleted(contact, MsnList.FL);
+                        fireContactRemoveFromGroupCompleted(contact, msnGroup);
                 }
             }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+
+            ((AbstractMessenger) session.getMessenger()).
+                fireContactRemoveCompleted(contact, MsnList.FL);
         }
     }
 }
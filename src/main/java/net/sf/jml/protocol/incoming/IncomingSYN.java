@@ -92,6 +92,8 @@ public class IncomingSYN extends MsnIncomingMessage {
             if (!protocol.before(MsnProtocol.MSNP10)) {
                 groupCount++; //In MSNP8/MSNP9 will return default group 
             }
+            // the server sends the whole list, forget what was cached
+            contactList.clear();
             contactList.setVersion(version);
             contactList.setGroupCount(groupCount);
             contactList.setContactCount(getContactCount());
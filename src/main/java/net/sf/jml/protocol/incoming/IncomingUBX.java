@@ -21,10 +21,9 @@ import net.sf.jml.impl.AbstractMessenger;
 import net.sf.jml.impl.MsnContactImpl;
 import net.sf.jml.protocol.MsnIncomingMessage;
 import net.sf.jml.protocol.MsnSession;
+import net.sf.jml.util.Charset;
 import net.sf.jml.util.StringUtils;
 
-import java.io.UnsupportedEncodingException;
-
 /**
  * When someone changed his person message, the contact on AL will received
  * this notify. OutgoingUUX's notify message.
@@ -57,12 +56,10 @@ public class IncomingUBX extends MsnIncomingMessage {
 
     public String getPersonalMessage() {
         try {
-            String data = new String(getChunkData(), "UTF-8");
+            String data = Charset.decode(getChunkBuffer());
             int start = data.indexOf("<PSM>")+"<PSM>".length();
             int end = data.indexOf("</PSM>");
             return StringUtils.xmlUnescaping(data.substring(start, end));
-        } catch (UnsupportedEncodingException e) {
-            // nothing
         } catch (StringIndexOutOfBoundsException e) {
             // nothing
         }
@@ -71,12 +68,10 @@ public class IncomingUBX extends MsnIncomingMessage {
 
     public String getCurrentMedia() {
         try {
-            String data = new String(getChunkData(), "UTF-8");
+            String data = Charset.decode(getChunkBuffer());
             int start = data.indexOf("<CurrentMedia>")+"<CurrentMedia>".length();
             int end = data.indexOf("</CurrentMedia>");
             return StringUtils.xmlUnescaping(data.substring(start, end));
-        } catch (UnsupportedEncodingException e) {
-            // nothing
         } catch (StringIndexOutOfBoundsException e) {
             // nothing
         }
@@ -30,6 +30,7 @@ import net.sf.jml.MsnSwitchboard;
 import net.sf.jml.exception.IncorrectPasswordException;
 import net.sf.jml.exception.LoginException;
 import net.sf.jml.impl.AbstractMessenger;
+import net.sf.jml.impl.MsnContactListImpl;
 import net.sf.jml.impl.MsnOwnerImpl;
 import net.sf.jml.protocol.MsnIncomingMessage;
 import net.sf.jml.protocol.MsnSession;
@@ -38,6 +39,7 @@ import net.sf.jml.protocol.outgoing.OutgoingUSRAuthNS;
 import net.sf.jml.protocol.soap.SSO;
 import net.sf.jml.util.JmlConstants;
 import net.sf.jml.util.StringUtils;
+import net.sf.jml.util.ThreadUtils;
 
 /**
  * The user have successed login in NS/SB server, or MSN NS server
@@ -139,6 +141,9 @@ public class IncomingUSR extends MsnIncomingMessage {
                 // MSN13
                 if(protocol.before(MsnProtocol.MSNP13))
                 {
+                    // a cached list is used as is if its version is current
+                    ((MsnContactListImpl) messenger.getContactList())
+                            .restoreFromCache();
                     OutgoingSYN message = new OutgoingSYN(protocol);
                     message.setCachedVersion(messenger.getContactList()
                             .getVersion());
@@ -147,13 +152,13 @@ public class IncomingUSR extends MsnIncomingMessage {
                 else
                 {
                     // call for contact list
-                    session.getContactList().dispatch();
+                    session.getContactList().dispatchAsync();
                 }
             }
         } else { //auth
 //            log.debug("MSNDEBUG: We are doing auth, opening a thread to handle it");
             //SSL is slow, open new thread to do this
-            new Thread() {
+            ThreadUtils.newThread(new Runnable() {
 
                 private String getPassportUrlSlow() throws IOException {
 //                    log.debug("MSNDEBUG: Lets ask the nexus what passport url to use");
@@ -321,7 +326,7 @@ public class IncomingUSR extends MsnIncomingMessage {
                         //messenger.logout();
                     }
                 }
-            }.start();
+            }, "net.sf.jml.protocol.incoming.IncomingUSR.auth").start();
         }
     }
 }
\ No newline at end of file
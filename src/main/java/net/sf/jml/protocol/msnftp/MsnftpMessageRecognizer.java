@@ -16,8 +16,6 @@
 package net.sf.jml.protocol.msnftp;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
 
 import net.sf.jml.net.Message;
 import net.sf.jml.net.MessageRecognizer;
@@ -30,6 +28,7 @@ import net.sf.jml.impl.AbstractMessenger;
 import net.sf.jml.protocol.MsnMessage;
 import net.sf.jml.protocol.WrapperMessage;
 import net.sf.jml.util.Charset;
+import net.sf.jml.util.CommandTable;
 import net.sf.jml.util.JmlConstants;
 
 /**
@@ -42,15 +41,43 @@ final class MsnftpMessageRecognizer implements MessageRecognizer {
     private static final ByteBuffer SPLIT = Charset
             .encode(JmlConstants.LINE_SEPARATOR);
 
-    private static final Map<String, Class<? extends MsnftpMessage>> mappingMap = new HashMap<String, Class<? extends MsnftpMessage>>();
+    private interface MessageFactory {
+        MsnftpMessage createMessage(MsnProtocol protocol);
+    }
+
+    private static final CommandTable<MessageFactory> factories = new CommandTable<MessageFactory>();
 
     static {
-        mappingMap.put("VER", MsnftpVER.class);
-        mappingMap.put("USR", MsnftpUSR.class);
-        mappingMap.put("FIL", MsnftpFIL.class);
-        mappingMap.put("CCL", MsnftpCCL.class);
-        mappingMap.put("BYE", MsnftpBYE.class);
-        mappingMap.put("TFR", MsnftpTFR.class);
+        factories.put("VER", new MessageFactory() {
+            public MsnftpMessage createMessage(MsnProtocol protocol) {
+                return new MsnftpVER(protocol);
+            }
+        });
+        factories.put("USR", new MessageFactory() {
+            public MsnftpMessage createMessage(MsnProtocol protocol) {
+                return new MsnftpUSR(protocol);
+            }
+        });
+        factories.put("FIL", new MessageFactory() {
+            public MsnftpMessage createMessage(MsnProtocol protocol) {
+                return new MsnftpFIL(protocol);
+            }
+        });
+        factories.put("CCL", new MessageFactory() {
+            public MsnftpMessage createMessage(MsnProtocol protocol) {
+                return new MsnftpCCL(protocol);
+            }
+        });
+        factories.put("BYE", new MessageFactory() {
+            public MsnftpMessage createMessage(MsnProtocol protocol) {
+                return new MsnftpBYE(protocol);
+            }
+        });
+        factories.put("TFR", new MessageFactory() {
+            public MsnftpMessage createMessage(MsnProtocol protocol) {
+                return new MsnftpTFR(protocol);
+            }
+        });
     }
 
     private static MsnftpMessageRecognizer instance = new MsnftpMessageRecognizer();
@@ -76,24 +103,21 @@ final class MsnftpMessageRecognizer implements MessageRecognizer {
         if (start == 0 || start == 1) { //is msnftpContent
             message = new MsnftpContent(messenger.getActualMsnProtocol());
         } else {
-            String key = Charset.decode((ByteBuffer) buffer.limit(buffer
-                    .position() + 3));
-            Class<? extends MsnftpMessage> c = mappingMap.get(key);
-            if (c == null) {
+            MessageFactory factory = factories.get(CommandTable.pack(buffer,
+                    buffer.position()));
+            if (factory == null) {
                 session.close(false);
                 return null;
             }
-            message = getMessageInstance(c, messenger);
+            message = getMessageInstance(factory, messenger);
         }
         return new WrapperMessage(message);
     }
 
-    private MsnMessage getMessageInstance(Class<? extends MsnftpMessage> c, MsnMessenger messenger) {
+    private MsnMessage getMessageInstance(MessageFactory factory, MsnMessenger messenger) {
         try {
-            return c.getConstructor(
-                    MsnProtocol.class).newInstance(
-                    messenger.getActualMsnProtocol());
-        } catch (Exception e) {
+            return factory.createMessage(messenger.getActualMsnProtocol());
+        } catch (RuntimeException e) {
             ((AbstractMessenger) messenger).fireExceptionCaught(e);
             return null;
         }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol.outgoing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import net.sf.jml.MsnContact;
+
+/**
+ * Packs contacts into as few ADL or RML payloads as the payload size
+ * allows. Contacts are sorted by domain so each domain gets one
+ * <tt>&lt;d&gt;</tt> element per payload.
+ */
+abstract class ListPayloadPacker
+{
+    /**
+     * Largest ADL or RML payload the server accepts, in bytes.
+     */
+    static final int MAX_PAYLOAD = 7500;
+
+    private static final Comparator<MsnContact> BY_DOMAIN =
+        new Comparator<MsnContact>()
+        {
+            public int compare(MsnContact c1, MsnContact c2)
+            {
+                String e1 = c1.getEmail().getEmailAddress();
+                String e2 = c2.getEmail().getEmailAddress();
+                int r = getDomain(e1).compareTo(getDomain(e2));
+                return r != 0 ? r : e1.compareTo(e2);
+            }
+        };
+
+    /**
+     * One payload and the contacts in it.
+     */
+    static final class Payload
+    {
+        final String data;
+        final MsnContact[] contacts;
+
+        Payload(String data, MsnContact[] contacts)
+        {
+            this.data = data;
+            this.contacts = contacts;
+        }
+    }
+
+    private final String mlStart;
+
+    ListPayloadPacker(String mlStart)
+    {
+        this.mlStart = mlStart;
+    }
+
+    /**
+     * @return the <tt>&lt;c&gt;</tt> element of a contact
+     */
+    abstract String entry(MsnContact contact, String name);
+
+    List<Payload> pack(MsnContact[] contacts, int maxBytes)
+    {
+        MsnContact[] sorted = contacts.clone();
+        Arrays.sort(sorted, BY_DOMAIN);
+
+        final String mlEnd = "</ml>";
+        final String dEnd = "</d>";
+
+        List<Payload> payloads = new ArrayList<Payload>();
+        StringBuilder data = new StringBuilder();
+        List<MsnContact> in = new ArrayList<MsnContact>();
+        int size = 0;
+        String domain = null;
+
+        for (int i = 0; i < sorted.length; i++)
+        {
+            MsnContact contact = sorted[i];
+            String email = contact.getEmail().getEmailAddress();
+            String d = getDomain(email);
+            String c = entry(contact, getName(email));
+
+            boolean sameDomain = d.equals(domain);
+            String dStart = sameDomain ? "" : "<d n=\"" + d + "\">";
+            int needed = utf8Length(dStart) + utf8Length(c)
+                + (sameDomain || domain == null ? 0 : dEnd.length());
+
+            if (!in.isEmpty()
+                && size + needed + dEnd.length() + mlEnd.length() > maxBytes)
+            {
+                data.append(dEnd).append(mlEnd);
+                payloads.add(new Payload(data.toString(),
+                    in.toArray(new MsnContact[in.size()])));
+
+                data.setLength(0);
+                in.clear();
+                size = 0;
+                domain = null;
+                sameDomain = false;
+                dStart = "<d n=\"" + d + "\">";
+                needed = utf8Length(dStart) + utf8Length(c);
+            }
+
+            if (in.isEmpty())
+            {
+                data.append(mlStart);
+                size = utf8Length(mlStart);
+            }
+            else if (!sameDomain)
+            {
+                data.append(dEnd);
+            }
+
+            data.append(dStart).append(c);
+            size += needed;
+            domain = d;
+            in.add(contact);
+        }
+
+        if (!in.isEmpty())
+        {
+            data.append(dEnd).append(mlEnd);
+            payloads.add(new Payload(data.toString(),
+                in.toArray(new MsnContact[in.size()])));
+        }
+
+        return payloads;
+    }
+
+    static String getDomain(String email)
+    {
+        return email.substring(email.indexOf("@") + 1);
+    }
+
+    static String getName(String email)
+    {
+        return email.substring(0, email.indexOf("@"));
+    }
+
+    private static int utf8Length(String s)
+    {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char ch = s.charAt(i);
+            if (ch < 0x80)
+                length++;
+            else if (ch < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(ch))
+            {
+                length += 4;
+                i++;
+            }
+            else
+                length += 3;
+        }
+        return length;
+    }
+}
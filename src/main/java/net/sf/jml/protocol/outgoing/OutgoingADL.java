@@ -15,17 +15,14 @@
  */
 package net.sf.jml.protocol.outgoing;
 
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
+
 import net.sf.jml.MsnProtocol;
 import net.sf.jml.MsnContact;
 import net.sf.jml.MsnList;
 import net.sf.jml.impl.MsnContactImpl;
-import net.sf.jml.impl.MsnContactListImpl;
 import net.sf.jml.protocol.MsnOutgoingMessage;
-import net.sf.jml.protocol.MsnSession;
 
 /**
  * MSN13
@@ -35,7 +32,19 @@ import net.sf.jml.protocol.MsnSession;
 public class OutgoingADL
      extends MsnOutgoingMessage
 {
+    private static final ListPayloadPacker packer =
+        new ListPayloadPacker("<ml l=\"1\">")
+        {
+            String entry(MsnContact contact, String name)
+            {
+                return "<c n=\"" + name + "\" l=\""
+                    + getListNumber((MsnContactImpl)contact) + "\" t=\"1\" />";
+            }
+        };
+
     private MsnContactImpl contact = null;
+    private MsnContact[] contacts = null;
+    private boolean reportingAdds = false;
 
     public OutgoingADL(MsnProtocol protocol)
     {
@@ -43,6 +52,30 @@ public class OutgoingADL
         setCommand("ADL");
     }
 
+    /**
+     * Packs contacts into as few ADL as the payload size limit allows.
+     *
+     * @param reportAdds whether the add of each contact is reported once
+     * the server accepted it
+     */
+    public static List<OutgoingADL> pack(MsnProtocol protocol,
+        MsnContact[] contacts, boolean reportAdds)
+    {
+        List<ListPayloadPacker.Payload> payloads =
+            packer.pack(contacts, ListPayloadPacker.MAX_PAYLOAD);
+
+        List<OutgoingADL> messages = new ArrayList<OutgoingADL>(payloads.size());
+        for (ListPayloadPacker.Payload payload : payloads)
+        {
+            OutgoingADL message = new OutgoingADL(protocol);
+            message.contacts = payload.contacts;
+            message.reportingAdds = reportAdds;
+            message.setChunkData(payload.data);
+            messages.add(message);
+        }
+        return messages;
+    }
+
     @Override
     protected boolean isSupportChunkData()
     {
@@ -53,100 +86,64 @@ public class OutgoingADL
     {
         this.contact = mc;
 
+        String email = mc.getEmail().getEmailAddress();
+
         StringBuilder mess = new StringBuilder();
         mess.append("<ml l=\"1\">");
-
-        String emailAddr = mc.getEmail().getEmailAddress();
-
-        mess.append("<d n=\"" + getDomain(emailAddr) + "\">");
-
-        int listNumber = mc.getListNumber();
-
-        if(mc.isInList(MsnList.PL))
-            listNumber -= MsnList.PL.getListId();
-
-        if(mc.isInList(MsnList.RL))
-            listNumber -= MsnList.RL.getListId();
-
-        mess.append("<c n=\"" + getName(mc.getEmail().getEmailAddress()) +
-            "\" l=\"" + listNumber + "\" t=\"1\" />");
-
+        mess.append("<d n=\"" + ListPayloadPacker.getDomain(email) + "\">");
+        mess.append(packer.entry(mc, ListPayloadPacker.getName(email)));
         mess.append("</d>");
-
         mess.append("</ml>");
 
         setChunkData(mess.toString());
-
     }
 
+    /**
+     * Adds the contacts whatever the size of the payload.
+     *
+     * @see #pack(MsnProtocol, MsnContact[], boolean)
+     */
     public void addContacts(MsnContact[] cs)
     {
-        Hashtable domains = new Hashtable();
-        for (int i = 0; i < cs.length; i++)
-        {
-            MsnContact msnContact = cs[i];
-            String d = getDomain(msnContact.getEmail().getEmailAddress());
-
-            Vector v = (Vector)domains.get(d);
-
-            if(v == null)
-            {
-                v = new Vector();
-                domains.put(d, v);
-            }
-
-            v.add(msnContact);
-        }
-
-        StringBuilder mess = new StringBuilder();
-        mess.append("<ml l=\"1\">");
-
-        Iterator iter = domains.entrySet().iterator();
-        while (iter.hasNext())
-        {
-            Entry e = (Entry)iter.next();
-            String d = (String)e.getKey();
-
-            mess.append("<d n=\"" + d + "\">");
-
-            Vector v = (Vector)e.getValue();
-            Iterator i = v.iterator();
-            while (i.hasNext())
-            {
-                MsnContactImpl mc = (MsnContactImpl)i.next();
-
-                int listNumber = mc.getListNumber();
-
-                if(mc.isInList(MsnList.PL))
-                    listNumber -= MsnList.PL.getListId();
-
-                if(mc.isInList(MsnList.RL))
-                    listNumber -= MsnList.RL.getListId();
+        this.contacts = cs;
+        if (cs.length == 0)
+            setChunkData("<ml l=\"1\"></ml>");
+        else
+            setChunkData(packer.pack(cs, Integer.MAX_VALUE).get(0).data);
+    }
 
-                mess.append("<c n=\"" + getName(mc.getEmail().getEmailAddress()) +
-                    "\" l=\"" + listNumber + "\" t=\"1\" />");
-            }
+    private static int getListNumber(MsnContactImpl mc)
+    {
+        int listNumber = mc.getListNumber();
 
-            mess.append("</d>");
-        }
+        if(mc.isInList(MsnList.PL))
+            listNumber -= MsnList.PL.getListId();
 
-        mess.append("</ml>");
+        if(mc.isInList(MsnList.RL))
+            listNumber -= MsnList.RL.getListId();
 
-        setChunkData(mess.toString());
+        return listNumber;
     }
 
-    private static String getDomain(String email)
+    public MsnContactImpl getContact()
     {
-        return email.substring(email.indexOf("@") + 1);
+        return contact;
     }
 
-    private static String getName(String email)
+    /**
+     * @return the contacts of an ADL with many contacts, else null
+     */
+    public MsnContact[] getContacts()
     {
-        return email.substring(0, email.indexOf("@"));
+        return contacts;
     }
 
-    public MsnContactImpl getContact()
+    /**
+     * @return whether the server accepting the contacts is reported as
+     * their add
+     */
+    public boolean isReportingAdds()
     {
-        return contact;
+        return reportingAdds;
     }
 }
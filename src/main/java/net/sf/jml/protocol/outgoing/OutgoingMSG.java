@@ -15,6 +15,8 @@
  */
 package net.sf.jml.protocol.outgoing;
 
+import java.nio.ByteBuffer;
+
 import net.sf.jml.MsnProtocol;
 import net.sf.jml.protocol.MsnOutgoingMessage;
 
@@ -83,6 +85,11 @@ public class OutgoingMSG extends MsnOutgoingMessage {
         return true;
     }
 
+    @Override
+	protected boolean isExpectingResponse() {
+        return !TYPE_ACKNOWLEDGE_NONE.toString().equals(getParam(0));
+    }
+
     public void setMsgType(MsgType type) {
         if (type != null)
             setParam(0, type.toString());
@@ -92,4 +99,11 @@ public class OutgoingMSG extends MsnOutgoingMessage {
         setChunkData(msg);
     }
 
+    /**
+     * Set the message as several buffers, sent without copying them.
+     */
+    public void setMsg(ByteBuffer[] msg) {
+        setChunkData(msg);
+    }
+
 }
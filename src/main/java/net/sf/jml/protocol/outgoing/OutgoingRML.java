@@ -4,6 +4,9 @@
  */
 package net.sf.jml.protocol.outgoing;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import net.sf.jml.MsnContact;
 import net.sf.jml.MsnList;
 import net.sf.jml.MsnProtocol;
@@ -18,6 +21,7 @@ public class OutgoingRML
     extends MsnOutgoingMessage
 {
     private MsnContact contact;
+    private MsnContact[] contacts;
     private MsnList list;
 
     public OutgoingRML(MsnProtocol protocol)
@@ -63,6 +67,56 @@ public class OutgoingRML
         setChunkData(mess.toString());
     }
 
+    /**
+     * Packs the removal of contacts from the same list into as few RML as
+     * the payload size limit allows.
+     */
+    public static List<OutgoingRML> pack(MsnProtocol protocol,
+        final MsnList list, MsnContact[] contacts)
+    {
+        if (list == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if (list == MsnList.RL ||
+            !(list == MsnList.FL || list == MsnList.AL || list == MsnList.BL))
+        {
+            throw new IllegalArgumentException(list.toString());
+        }
+
+        ListPayloadPacker packer = new ListPayloadPacker("<ml>")
+        {
+            String entry(MsnContact contact, String name)
+            {
+                return "<c n=\"" + name + "\" t=\"1\" l=\""
+                    + list.getListId() + "\" />";
+            }
+        };
+
+        List<ListPayloadPacker.Payload> payloads =
+            packer.pack(contacts, ListPayloadPacker.MAX_PAYLOAD);
+
+        List<OutgoingRML> messages = new ArrayList<OutgoingRML>(payloads.size());
+        for (ListPayloadPacker.Payload payload : payloads)
+        {
+            OutgoingRML message = new OutgoingRML(protocol);
+            message.contacts = payload.contacts;
+            message.list = list;
+            message.setChunkData(payload.data);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * @return the contacts removed by a many contacts RML, else null
+     */
+    public MsnContact[] getContacts()
+    {
+        return contacts;
+    }
+
     public MsnContact getContact()
     {
         return contact;
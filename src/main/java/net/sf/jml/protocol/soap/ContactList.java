@@ -17,26 +17,33 @@ package net.sf.jml.protocol.soap;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.net.URL;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Map.Entry;
-import java.util.Vector;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
+import net.sf.jml.CachedContactList;
 import net.sf.jml.MsnContactPending;
 import net.sf.jml.MsnGroup;
 import net.sf.jml.Email;
@@ -46,33 +53,20 @@ import net.sf.jml.MsnProtocol;
 import net.sf.jml.impl.AbstractMessenger;
 import net.sf.jml.impl.MsnContactImpl;
 import net.sf.jml.impl.MsnContactListImpl;
+import net.sf.jml.event.MsnResponseListener;
 import net.sf.jml.impl.MsnGroupImpl;
+import net.sf.jml.protocol.MsnResponseFuture;
 import net.sf.jml.protocol.MsnSession;
 import net.sf.jml.protocol.outgoing.OutgoingADL;
 import net.sf.jml.protocol.outgoing.OutgoingBLP;
 import net.sf.jml.protocol.outgoing.OutgoingCHG;
 import net.sf.jml.protocol.outgoing.OutgoingRML;
 import net.sf.jml.protocol.outgoing.OutgoingUUX;
+import net.sf.jml.util.StringUtils;
+import net.sf.jml.util.ThreadUtils;
 import net.sf.jml.util.XmlUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.http.*;
-import org.apache.http.impl.DefaultHttpClientConnection;
-import org.apache.http.message.BasicHttpEntityEnclosingRequest;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.BasicHttpProcessor;
-import org.apache.http.protocol.ExecutionContext;
-import org.apache.http.protocol.HttpContext;
-import org.apache.http.protocol.HttpRequestExecutor;
-import org.apache.http.protocol.RequestConnControl;
-import org.apache.http.protocol.RequestContent;
-import org.apache.http.protocol.RequestExpectContinue;
-import org.apache.http.protocol.RequestTargetHost;
-import org.apache.http.protocol.RequestUserAgent;
-import org.apache.http.util.EntityUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
@@ -129,11 +123,27 @@ public class ContactList
 
     private String myDisplayName = null;
 
-    private static final String PREF_HOTNAME_NODE_START = "<PreferredHostName>";
-    private static final String PREF_HOTNAME_NODE_END = "</PreferredHostName>";
-    
-    private static boolean ADLSent=false;
-    private static boolean firstADLReply=true;
+    /**
+     * lastChange stamps of the services, only the changes since them are
+     * asked for when the contact list was restored from the cache.
+     */
+    private String addressBookLastChange = null;
+    private String membershipLastChange = null;
+
+    private boolean deltaSync = false;
+
+    /**
+     * Whether the initial status was set after the contact list was sent.
+     */
+    private final AtomicBoolean initCompleted = new AtomicBoolean(false);
+
+    private static final AtomicInteger executorCount = new AtomicInteger(0);
+
+    /**
+     * Runs the asynchronous operations one at a time, in the order they
+     * were asked for. The thread goes away while there is nothing to do.
+     */
+    private final ThreadPoolExecutor executor;
 
     ContactList(){this(null);}
 
@@ -150,162 +160,74 @@ public class ContactList
             new MemberRole("Reverse", MsnList.RL));
         membersRoles.put("Pending",
             new MemberRole("Pending", MsnList.PL));
-    }
-
-    private synchronized String sendRequest(String body, String address, String soapAddress, String method)
-    {
-        return sendRequest(body, address, soapAddress, method, false);
-    }
-
-    private synchronized String sendRequest(String body, String address, String soapAddress, String method, boolean secondTry)
-    {
-        //ConnectionReuseStrategy connStrategy = new DefaultConnectionReuseStrategy();
-        DefaultHttpClientConnection conn = new DefaultHttpClientConnection();
-        HttpParams params = null;
-        BasicHttpProcessor httpproc = null;
-
-        try
-        {
-            if(logger.isTraceEnabled())
-                logger.trace("Will send body: " + body + " using address " + address);
-
-            URL url = new URL(address);
-
-            if(params == null)
-            {
-                params = new BasicHttpParams();
-                HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-                HttpProtocolParams.setContentCharset(params, "UTF-8");
-                //HttpProtocolParams.setUserAgent(params, "MSN Explorer/9.0 (MSN 8.0; TmstmpExt)");
-
-                HttpProtocolParams.setUseExpectContinue(params, false);
-
-                httpproc = new BasicHttpProcessor();
-                // Required protocol interceptors
-                httpproc.addInterceptor(new RequestContent());
-                httpproc.addInterceptor(new RequestTargetHost());
-                // Recommended protocol interceptors
-                httpproc.addInterceptor(new RequestConnControl());
-                httpproc.addInterceptor(new RequestUserAgent());
-                httpproc.addInterceptor(new RequestExpectContinue());
-            }
-
-            HttpRequestExecutor httpexecutor = new HttpRequestExecutor();
-
-            HttpContext context = new BasicHttpContext(null);
-
-            HttpHost host = new HttpHost(url.getHost(), 443, "https");
-
-            context.setAttribute(ExecutionContext.HTTP_CONNECTION, conn);
-            context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, host);
-
-
-            if (!conn.isOpen())
-            {
-                // msn change their certificate with invalid one,
-                // which prevents us from retreiving contacts and maging them
-                // we install dummy trust man ager in order to fix it
-                SSLContext sc = SSLContext.getInstance("SSLv3");
-                TrustManager[] tma = {new DummyTrustManager()};
-                sc.init(null, tma, null);
-
-                SSLSocketFactory factory = sc.getSocketFactory();
-                Socket socket = factory.createSocket(host.getHostName(), host.getPort());
 
-                conn.bind(socket, params);
-            }
-
-            BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest(
-                method,
-                url.getPath());
-            request.setEntity(new XmlEntity(body));
-
-            context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
-            request.setParams(params);
-
-            if(soapAddress != null)
-                request.addHeader("SOAPAction", soapAddress);
-
-            request.addHeader("Host", url.getHost());
-            request.addHeader("Accept", "text/*");
-
-            httpexecutor.preProcess(request, httpproc, context);
-
-            HttpResponse response = httpexecutor.execute(request, conn, context);
-            httpexecutor.postProcess(response, httpproc, context);
-
-            if(logger.isDebugEnabled())
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
             {
-                for(org.apache.http.Header h : response.getAllHeaders())
+                public Thread newThread(Runnable r)
                 {
-                    logger.debug("Header - " + h.getName() + ":" + h.getValue());
+                    Thread t = ThreadUtils.newThread(r,
+                        "net.sf.jml.protocol.soap.ContactList-"
+                        + executorCount.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
                 }
-            }
-
-            String resultStr = EntityUtils.toString(response.getEntity());
-
-            if(logger.isDebugEnabled())
-                logger.debug(response.getStatusLine() + " / " + resultStr);
-
-            //if (!connStrategy.keepAlive(response, context))
-            try
-            {
-                conn.close();
-            }
-            catch (Exception e)
-            {
-                logger.error("error closing connection", e);
-            }
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
 
-            params = null;
+    /**
+     * @return the response, null if there was no successful one
+     */
+    private String sendRequest(String body, String address, String soapAddress)
+    {
+        SoapTransport.Response response = SoapTransport.getInstance().post(
+            getOwnerScope(), address, soapAddress, body, null);
 
-            if(response.getStatusLine().getStatusCode() != 200)
-            {
-                // avoid loop by setting secondTry
-                if(!secondTry)
-                {
-                    Header locationHeader;
-                    if((locationHeader = response.getFirstHeader("Location"))
-                        != null)
-                    {
-                        return sendRequest(
-                                body,
-                                locationHeader.getValue(),
-                                soapAddress, method, true);
-                    }
-                    else
-                    {
-                        // check for PreferredHostName and test there
-                        // TODO dirty check, fix it with xml parse
-                        int ix = -1;
-                        if((ix = resultStr.indexOf(PREF_HOTNAME_NODE_START)) != -1)
-                        {
-                            int ix2 = resultStr.indexOf(PREF_HOTNAME_NODE_END, ix);
-                            String newHost =
-                                resultStr.substring(ix + PREF_HOTNAME_NODE_START.length(), ix2);
+        if(response == null)
+            return null;
 
-                            String oldHost = new URL(address).getHost();
-                            String newHostUrl = address.replace(oldHost, newHost);
+        if(response.getStatusCode() != 200)
+        {
+            logger.error("something wrong!", new Exception());
+            logger.info("Error xml:" + response.getBody());
+            return null;
+        }
 
-                            return sendRequest(body, newHostUrl, soapAddress, method, true);
-                        }
-                    }
-                }
+        return response.getBody();
+    }
 
+    /**
+     * Sends the request and streams a successful response into the parser.
+     *
+     * @return false if there was no successful response
+     */
+    private boolean sendRequest(String body, String address, String soapAddress,
+        SoapTransport.ResponseParser parser)
+    {
+        SoapTransport.Response response = SoapTransport.getInstance().post(
+            getOwnerScope(), address, soapAddress, body, parser);
 
-                logger.error("something wrong!", new Exception());
-                logger.info("Error xml:" + resultStr);
-                return null;
-            }
+        if(response == null)
+            return false;
 
-            return resultStr;
-        }
-        catch(Exception e)
+        if(response.getStatusCode() != 200)
         {
-            logger.error("Sending request", e);
+            logger.error("something wrong!", new Exception());
+            logger.info("Error xml:" + response.getBody());
+            return false;
         }
 
-        return null;
+        return true;
+    }
+
+    /**
+     * Redirects of the services are remembered per owner.
+     */
+    private String getOwnerScope()
+    {
+        return session.getMessenger().getOwner().getEmail().getEmailAddress();
     }
 
     private void waitFor(long time)
@@ -322,6 +244,11 @@ public class ContactList
     }
 
     private String getRequestBody(boolean isAddressbook)
+    {
+        return getRequestBody(isAddressbook, false);
+    }
+
+    private String getRequestBody(boolean isAddressbook, boolean deltas)
     {
         StringBuilder mess = new StringBuilder();
 
@@ -348,8 +275,16 @@ public class ContactList
             mess.append("<ABFindAll xmlns=\"http://www.msn.com/webservices/AddressBook\">\r\n");
             mess.append(" <abId>00000000-0000-0000-0000-000000000000</abId>\r\n");
             mess.append(" <abView>Full</abView>\r\n");
-            mess.append(" <deltasOnly>false</deltasOnly>\r\n");
-            mess.append(" <lastChange>0001-01-01T00:00:00.0000000-08:00</lastChange>\r\n");
+            if(deltas)
+            {
+                mess.append(" <deltasOnly>true</deltasOnly>\r\n");
+                mess.append(" <lastChange>" + addressBookLastChange + "</lastChange>\r\n");
+            }
+            else
+            {
+                mess.append(" <deltasOnly>false</deltasOnly>\r\n");
+                mess.append(" <lastChange>0001-01-01T00:00:00.0000000-08:00</lastChange>\r\n");
+            }
             mess.append("</ABFindAll>\r\n");
         }
         else
@@ -364,6 +299,12 @@ public class ContactList
             mess.append("   <ServiceType>Profile</ServiceType>\r\n");
             mess.append("  </Types>\r\n");
             mess.append(" </serviceFilter>\r\n");
+            if(deltas)
+            {
+                mess.append(" <View>Full</View>\r\n");
+                mess.append(" <deltasOnly>true</deltasOnly>\r\n");
+                mess.append(" <lastChange>" + membershipLastChange + "</lastChange>\r\n");
+            }
             mess.append("</FindMembership>\r\n");
         }
 
@@ -412,42 +353,175 @@ public class ContactList
 
     public void dispatch()
     {
-        String membersRes = sendRequest(
-            getRequestBody(false),
+        MsnContactListImpl contactList = (MsnContactListImpl) session
+                .getMessenger().getContactList();
+
+        CachedContactList cached = contactList.restoreFromCache();
+        if(cached != null)
+        {
+            if(cached.getAddressBookLastChange() != null
+                && cached.getMembershipLastChange() != null)
+            {
+                restoreMembers(cached);
+                if(synchronize(true))
+                    return;
+
+                logger.info("Delta sync of the contact list failed, doing a full sync");
+                clearMembers();
+            }
+
+            // nothing from the cache must survive a full sync
+            contactList.clear();
+        }
+
+        synchronize(false);
+    }
+
+    /**
+     * Asks the membership and address book services for the whole contact
+     * list, or only for what changed since the cached lastChange stamps.
+     *
+     * @return false if the services refused to send the changes
+     */
+    private boolean synchronize(boolean deltas)
+    {
+        deltaSync = deltas;
+
+        // a failed response must not advance the stamps of the cache
+        String membershipStamp = membershipLastChange;
+        String addressBookStamp = addressBookLastChange;
+
+        boolean received = sendRequest(
+            getRequestBody(false, deltas),
             membership_url,
             membership_soap,
-            "POST");
+            membershipParser);
+
+        if(!received)
+        {
+            membershipLastChange = membershipStamp;
+            if(deltas)
+                return false;
+        }
+        boolean complete = received;
 
-        processMembers(membersRes);
+        membersReceived();
 
         waitFor(400);
 
-        String addBookRes = sendRequest(
-            getRequestBody(true),
+        received = sendRequest(
+            getRequestBody(true, deltas),
             addressbook_url,
             addressbook_action_findall,
-            "POST");
+            addressBookParser);
 
-        if(addBookRes == null)
+        if(!received)
         {
+            addressBookLastChange = addressBookStamp;
+            if(deltas)
+                return false;
+
             // book may not exist so create it
             sendRequest(
                 getRequestBodyAddressBookAdd(),
                 addressbook_url,
-                addressbook_action_add,
-                "POST");
+                addressbook_action_add);
             waitFor(400);
             // and request it again
-            addBookRes = sendRequest(
+            received = sendRequest(
                 getRequestBody(true),
                 addressbook_url,
                 addressbook_action_findall,
-                "POST");
+                addressBookParser);
+            if(!received)
+                addressBookLastChange = addressBookStamp;
         }
+        complete = complete && received;
 
-        processContactList(addBookRes);
+        contactListReceived(complete);
         //processInit();
 
+        return true;
+    }
+
+    private void restoreMembers(CachedContactList cached)
+    {
+        addressBookLastChange = cached.getAddressBookLastChange();
+        membershipLastChange = cached.getMembershipLastChange();
+
+        Iterator i = membersRoles.values().iterator();
+        while (i.hasNext())
+        {
+            MemberRole mr = (MemberRole)i.next();
+            Set<String> members = cached.getMembers().get(mr.name);
+            if(members != null)
+                mr.getMembers().addAll(members);
+        }
+
+        ArrayList<MsnContactPending> pendingList =
+            ((AbstractMessenger)session.getMessenger()).getPendingList();
+        for (CachedContactList.Pending p : cached.getPendings())
+        {
+            Email email = Email.parseStr(p.getEmail());
+            if(email == null || getPending(pendingList, email) != null)
+                continue;
+            pendingList.add(new MsnContactPending(email, p.getDisplayName(),
+                p.getJoinedDate() < 0 ? null : new Date(p.getJoinedDate())));
+        }
+    }
+
+    private void clearMembers()
+    {
+        addressBookLastChange = null;
+        membershipLastChange = null;
+
+        Iterator i = membersRoles.values().iterator();
+        while (i.hasNext())
+            ((MemberRole)i.next()).getMembers().clear();
+
+        // restored from the cache too, the full sync lists them again
+        ((AbstractMessenger)session.getMessenger()).getPendingList().clear();
+    }
+
+    private static MsnContactPending getPending(
+        List<MsnContactPending> pendingList, Email email)
+    {
+        for (MsnContactPending p : pendingList)
+        {
+            if(email.equals(p.getEmail()))
+                return p;
+        }
+        return null;
+    }
+
+    private void storeCache()
+    {
+        if(session.getMessenger().getContactListCache() == null)
+            return;
+
+        MsnContactListImpl contactList = (MsnContactListImpl) session
+                .getMessenger().getContactList();
+
+        CachedContactList cached = contactList.toCachedContactList();
+        cached.setAddressBookLastChange(addressBookLastChange);
+        cached.setMembershipLastChange(membershipLastChange);
+
+        Iterator i = membersRoles.values().iterator();
+        while (i.hasNext())
+        {
+            MemberRole mr = (MemberRole)i.next();
+            cached.getMembers(mr.name).addAll(mr.getMembers());
+        }
+
+        for (MsnContactPending p :
+            ((AbstractMessenger)session.getMessenger()).getPendingList())
+        {
+            cached.getPendings().add(new CachedContactList.Pending(
+                p.getEmail().getEmailAddress(), p.getDisplayName(),
+                p.getJoinedDate() == null ? -1 : p.getJoinedDate().getTime()));
+        }
+
+        contactList.storeToCache(cached);
     }
 
     /**
@@ -550,48 +624,79 @@ public class ContactList
         return null;
     }
 
-    private void processContactList(String xmlStr)
+    /**
+     * Reads the membership response as it arrives.
+     */
+    private final SoapTransport.ResponseParser membershipParser =
+        new SoapTransport.ResponseParser()
     {
-        DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
-        dbfactory.setIgnoringComments(true);
-        DocumentBuilder docBuilder;
-        Document doc;
-        try
+        public void parse(InputStream in)
+            throws XMLStreamException
         {
+            ContactListParser.parseMembership(in,
+                new ContactListParser.MembershipHandler()
+                {
+                    public void memberReceived(String role, String serviceType,
+                        ContactListParser.Member member)
+                    {
+                        ContactList.this.memberReceived(role, serviceType, member);
+                    }
 
-            docBuilder = dbfactory.newDocumentBuilder();
-
-            ByteArrayInputStream in = new ByteArrayInputStream(xmlStr.getBytes("UTF-8"));
-            doc = docBuilder.parse(in);
+                    public void lastChangeReceived(String serviceType,
+                        String lastChange)
+                    {
+                        if("Messenger".equals(serviceType))
+                            membershipLastChange = lastChange.trim();
+                    }
+                });
         }
-        catch (ParserConfigurationException ex)
-        {
-            logger.error("", ex);
-            return;
-        }catch (SAXException ex)
-        {
-            logger.error("", ex);
-            return;
-        }catch (IOException ex)
+    };
+
+    /**
+     * Reads the address book response as it arrives, groups and contacts
+     * are added to the contact list one by one.
+     */
+    private final SoapTransport.ResponseParser addressBookParser =
+        new SoapTransport.ResponseParser()
+    {
+        public void parse(InputStream in)
+            throws XMLStreamException
         {
-            logger.error("", ex);
-            return;
-        }
+            ContactListParser.parseAddressBook(in,
+                new ContactListParser.AddressBookHandler()
+                {
+                    public void groupReceived(ContactListParser.Group group)
+                    {
+                        ContactList.this.groupReceived(group);
+                    }
 
-        Element el =
-            XmlUtils.locateElement(
-                doc.getDocumentElement(),
-                "ABFindAllResponse",
-                "xmlns",
-                "http://www.msn.com/webservices/AddressBook");
-        Element contactListResults = XmlUtils.findChild(el, "ABFindAllResult");
+                    public void contactReceived(ContactListParser.Contact contact)
+                    {
+                        ContactList.this.contactReceived(contact);
+                    }
 
-        Element groupsResults = XmlUtils.findChild(contactListResults, "groups");
+                    public void lastChangeReceived(String lastChange)
+                    {
+                        if(lastChange != null)
+                            addressBookLastChange = lastChange.trim();
+                    }
+                });
+        }
+    };
 
-        Element contactsResults = XmlUtils.findChild(contactListResults, "contacts");
+    /**
+     * @param complete false if a response failed, the contact list is then
+     * not cached
+     */
+    private void contactListReceived(boolean complete)
+    {
+        if(deltaSync)
+            updateLists();
 
-        processGroups(groupsResults);
-        processContacts(contactsResults);
+        if(complete)
+            storeCache();
+        else
+            logger.warn("Contact list incomplete, not cached");
 
         AbstractMessenger messenger = (AbstractMessenger)session.getMessenger();
 
@@ -603,59 +708,72 @@ public class ContactList
         sendContactList();
     }
     
-    //Solved ADL long-contact-list issue - BLuEGoD
-    public void sendContactList(){
+    /**
+     * Subscribes to the presence of the whole contact list. All the ADL
+     * are sent without waiting, the initial status is set once the server
+     * answered the last of them.
+     */
+    public void sendContactList()
+    {
         AbstractMessenger messenger = (AbstractMessenger)session.getMessenger();
         MsnProtocol protocol = messenger.getActualMsnProtocol();
 
-        if (protocol.after(MsnProtocol.MSNP12))
-        {
-            MsnContactListImpl contactList = (MsnContactListImpl) session
-                .getMessenger().getContactList();
-            MsnContact[] cs = contactList.getContacts();
-            int cs_size = cs.length;
-            Queue<MsnContact> csq = new LinkedList<MsnContact>();
-            try
-            {
-                // don't know why 220 instead of ~250, but MSN server don't like it
-                // we should put this lower if the server disconnects after an ADL is made - BLuEGoD
-                // Each ADL command may contain up to 150 contacts - damencho
-                    for(int i=0, j=1; i < cs_size; i++,j++)
-                    {
-                        if(cs[i]!=null)
-                            csq.add(cs[i]);
+        if (!protocol.after(MsnProtocol.MSNP12))
+            return;
 
-                        if(j == 150 || i == cs_size-1)
-                        {
-                            //waitFor(6000);
-                            OutgoingADL o1 = new OutgoingADL(messenger.getActualMsnProtocol());
+        MsnContact[] cs = messenger.getContactList().getContacts();
+        List<OutgoingADL> adls = OutgoingADL.pack(protocol, cs, false);
 
-                            if(firstADLReply)
-                                ADLSent = (cs_size-1)==i?true:false;
+        // continue contact list init process if there are no contacts
+        if(adls.isEmpty())
+        {
+            initCompleted();
+            return;
+        }
 
-                            o1.addContacts(csq.toArray(new MsnContact[j] ));
-                            messenger.send(o1);
-                            j=0;
-                            csq.clear();
-                        }
-                    }
+        final AtomicInteger remaining = new AtomicInteger(adls.size());
+        MsnResponseListener listener = new MsnResponseListener()
+        {
+            public void requestCompleted(MsnResponseFuture future)
+            {
+                if(future.isError() || future.getResponse() == null)
+                    logger.error("Contact list not accepted: "
+                        + future.getResponse());
 
-                    // continue contact list init process if there are no contacts
-                    if(cs.length == 0 && firstADLReply)
-                        session.getContactList().processInit();
+                if(remaining.decrementAndGet() == 0)
+                    initCompleted();
+            }
+        };
 
-                    firstADLReply=false; //prevents calling processInit again! Check: RFS Incoming
-            }catch(Exception e){
-                logger.error("Contact list process error: "+e.toString());
+        int sent = 0;
+        try
+        {
+            for(OutgoingADL adl : adls)
+            {
+                messenger.sendAndAwait(adl).addResponseListener(listener);
+                sent++;
             }
-            
+        }
+        catch(IllegalStateException e)
+        {
+            logger.error("Contact list process error: " + e.toString());
+
+            // the ADL not sent will get no answer to wait for
+            if(remaining.addAndGet(sent - adls.size()) == 0)
+                initCompleted();
         }
     }
-    
-    public boolean isADLSent(){
-        return ADLSent;
+
+    /**
+     * Sets the initial status, once per session: the server sends RFS when
+     * the contact list is to be sent again.
+     */
+    private void initCompleted()
+    {
+        if(initCompleted.compareAndSet(false, true))
+            processInit();
     }
-    
+
     public void processInit(){
         
         /* This should be for ex. at MsnOwner instead of in this method,
@@ -694,270 +812,235 @@ public class ContactList
    
     }
 
-    private void processGroups(Element groups)
+    private void groupReceived(ContactListParser.Group g)
     {
-        // there maybe no groups
-        if(groups == null)
+        if(g.groupId == null)
             return;
 
-        List gs = XmlUtils.findChildren(groups, "Group");
-
         MsnContactListImpl contactList = (MsnContactListImpl) session
                 .getMessenger().getContactList();
 
-        Iterator iter = gs.iterator();
-        while (iter.hasNext())
-        {
-            Element el = (Element)iter.next();
-
-            Element grIdEl = XmlUtils.findChild(el, "groupId");
+        String grId = g.groupId.trim();
 
-            String grId = XmlUtils.getText(grIdEl).trim();
+        MsnGroupImpl old = (MsnGroupImpl)contactList.getGroup(grId);
 
-            Element grInfoEl = XmlUtils.findChild(el, "groupInfo");
-            Element grNameEl = XmlUtils.findChild(grInfoEl, "name");
-            String name = XmlUtils.getText(grNameEl);
+        if(g.deleted)
+        {
+            if(old != null)
+            {
+                old.clear();
+                contactList.removeGroup(grId);
+            }
+            return;
+        }
 
-            MsnGroupImpl group = new MsnGroupImpl(contactList);
-            group.setGroupId(grId);
-            group.setGroupName(name);
-            contactList.addGroup(group);
+        if(old != null)
+        {
+            old.setGroupName(g.name);
+            return;
         }
+
+        MsnGroupImpl group = new MsnGroupImpl(contactList);
+        group.setGroupId(grId);
+        group.setGroupName(g.name);
+        contactList.addGroup(group);
     }
 
-    private void processContacts(Element contacts)
+    private void contactReceived(ContactListParser.Contact c)
     {
-        // there maybe no contacts
-        if(contacts == null)
+        if(c.contactId == null)
             return;
 
-        List cs = XmlUtils.findChildren(contacts, "Contact");
-
         MsnContactListImpl contactList = (MsnContactListImpl) session
                 .getMessenger().getContactList();
 
-        Iterator iter = cs.iterator();
-        while (iter.hasNext())
+        String contactId = c.contactId.trim();
+
+        // a changed contact is built again from scratch
+        MsnContact old = contactList.getContactById(contactId);
+        if(old != null)
         {
-            Element el = (Element)iter.next();
+            for (MsnGroup g : old.getBelongGroups())
+                ((MsnContactImpl)old).removeBelongGroup(g.getGroupId());
+            contactList.removeContactByEmail(old.getEmail());
+        }
 
-            Element cIdEl = XmlUtils.findChild(el, "contactId");
+        if(c.deleted)
+            return;
 
-            MsnContactImpl contact = new MsnContactImpl(contactList);
+        if("me".equalsIgnoreCase(c.contactType))
+        {
+            myDisplayName = c.displayName;
+            return;
+        }
 
-            String contactId = XmlUtils.getText(cIdEl).trim();
-            contact.setId(contactId);
-
-            Element contactInfoEl = XmlUtils.findChild(el, "contactInfo");
-
-            Element contactTypeEl = XmlUtils.findChild(contactInfoEl, "contactType");
-            String cType = XmlUtils.getText(contactTypeEl);
-
-            if(cType.equalsIgnoreCase("me"))
-            {
-                Element contactDisplayNameEl =
-                    XmlUtils.findChild(contactInfoEl, "displayName");
-                myDisplayName = XmlUtils.getText(contactDisplayNameEl);
+        /* ignore non-messenger contacts */
+        if(!c.messengerUser)
+            return;
 
-                continue;
-            }
+        String email = c.passportName;
 
-            /* ignore non-messenger contacts */
-            Element isMessengerUserEl = XmlUtils.findChild(contactInfoEl, "isMessengerUser");
-            boolean isMessengerUser = Boolean.parseBoolean(XmlUtils.getText(isMessengerUserEl));
+        if(email == null)
+        {
+            // new
+            if(!c.messengerEnabled || c.email == null)
+                return;
 
-            if(!isMessengerUser)
-                continue;
+            email = c.email;
+        }
 
-            Element emailNameEl = XmlUtils.findChild(contactInfoEl, "passportName");
-            String email = XmlUtils.getText(emailNameEl);
+        MsnContactImpl contact = new MsnContactImpl(contactList);
+        contact.setId(contactId);
+        contact.setEmail(Email.parseStr(email));
 
-            if(email == null)
-            {
-                // new
-                Element isMessengerEnabledEl =
-                    XmlUtils.findChildByChain(contactInfoEl,
-                        new String[]{"emails", "ContactEmail", "isMessengerEnabled"});
+        // something is wrong, contact in noone list
+        if(!applyLists(contact, email))
+            return;
 
-                if(isMessengerEnabledEl == null ||
-                    !Boolean.parseBoolean(XmlUtils.getText(isMessengerEnabledEl)))
-                    continue;
+        for (String guid : c.groupIds)
+            contact.addBelongGroup(guid.trim());
 
-                Element emailEl = XmlUtils.findChildByChain(contactInfoEl,
-                    new String[]{"emails", "ContactEmail", "email"});
+        contact.setFriendlyName(c.displayName);
+        contact.setDisplayName(c.displayName);
 
-                if(emailEl == null)
-                    continue;
+        // telephone ??
 
-                email = XmlUtils.getText(emailEl);
+        contactList.addContact(contact);
+    }
 
-                if(email == null)
-                    continue;
-            }
+    /**
+     * Sets the lists of the contact from the member roles.
+     *
+     * @return false if the contact is in no list
+     */
+    private boolean applyLists(MsnContactImpl contact, String email)
+    {
+        // list number is sum of all lists that the contact is in.
+        int listNumber = 0;
+        Iterator i = membersRoles.entrySet().iterator();
+        while (i.hasNext())
+        {
+            Entry e = (Entry)i.next();
 
-            contact.setEmail(Email.parseStr(email));
+            MemberRole mr = (MemberRole)e.getValue();
 
-            Element groupsEl = XmlUtils.findChild(contactInfoEl, "groupIds");
-            if(groupsEl != null)
+            if(mr.getMembers().contains(email))
             {
-                List grIdsEls = XmlUtils.findChildren(groupsEl, "guid");
-                Iterator i = grIdsEls.iterator();
-                while (i.hasNext())
-                {
-                    Element guid = (Element)i.next();
-                    contact.addBelongGroup(XmlUtils.getText(guid).trim());
-                }
+                listNumber += mr.list.getListId();
             }
+        }
 
-            Element displayNameEl = XmlUtils.findChild(contactInfoEl, "displayName");
-            String displayName = XmlUtils.getText(displayNameEl);
-            contact.setFriendlyName(displayName);
-            contact.setDisplayName(displayName);
-
-            // telephone ??
-
-            // list number is sum of all lists that the contact is in.
-            int listNumber = 0;
-            Iterator i = membersRoles.entrySet().iterator();
-            while (i.hasNext())
-            {
-                Entry e = (Entry)i.next();
+        if(listNumber == 0)
+            return false;
 
-                MemberRole mr = (MemberRole)e.getValue();
+        contact.setListNumber(listNumber);
 
-                if(mr.getMembers().contains(email))
-                {
-                    listNumber += mr.list.getListId();
-                }
-            }
+        if(contact.isInList(MsnList.AL))
+            contact.setInList(MsnList.FL, true);
 
-            // something is wrong, contact in noone list
-            if(listNumber == 0)
-                continue;
+        // Fix for error 241 (contact in allow and blocked list)
+        if(contact.isInList(MsnList.AL) && contact.isInList(MsnList.BL))
+        {
+            contact.setInList(MsnList.FL, false);
+            contact.setInList(MsnList.AL, false);
+            contact.setInList(MsnList.PL, false);
+        }
 
-            contact.setListNumber(listNumber);
+        /* It seems that such fix doesn't work as expected,
+         * I leave it there anyway, but I see a l=5 in other clients raw log!
+         * There's other strange 241 error I got that should be solved with the code below
+         * (James Lopez - BLuEGoD)
+         */
+        if((listNumber | MsnList.RL.getListId())==MsnList.RL.getListId())
+            contact.setInList(MsnList.PL, true);
+        return true;
+    }
 
-            if(contact.isInList(MsnList.AL))
-                contact.setInList(MsnList.FL, true);
+    /**
+     * After a delta sync the membership of contacts the address book didn't
+     * send may have changed too.
+     */
+    private void updateLists()
+    {
+        MsnContactListImpl contactList = (MsnContactListImpl) session
+                .getMessenger().getContactList();
 
-            // Fix for error 241 (contact in allow and blocked list)
-            if(contact.isInList(MsnList.AL) && contact.isInList(MsnList.BL))
+        for (MsnContact c : contactList.getContacts())
+        {
+            MsnContactImpl contact = (MsnContactImpl)c;
+            if(!applyLists(contact, contact.getEmail().getEmailAddress()))
             {
-                contact.setInList(MsnList.FL, false);
-                contact.setInList(MsnList.AL, false);
-                contact.setInList(MsnList.PL, false);
+                for (MsnGroup g : contact.getBelongGroups())
+                    contact.removeBelongGroup(g.getGroupId());
+                contactList.removeContactByEmail(contact.getEmail());
             }
-            
-            /* It seems that such fix doesn't work as expected,
-             * I leave it there anyway, but I see a l=5 in other clients raw log!
-             * There's other strange 241 error I got that should be solved with the code below
-             * (James Lopez - BLuEGoD)
-             */
-            if((listNumber | MsnList.RL.getListId())==MsnList.RL.getListId())
-                contact.setInList(MsnList.PL, true);
-            contactList.addContact(contact);
         }
     }
 
-    private void processMembers(String xml)
+    private void memberReceived(String role, String serviceType,
+        ContactListParser.Member member)
     {
-        DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
-        dbfactory.setIgnoringComments(true);
-        DocumentBuilder docBuilder;
-        Document doc;
-        try{
+        MemberRole memberRole = (MemberRole)membersRoles.get(role);
 
-            docBuilder = dbfactory.newDocumentBuilder();
-
-            ByteArrayInputStream in = new
-            ByteArrayInputStream(xml.getBytes("UTF-8"));
-            doc = docBuilder.parse(in);
-        }
-        catch (ParserConfigurationException ex){
-            logger.error("",ex);
-            return;
-        }catch (SAXException ex){
-            logger.error("",ex);
-            return;
-        }catch (IOException ex){
-            logger.error("",ex);
+        // there maybe some member roles we are not interested for
+        if(memberRole == null || member.passportName == null)
             return;
-        }
 
-        Element el =
-            XmlUtils.locateElement(doc.getDocumentElement(),"FindMembershipResponse","xmlns",
-            "http://www.msn.com/webservices/AddressBook");
-
-        List membershipsList = XmlUtils.findChildrenByChain(el,new String[] {
-                "FindMembershipResult","Services","Service",
-        "Memberships" });
-
-        Iterator memberIter = membershipsList.iterator();
-        while (memberIter.hasNext()){
-            Element e1 = (Element)memberIter.next();
-            List memberships = XmlUtils.findChildren(e1,"Membership");
-            Iterator iter = memberships.iterator();
-            while (iter.hasNext()){
-                Element m = (Element)iter.next();
-                Element mr = XmlUtils.findChild(m,"MemberRole");
-                String role = XmlUtils.getText(mr);
-
-                MemberRole memberRole = (MemberRole)membersRoles.get(role);
-
-                // there maybe some member roles we are not interested for
-                if (memberRole == null) continue;
-
-                if (role.equals("Pending")
-                        && XmlUtils.getText(
-                                (Element)XmlUtils.findChildrenByChain((Element)e1.getParentNode(),
-                                        new String[] { "Info","Handle","Type"
-                                }).get(0)).equals("Messenger")){
-                    List ms =
-                        XmlUtils.locateElements(m,"Member","xsi:type","PassportMember");
-                    Iterator i = ms.iterator();
-                    while (i.hasNext()){
-                        Element mem = (Element)i.next();
-
-                        Element mn = XmlUtils.findChild(mem,"DisplayName");
-                        String name = XmlUtils.getText(mn);
-                        mn = XmlUtils.findChild(mem,"JoinedDate");
-                        Date joinedDate = null;
-                        try{
-                            joinedDate =
-                                DatatypeFactory.newInstance().newXMLGregorianCalendar(XmlUtils.getText(mn))
-
-                                .toGregorianCalendar().getTime();
-                        }catch (DatatypeConfigurationException e){
-                            e.printStackTrace();
-                        }
-                        mn = XmlUtils.findChild(mem,"PassportName");
-                        String email = XmlUtils.getText(mn);
-
-                        ArrayList<MsnContactPending> pendingList =
-                            ((AbstractMessenger)session.getMessenger()).getPendingList();
-                        pendingList.add(new
-                                MsnContactPending(Email.parseStr(email),name,joinedDate));
-                       
-                        ((AbstractMessenger) session.getMessenger())
-                        .fireContactAddedMe(session.getMessenger().getPendingList()
-                                .toArray(new MsnContactPending[] {}));
-                    }
-                }else{
-                    List ms =
-                        XmlUtils.locateElements(m,"Member","xsi:type","PassportMember");
+        if(role.equals("Pending") && "Messenger".equals(serviceType))
+        {
+            ArrayList<MsnContactPending> pendingList =
+                ((AbstractMessenger)session.getMessenger()).getPendingList();
+            Email email = Email.parseStr(member.passportName);
 
-                    Iterator i = ms.iterator();
-                    while (i.hasNext()){
-                        Element mem = (Element)i.next();
+            if(member.deleted)
+            {
+                if(email != null)
+                    pendingList.remove(getPending(pendingList, email));
+                return;
+            }
 
-                        Element mn = XmlUtils.findChild(mem,"PassportName");
-                        String name = XmlUtils.getText(mn);
+            // already known from the cache or an earlier membership
+            if(email == null || getPending(pendingList, email) != null)
+                return;
 
-                        memberRole.addMember(name);
-                    }
-                }
+            Date joinedDate = null;
+            try
+            {
+                if(member.joinedDate != null)
+                    joinedDate = DatatypeFactory.newInstance()
+                        .newXMLGregorianCalendar(member.joinedDate.trim())
+                        .toGregorianCalendar().getTime();
             }
+            catch (DatatypeConfigurationException e)
+            {
+                logger.error("", e);
+            }
+
+            pendingList.add(new
+                    MsnContactPending(email, member.displayName, joinedDate));
+
+            // fired once with the cached ones
+            if(deltaSync)
+                return;
+
+            ((AbstractMessenger) session.getMessenger())
+                .fireContactAddedMe(pendingList
+                    .toArray(new MsnContactPending[] {}));
         }
+        else if(member.deleted)
+            memberRole.removeMember(member.passportName);
+        else
+            memberRole.addMember(member.passportName);
+    }
+
+    private void membersReceived()
+    {
+        ArrayList<MsnContactPending> pendingList =
+            ((AbstractMessenger)session.getMessenger()).getPendingList();
+        if(deltaSync && !pendingList.isEmpty())
+            ((AbstractMessenger) session.getMessenger())
+                .fireContactAddedMe(pendingList
+                    .toArray(new MsnContactPending[] {}));
     }
 
 
@@ -1009,7 +1092,7 @@ public class ContactList
 
 
         String res = sendRequest(
-            mess.toString(), addressbook_url, addressbook_action_groupadd, "POST");
+            mess.toString(), addressbook_url, addressbook_action_groupadd);
 
         DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
         dbfactory.setIgnoringComments(true);
@@ -1100,7 +1183,7 @@ public class ContactList
         mess.append("</soap:Envelope>");
 
         String res = sendRequest(
-            mess.toString(), addressbook_url, addressbook_action_groupdelete, "POST");
+            mess.toString(), addressbook_url, addressbook_action_groupdelete);
 
         DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
         dbfactory.setIgnoringComments(true);
@@ -1184,7 +1267,7 @@ public class ContactList
         mess.append("</soap:Envelope>");
 
         String res = sendRequest(
-            mess.toString(), addressbook_url, addressbook_action_groupupdate, "POST");
+            mess.toString(), addressbook_url, addressbook_action_groupupdate);
 
         DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
         dbfactory.setIgnoringComments(true);
@@ -1274,7 +1357,7 @@ public class ContactList
         mess.append("</soap:Envelope>");
 
         String res = sendRequest(
-            mess.toString(), addressbook_url, addressbook_action_contactadd, "POST");
+            mess.toString(), addressbook_url, addressbook_action_contactadd);
 
         String guid = null;
 
@@ -1341,8 +1424,7 @@ public class ContactList
             String addBookRes = sendRequest(
                 getRequestBody(true),
                 addressbook_url,
-                addressbook_action_findall,
-                "POST");
+                addressbook_action_findall);
 
             guid =
                 getContactID(addBookRes, email.getEmailAddress());
@@ -1427,7 +1509,7 @@ public class ContactList
         mess.append("</soap:Envelope>");
 
         res = sendRequest(
-            mess.toString(), addressbook_url, addressbook_action_contactupdate, "POST");
+            mess.toString(), addressbook_url, addressbook_action_contactupdate);
 
         try
         {
@@ -1535,7 +1617,7 @@ public class ContactList
             mess.append("</soap:Envelope>");
 
             res = sendRequest(
-                mess.toString(), addressbook_url, addressbook_action_groupContactDelete, "POST");
+                mess.toString(), addressbook_url, addressbook_action_groupContactDelete);
 
             try
             {
@@ -1607,7 +1689,7 @@ public class ContactList
         mess.append("</soap:Envelope>");
 
         res = sendRequest(
-            mess.toString(), addressbook_url, addressbook_action_contactdelete, "POST");
+            mess.toString(), addressbook_url, addressbook_action_contactdelete);
 
         try
         {
@@ -1680,7 +1762,7 @@ public class ContactList
         mess.append("</soap:Envelope>");
 
         String res = sendRequest(
-            mess.toString(), addressbook_url, membership_soap_delete, "POST");
+            mess.toString(), addressbook_url, membership_soap_delete);
 
         DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
         dbfactory.setIgnoringComments(true);
@@ -1770,7 +1852,7 @@ public class ContactList
         mess.append("</soap:Envelope>");
 
         String res = sendRequest(
-            mess.toString(), addressbook_url, membership_soap_add, "POST");
+            mess.toString(), addressbook_url, membership_soap_add);
 
         DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
         dbfactory.setIgnoringComments(true);
@@ -1859,7 +1941,7 @@ public class ContactList
         mess.append("</soap:Envelope>");
 
         String res = sendRequest(
-            mess.toString(), addressbook_url, addressbook_action_groupContactAdd, "POST");
+            mess.toString(), addressbook_url, addressbook_action_groupContactAdd);
 
         DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
         dbfactory.setIgnoringComments(true);
@@ -1921,11 +2003,597 @@ public class ContactList
         removeFriend(MsnList.FL, email, contact.getId(), srcGroupId);
     }
 
+    /**
+     * @return a batch of operations sent together
+     */
+    public ContactListBatch newBatch()
+    {
+        return new ContactListBatch(this);
+    }
+
+    Future<?> executeAsync(final ContactListBatch batch)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                execute(batch);
+            }
+        });
+    }
+
+    void execute(ContactListBatch batch)
+    {
+        MsnContactListImpl contactList = (MsnContactListImpl) session
+                .getMessenger().getContactList();
+
+        List<MsnContactImpl> added = batchAdd(batch, contactList);
+        batchBlock(batch.blocks, contactList);
+        batchGroups(batch.groupAdds, true, contactList);
+        batchGroups(batch.groupRemoves, false, contactList);
+        List<MsnContactImpl> removed = batchRemove(batch.removes, contactList);
+
+        AbstractMessenger messenger = (AbstractMessenger)session.getMessenger();
+        MsnProtocol protocol = messenger.getActualMsnProtocol();
+
+        for(OutgoingADL message : OutgoingADL.pack(protocol,
+            added.toArray(new MsnContact[added.size()]), true))
+            messenger.send(message);
+
+        for(OutgoingRML message : OutgoingRML.pack(protocol, MsnList.FL,
+            removed.toArray(new MsnContact[removed.size()])))
+            messenger.send(message);
+    }
+
+    private static void appendBatchHeader(StringBuilder mess, String scenario,
+        String contactTicket)
+    {
+        mess.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        mess.append("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"");
+        mess.append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        mess.append(" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\"");
+        mess.append(" xmlns:soapenc=\"http://schemas.xmlsoap.org/soap/encoding/\">");
+        mess.append("<soap:Header>");
+        mess.append("<ABApplicationHeader xmlns=\"http://www.msn.com/webservices/AddressBook\">");
+        mess.append("<ApplicationId>996CDE1E-AA53-4477-B943-2BE802EA6166</ApplicationId>");
+        mess.append("<IsMigration>false</IsMigration>");
+        mess.append("<PartnerScenario>" + scenario + "</PartnerScenario>");
+        mess.append("</ABApplicationHeader>");
+        mess.append("<ABAuthHeader xmlns=\"http://www.msn.com/webservices/AddressBook\">");
+        mess.append("<ManagedGroupRequest>false</ManagedGroupRequest>");
+        mess.append("<TicketToken>" + contactTicket.replaceAll("&", "&amp;") + "</TicketToken>");
+        mess.append("</ABAuthHeader>");
+        mess.append("</soap:Header>");
+        mess.append("<soap:Body>");
+    }
+
+    /**
+     * @return the response element, null if the request failed
+     */
+    private Element sendBatchRequest(StringBuilder mess, String address,
+        String soapAddress, String responseName)
+    {
+        mess.append("</soap:Body>");
+        mess.append("</soap:Envelope>");
+
+        String res = sendRequest(mess.toString(), address, soapAddress);
+        if(res == null)
+            return null;
+
+        try
+        {
+            DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
+            dbfactory.setIgnoringComments(true);
+            Document doc = dbfactory.newDocumentBuilder().parse(
+                new ByteArrayInputStream(res.getBytes("UTF-8")));
+
+            return XmlUtils.locateElement(
+                doc.getDocumentElement(),
+                responseName,
+                "xmlns",
+                "http://www.msn.com/webservices/AddressBook");
+        }
+        catch (Exception ex)
+        {
+            logger.error("", ex);
+            return null;
+        }
+    }
+
+    private List<MsnContactImpl> batchAdd(ContactListBatch batch,
+        MsnContactListImpl contactList)
+    {
+        List<MsnContactImpl> added = new ArrayList<MsnContactImpl>();
+        if(batch.adds.isEmpty())
+            return added;
+
+        StringBuilder mess = new StringBuilder();
+        appendBatchHeader(mess, "ContactSave", sso.getContactTicket());
+
+        mess.append("<ABContactAdd xmlns=\"http://www.msn.com/webservices/AddressBook\">");
+        mess.append("<abId>00000000-0000-0000-0000-000000000000</abId>");
+        mess.append("<contacts>");
+        for(int i = 0; i < batch.adds.size(); i++)
+        {
+            mess.append("<Contact xmlns=\"http://www.msn.com/webservices/AddressBook\">");
+            mess.append("<contactInfo>");
+            mess.append("<contactType>LivePending</contactType>");
+            mess.append("<passportName>" + batch.adds.get(i).getEmailAddress() + "</passportName>");
+            mess.append("<isMessengerUser>true</isMessengerUser>");
+            mess.append("<MessengerMemberInfo><DisplayName>"
+                + StringUtils.xmlEscaping(batch.addNames.get(i))
+                + "</DisplayName></MessengerMemberInfo>");
+            mess.append("</contactInfo>");
+            mess.append("</Contact>");
+        }
+        mess.append("</contacts>");
+        mess.append("<options><EnableAllowListManagement>true</EnableAllowListManagement></options>");
+        mess.append("</ABContactAdd>");
+
+        Element el = sendBatchRequest(mess, addressbook_url,
+            addressbook_action_contactadd, "ABContactAddResponse");
+
+        List<String> ids = new ArrayList<String>();
+        Element result = el == null ?
+            null : XmlUtils.findChild(el, "ABContactAddResult");
+        if(result != null)
+        {
+            for(Object guid : XmlUtils.findChildren(result, "guid"))
+                ids.add(XmlUtils.getText((Element)guid).trim());
+        }
+
+        if(ids.size() != batch.adds.size())
+        {
+            // some may already exist, or the service answered with less
+            // guids than contacts, so look them up in the address book
+            Map<String, String> found = findContactIds();
+            ids.clear();
+            for(Email email : batch.adds)
+                ids.add(found.get(email.getEmailAddress()));
+        }
+
+        for(int i = 0; i < batch.adds.size(); i++)
+        {
+            String guid = ids.get(i);
+            if(guid == null)
+            {
+                logger.error("Contact not added " + batch.adds.get(i));
+                continue;
+            }
+
+            MsnContactImpl c = new MsnContactImpl(contactList);
+            c.setEmail(batch.adds.get(i));
+            c.setFriendlyName(batch.addNames.get(i));
+            c.setId(guid);
+            c.setInList(MsnList.AL, true);
+            c.setInList(MsnList.FL, true);
+
+            contactList.addContact(c);
+            added.add(c);
+        }
+
+        return added;
+    }
+
+    /**
+     * @return the ids of the messenger contacts of the address book by
+     * email
+     */
+    private Map<String, String> findContactIds()
+    {
+        final Map<String, String> ids = new HashMap<String, String>();
+
+        sendRequest(
+            getRequestBody(true),
+            addressbook_url,
+            addressbook_action_findall,
+            new SoapTransport.ResponseParser()
+            {
+                public void parse(InputStream in)
+                    throws XMLStreamException
+                {
+                    ContactListParser.parseAddressBook(in,
+                        new ContactListParser.AddressBookHandler()
+                        {
+                            public void groupReceived(ContactListParser.Group group)
+                            {
+                            }
+
+                            public void contactReceived(ContactListParser.Contact c)
+                            {
+                                String email = c.passportName;
+                                if(email == null && c.messengerEnabled)
+                                    email = c.email;
+                                if(c.messengerUser && email != null
+                                    && c.contactId != null)
+                                    ids.put(email.trim(), c.contactId.trim());
+                            }
+
+                            public void lastChangeReceived(String lastChange)
+                            {
+                            }
+                        });
+                }
+            });
+
+        return ids;
+    }
+
+    private void batchBlock(List<Email> emails, MsnContactListImpl contactList)
+    {
+        if(emails.isEmpty())
+            return;
+
+        StringBuilder mess = new StringBuilder();
+        appendBatchHeader(mess, "BlockUnblock", sso.getContactTicket());
+
+        mess.append("<DeleteMember xmlns=\"http://www.msn.com/webservices/AddressBook\">");
+        mess.append("<serviceHandle><Id>0</Id><Type>Messenger</Type><ForeignId></ForeignId></serviceHandle>");
+        mess.append("<memberships><Membership>");
+        mess.append("<MemberRole>Block</MemberRole>");
+        mess.append("<Members>");
+        for(Email email : emails)
+        {
+            mess.append("<Member xsi:type=\"PassportMember\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">");
+            mess.append("<Type>Passport</Type><State>Accepted</State><PassportName>"
+                + email.getEmailAddress() + "</PassportName></Member>");
+        }
+        mess.append("</Members>");
+        mess.append("</Membership></memberships>");
+        mess.append("</DeleteMember>");
+
+        Element el = sendBatchRequest(mess, addressbook_url,
+            membership_soap_delete, "DeleteMemberResponse");
+
+        // todo if something missing throw failed event
+        if(el == null || el.getChildNodes().getLength() > 0)
+            return;
+
+        for(Email email : emails)
+        {
+            MsnContactImpl contact =
+                (MsnContactImpl)contactList.getContactByEmail(email);
+            if(contact == null)
+                continue;
+            contact.setInList(MsnList.AL, false);
+            contact.setInList(MsnList.BL, true);
+        }
+    }
+
+    /**
+     * Adds contacts to or removes them from groups, one request per group.
+     */
+    private void batchGroups(List<Object[]> changes, boolean add,
+        MsnContactListImpl contactList)
+    {
+        Map<String, List<MsnContactImpl>> byGroup =
+            new LinkedHashMap<String, List<MsnContactImpl>>();
+        for(Object[] change : changes)
+        {
+            MsnContactImpl contact =
+                (MsnContactImpl)contactList.getContactByEmail((Email)change[0]);
+            String groupId = (String)change[1];
+            if(contact == null || contact.getId() == null || groupId == null)
+                continue;
+
+            List<MsnContactImpl> contacts = byGroup.get(groupId);
+            if(contacts == null)
+            {
+                contacts = new ArrayList<MsnContactImpl>();
+                byGroup.put(groupId, contacts);
+            }
+            contacts.add(contact);
+        }
+
+        String request = add ? "ABGroupContactAdd" : "ABGroupContactDelete";
+
+        for(Entry<String, List<MsnContactImpl>> e : byGroup.entrySet())
+        {
+            String groupId = e.getKey();
+
+            StringBuilder mess = new StringBuilder();
+            appendBatchHeader(mess, add ? "GroupSave" : "Timer",
+                sso.getContactTicket());
+
+            mess.append("<" + request + " xmlns=\"http://www.msn.com/webservices/AddressBook\">");
+            mess.append("<abId>00000000-0000-0000-0000-000000000000</abId>");
+            mess.append("<contacts>");
+            for(MsnContactImpl contact : e.getValue())
+                mess.append("<Contact><contactId>" + contact.getId() + "</contactId></Contact>");
+            mess.append("</contacts>");
+            mess.append("<groupFilter><groupIds>");
+            mess.append("<guid>" + groupId + "</guid>");
+            mess.append("</groupIds></groupFilter>");
+            mess.append("</" + request + ">");
+
+            Element el = sendBatchRequest(mess, addressbook_url,
+                add ? addressbook_action_groupContactAdd
+                    : addressbook_action_groupContactDelete,
+                request + "Response");
+
+            // todo if something missing throw failed event
+            if(el == null || (!add && el.getChildNodes().getLength() > 0))
+            {
+                logger.error("Error changing group " + groupId);
+                continue;
+            }
+
+            MsnGroup group = contactList.getGroup(groupId);
+            AbstractMessenger messenger = (AbstractMessenger)session.getMessenger();
+            for(MsnContactImpl contact : e.getValue())
+            {
+                if(add)
+                {
+                    contact.addBelongGroup(groupId);
+                    messenger.fireContactAddInGroupCompleted(contact, group);
+                }
+                else
+                {
+                    contact.removeBelongGroup(groupId);
+                    messenger.fireContactRemoveFromGroupCompleted(contact, group);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the contacts removed from the address book, still to be
+     * removed from the forward list
+     */
+    private List<MsnContactImpl> batchRemove(List<Email> emails,
+        MsnContactListImpl contactList)
+    {
+        List<MsnContactImpl> removed = new ArrayList<MsnContactImpl>();
+        for(Email email : emails)
+        {
+            MsnContactImpl contact =
+                (MsnContactImpl)contactList.getContactByEmail(email);
+            if(contact != null && contact.getId() != null)
+                removed.add(contact);
+        }
+        if(removed.isEmpty())
+            return removed;
+
+        StringBuilder mess = new StringBuilder();
+        appendBatchHeader(mess, "Timer", sso.getContactTicket());
+
+        mess.append("<ABContactDelete xmlns=\"http://www.msn.com/webservices/AddressBook\">");
+        mess.append("<abId>00000000-0000-0000-0000-000000000000</abId>");
+        mess.append("<contacts>");
+        for(MsnContactImpl contact : removed)
+            mess.append("<Contact><contactId>" + contact.getId() + "</contactId></Contact>");
+        mess.append("</contacts>");
+        mess.append("</ABContactDelete>");
+
+        Element el = sendBatchRequest(mess, addressbook_url,
+            addressbook_action_contactdelete, "ABContactDeleteResponse");
+
+        // todo if something missing throw failed event
+        if(el == null || el.getChildNodes().getLength() > 0)
+        {
+            removed.clear();
+            return removed;
+        }
+
+        for(MsnContactImpl contact : removed)
+            contactList.removeContactById(contact.getId());
+
+        return removed;
+    }
+
+    /**
+     * Stops the executor of the asynchronous operations once the ones
+     * already asked for are done, called on logout.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Runs a task on the executor of the contact list.
+     */
+    private Future<?> submit(final Runnable task)
+    {
+        return executor.submit(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Contact list operation failed", e);
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Retrieves the contact list without blocking the caller, the result
+     * is delivered through the contact list listeners.
+     *
+     * @return done once the contact list was received
+     */
+    public Future<?> dispatchAsync()
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * @see #createGroup(String)
+     */
+    public Future<?> createGroupAsync(final String groupName)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                createGroup(groupName);
+            }
+        });
+    }
+
+    /**
+     * @see #removeGroup(String)
+     */
+    public Future<?> removeGroupAsync(final String groupId)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                removeGroup(groupId);
+            }
+        });
+    }
+
+    /**
+     * @see #renameGroup(String, String)
+     */
+    public Future<?> renameGroupAsync(final String groupId,
+        final String newGroupName)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                renameGroup(groupId, newGroupName);
+            }
+        });
+    }
+
+    /**
+     * @see #addFriend(Email, String)
+     */
+    public Future<?> addFriendAsync(final Email email,
+        final String friendlyName)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                addFriend(email, friendlyName);
+            }
+        });
+    }
+
+    /**
+     * @see #updateFriend(Email, String, String)
+     */
+    public Future<?> updateFriendAsync(final Email email, final String id,
+        final String friendlyName)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                updateFriend(email, id, friendlyName);
+            }
+        });
+    }
+
+    /**
+     * @see #addFriendToList(MsnList[], MsnContactImpl)
+     */
+    public Future<?> addFriendToListAsync(final MsnList[] lists,
+        final MsnContactImpl contact)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                addFriendToList(lists, contact);
+            }
+        });
+    }
+
+    /**
+     * @see #removeFriend(MsnList, Email, String, String)
+     */
+    public Future<?> removeFriendAsync(final MsnList list, final Email email,
+        final String id, final String groupId)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                removeFriend(list, email, id, groupId);
+            }
+        });
+    }
+
+    /**
+     * @see #blockFriend(Email)
+     */
+    public Future<?> blockFriendAsync(final Email email)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                blockFriend(email);
+            }
+        });
+    }
+
+    /**
+     * @see #unblockFriend(Email)
+     */
+    public Future<?> unblockFriendAsync(final Email email)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                unblockFriend(email);
+            }
+        });
+    }
+
+    /**
+     * @see #copyFriend(Email, String)
+     */
+    public Future<?> copyFriendAsync(final Email email, final String groupId)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                copyFriend(email, groupId);
+            }
+        });
+    }
+
+    /**
+     * @see #moveFriend(Email, String, String)
+     */
+    public Future<?> moveFriendAsync(final Email email,
+        final String srcGroupId, final String destGroupId)
+    {
+        return submit(new Runnable()
+        {
+            public void run()
+            {
+                moveFriend(email, srcGroupId, destGroupId);
+            }
+        });
+    }
+
     private class MemberRole
     {
         String name;
         MsnList list;
-        Vector members = new Vector();
+        Set<String> members = new LinkedHashSet<String>();
 
         MemberRole(String name, MsnList list)
         {
@@ -1938,7 +2606,12 @@ public class ContactList
             members.add(name);
         }
 
-        Vector getMembers()
+        void removeMember(String name)
+        {
+            members.remove(name);
+        }
+
+        Set<String> getMembers()
         {
             return members;
         }
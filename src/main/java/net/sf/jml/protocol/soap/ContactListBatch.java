@@ -0,0 +1,121 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol.soap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import net.sf.jml.Email;
+
+/**
+ * Collects contact list operations which are sent together: all the adds
+ * in one ABContactAdd, the group changes in one request per group, the
+ * blocks in one DeleteMember, the removes in one ABContactDelete. The
+ * ADL and RML commands which follow carry many contacts each.
+ * <p>
+ * Operations are done in this order whatever order they were added in:
+ * adds, blocks, group adds, group removes, removes. A contact added by the
+ * batch can be copied or moved by the same batch.
+ *
+ * @see ContactList#newBatch()
+ * @author Damian Minkov
+ */
+public final class ContactListBatch
+{
+    private final ContactList contactList;
+
+    final List<Email> adds = new ArrayList<Email>();
+    final List<String> addNames = new ArrayList<String>();
+    final List<Email> blocks = new ArrayList<Email>();
+    final List<Email> removes = new ArrayList<Email>();
+
+    /**
+     * Pairs of email and group id.
+     */
+    final List<Object[]> groupAdds = new ArrayList<Object[]>();
+    final List<Object[]> groupRemoves = new ArrayList<Object[]>();
+
+    ContactListBatch(ContactList contactList)
+    {
+        this.contactList = contactList;
+    }
+
+    /**
+     * Adds a contact to the forward and allow lists.
+     */
+    public ContactListBatch addFriend(Email email, String friendlyName)
+    {
+        adds.add(email);
+        addNames.add(friendlyName == null ? email.getEmailAddress() : friendlyName);
+        return this;
+    }
+
+    /**
+     * Removes a contact from the address book and the forward list.
+     */
+    public ContactListBatch removeFriend(Email email)
+    {
+        removes.add(email);
+        return this;
+    }
+
+    public ContactListBatch blockFriend(Email email)
+    {
+        blocks.add(email);
+        return this;
+    }
+
+    public ContactListBatch copyFriend(Email email, String groupId)
+    {
+        groupAdds.add(new Object[]{email, groupId});
+        return this;
+    }
+
+    public ContactListBatch moveFriend(Email email, String srcGroupId,
+        String destGroupId)
+    {
+        groupAdds.add(new Object[]{email, destGroupId});
+        groupRemoves.add(new Object[]{email, srcGroupId});
+        return this;
+    }
+
+    /**
+     * @return the number of operations collected
+     */
+    public int size()
+    {
+        return adds.size() + blocks.size() + removes.size()
+            + groupAdds.size() + groupRemoves.size();
+    }
+
+    /**
+     * Sends the operations, blocking till all responses are in.
+     */
+    public void execute()
+    {
+        contactList.execute(this);
+    }
+
+    /**
+     * Sends the operations on the executor of the contact list, after the
+     * operations asked for before.
+     */
+    public Future<?> executeAsync()
+    {
+        return contactList.executeAsync(this);
+    }
+}
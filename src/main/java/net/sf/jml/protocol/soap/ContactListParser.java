@@ -0,0 +1,383 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol.soap;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming parser of the ABFindAll and FindMembership responses. Groups,
+ * contacts and members are handed to the handler as soon as their element
+ * was read, the response is never held in memory as a whole.
+ *
+ * @author Damian Minkov
+ */
+final class ContactListParser
+{
+    private static final String XSI_NS =
+        "http://www.w3.org/2001/XMLSchema-instance";
+
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static
+    {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES,
+            Boolean.TRUE);
+    }
+
+    interface AddressBookHandler
+    {
+        void groupReceived(Group group);
+
+        void contactReceived(Contact contact);
+
+        void lastChangeReceived(String lastChange);
+    }
+
+    interface MembershipHandler
+    {
+        /**
+         * @param serviceType type of the service, only known for the
+         * Pending role, null for the others
+         */
+        void memberReceived(String role, String serviceType, Member member);
+
+        void lastChangeReceived(String serviceType, String lastChange);
+    }
+
+    /**
+     * ABFindAllResult/groups/Group, texts are null when empty.
+     */
+    static final class Group
+    {
+        String groupId;
+        String name;
+        boolean deleted;
+    }
+
+    /**
+     * ABFindAllResult/contacts/Contact, texts are null when empty. Only
+     * the first ContactEmail is kept.
+     */
+    static final class Contact
+    {
+        String contactId;
+        String contactType;
+        String displayName;
+        boolean messengerUser;
+        String passportName;
+        boolean messengerEnabled;
+        String email;
+        final List<String> groupIds = new ArrayList<String>(2);
+        boolean deleted;
+
+        private int contactEmails = 0;
+    }
+
+    /**
+     * A PassportMember of a membership, texts are null when empty.
+     */
+    static final class Member
+    {
+        String passportName;
+        String displayName;
+        String joinedDate;
+        boolean deleted;
+    }
+
+    private final XMLStreamReader reader;
+
+    private final List<String> path = new ArrayList<String>();
+
+    private final StringBuilder text = new StringBuilder();
+
+    private ContactListParser(InputStream in)
+        throws XMLStreamException
+    {
+        synchronized(factory)
+        {
+            reader = factory.createXMLStreamReader(in);
+        }
+    }
+
+    static void parseAddressBook(InputStream in, AddressBookHandler handler)
+        throws XMLStreamException
+    {
+        new ContactListParser(in).parseAddressBook(handler);
+    }
+
+    static void parseMembership(InputStream in, MembershipHandler handler)
+        throws XMLStreamException
+    {
+        new ContactListParser(in).parseMembership(handler);
+    }
+
+    private void parseAddressBook(AddressBookHandler handler)
+        throws XMLStreamException
+    {
+        Group group = null;
+        Contact contact = null;
+        int base = 0;
+
+        try
+        {
+            while(reader.hasNext())
+            {
+                switch(reader.next())
+                {
+                    case XMLStreamConstants.START_ELEMENT:
+                        push();
+                        if(endsWith("ABFindAllResult", "groups", "Group"))
+                        {
+                            group = new Group();
+                            base = path.size();
+                        }
+                        else if(endsWith("ABFindAllResult", "contacts", "Contact"))
+                        {
+                            contact = new Contact();
+                            base = path.size();
+                        }
+                        else if(contact != null
+                            && at(base, "contactInfo", "emails", "ContactEmail"))
+                            contact.contactEmails++;
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        text.append(reader.getTextCharacters(),
+                            reader.getTextStart(), reader.getTextLength());
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        if(group != null)
+                        {
+                            if(at(base))
+                            {
+                                handler.groupReceived(group);
+                                group = null;
+                            }
+                            else if(at(base, "groupId"))
+                                group.groupId = text();
+                            else if(at(base, "groupInfo", "name"))
+                                group.name = text();
+                            else if(at(base, "fDeleted"))
+                                group.deleted = bool();
+                        }
+                        else if(contact != null)
+                        {
+                            if(at(base))
+                            {
+                                handler.contactReceived(contact);
+                                contact = null;
+                            }
+                            else if(at(base, "contactId"))
+                                contact.contactId = text();
+                            else if(at(base, "fDeleted"))
+                                contact.deleted = bool();
+                            else if(at(base, "contactInfo", "contactType"))
+                                contact.contactType = text();
+                            else if(at(base, "contactInfo", "displayName"))
+                                contact.displayName = text();
+                            else if(at(base, "contactInfo", "isMessengerUser"))
+                                contact.messengerUser = bool();
+                            else if(at(base, "contactInfo", "passportName"))
+                                contact.passportName = text();
+                            else if(at(base, "contactInfo", "groupIds", "guid"))
+                            {
+                                String guid = text();
+                                if(guid != null)
+                                    contact.groupIds.add(guid);
+                            }
+                            else if(contact.contactEmails == 1
+                                && at(base, "contactInfo", "emails",
+                                    "ContactEmail", "isMessengerEnabled"))
+                                contact.messengerEnabled = bool();
+                            else if(contact.contactEmails == 1
+                                && at(base, "contactInfo", "emails",
+                                    "ContactEmail", "email"))
+                                contact.email = text();
+                        }
+                        else if(endsWith("ABFindAllResult", "ab", "lastChange"))
+                            handler.lastChangeReceived(text());
+                        pop();
+                        break;
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private void parseMembership(MembershipHandler handler)
+        throws XMLStreamException
+    {
+        int service = -1;
+        String serviceType = null;
+        String lastChange = null;
+        List<Member> pending = new ArrayList<Member>();
+
+        String role = null;
+        Member member = null;
+        int base = 0;
+
+        try
+        {
+            while(reader.hasNext())
+            {
+                switch(reader.next())
+                {
+                    case XMLStreamConstants.START_ELEMENT:
+                        push();
+                        if(endsWith("FindMembershipResult", "Services", "Service"))
+                        {
+                            service = path.size();
+                            serviceType = null;
+                            lastChange = null;
+                            pending.clear();
+                        }
+                        else if(service >= 0 && at(service, "Memberships",
+                            "Membership", "Members", "Member"))
+                        {
+                            member = "PassportMember".equals(
+                                reader.getAttributeValue(XSI_NS, "type")) ?
+                                    new Member() : null;
+                            base = path.size();
+                        }
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        text.append(reader.getTextCharacters(),
+                            reader.getTextStart(), reader.getTextLength());
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        if(service < 0)
+                        {
+                            pop();
+                            break;
+                        }
+
+                        if(member != null)
+                        {
+                            if(at(base))
+                            {
+                                if("Pending".equals(role))
+                                    pending.add(member);
+                                else if(role != null)
+                                    handler.memberReceived(role, null, member);
+                                member = null;
+                            }
+                            else if(at(base, "PassportName"))
+                                member.passportName = text();
+                            else if(at(base, "DisplayName"))
+                                member.displayName = text();
+                            else if(at(base, "JoinedDate"))
+                                member.joinedDate = text();
+                            else if(at(base, "Deleted"))
+                                member.deleted = bool();
+                        }
+                        else if(at(service))
+                        {
+                            // the type comes after the memberships
+                            for(Member m : pending)
+                                handler.memberReceived("Pending", serviceType, m);
+                            if(lastChange != null)
+                                handler.lastChangeReceived(serviceType, lastChange);
+                            pending.clear();
+                            service = -1;
+                        }
+                        else if(at(service, "Memberships", "Membership", "MemberRole"))
+                            role = text();
+                        else if(at(service, "Memberships", "Membership"))
+                            role = null;
+                        else if(at(service, "Info", "Handle", "Type"))
+                            serviceType = text();
+                        else if(at(service, "LastChange"))
+                            lastChange = text();
+                        pop();
+                        break;
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private void push()
+    {
+        path.add(reader.getLocalName());
+        text.setLength(0);
+    }
+
+    private void pop()
+    {
+        path.remove(path.size() - 1);
+        text.setLength(0);
+    }
+
+    /**
+     * @return whether the current element is at the given path below the
+     * element at depth <tt>base</tt>
+     */
+    private boolean at(int base, String... names)
+    {
+        if(path.size() != base + names.length)
+            return false;
+        for(int i = 0; i < names.length; i++)
+        {
+            if(!names[i].equals(path.get(base + i)))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean endsWith(String... names)
+    {
+        return path.size() >= names.length
+            && at(path.size() - names.length, names);
+    }
+
+    /**
+     * @return the text of the element just ended, null if blank
+     */
+    private String text()
+    {
+        for(int i = 0; i < text.length(); i++)
+        {
+            if(!Character.isWhitespace(text.charAt(i)))
+                return text.toString();
+        }
+        return null;
+    }
+
+    private boolean bool()
+    {
+        String s = text();
+        return s != null && Boolean.parseBoolean(s.trim());
+    }
+}
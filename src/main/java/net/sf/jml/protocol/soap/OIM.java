@@ -22,22 +22,26 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.net.Socket;
-import java.net.URL;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -48,30 +52,11 @@ import net.sf.jml.impl.MsnContactImpl;
 import net.sf.jml.protocol.MsnSession;
 import net.sf.jml.protocol.outgoing.OutgoingQRY;
 import net.sf.jml.util.Base64;
+import net.sf.jml.util.JmlConstants;
+import net.sf.jml.util.ThreadUtils;
 import net.sf.jml.util.XmlUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.http.ConnectionReuseStrategy;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
-import org.apache.http.impl.DefaultConnectionReuseStrategy;
-import org.apache.http.impl.DefaultHttpClientConnection;
-import org.apache.http.message.BasicHttpEntityEnclosingRequest;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.BasicHttpProcessor;
-import org.apache.http.protocol.ExecutionContext;
-import org.apache.http.protocol.HttpContext;
-import org.apache.http.protocol.HttpRequestExecutor;
-import org.apache.http.protocol.RequestConnControl;
-import org.apache.http.protocol.RequestContent;
-import org.apache.http.protocol.RequestExpectContinue;
-import org.apache.http.protocol.RequestTargetHost;
-import org.apache.http.protocol.RequestUserAgent;
-import org.apache.http.util.EntityUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
@@ -111,6 +96,36 @@ public class OIM
      */
     private static boolean postDel=true;
 
+    private static final AtomicInteger fetchThreadCount = new AtomicInteger(0);
+
+    /**
+     * Fetches offline messages of all sessions, at most
+     * {@link JmlConstants#OIM_PARALLEL_FETCHES} at a time. The threads go
+     * away while there is nothing to do.
+     */
+    private static final ThreadPoolExecutor fetchExecutor;
+
+    static
+    {
+        fetchExecutor = new ThreadPoolExecutor(
+            Math.max(1, JmlConstants.OIM_PARALLEL_FETCHES),
+            Math.max(1, JmlConstants.OIM_PARALLEL_FETCHES),
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = ThreadUtils.newThread(r,
+                        "net.sf.jml.protocol.soap.OIM-"
+                        + fetchThreadCount.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        fetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
     public OIM(MsnSession session)
     {
         this.sso = session.getSSO();
@@ -138,17 +153,17 @@ public class OIM
         }
         catch (ParserConfigurationException ex)
         {
-            Logger.getLogger(OIM.class.getName()).log(Level.SEVERE, null, ex);
+            logger.error(null, ex);
             return new String[0];
         }
         catch (SAXException ex)
         {
-            Logger.getLogger(OIM.class.getName()).log(Level.SEVERE, null, ex);
+            logger.error(null, ex);
             return new String[0];
         }
         catch (IOException ex)
         {
-            Logger.getLogger(OIM.class.getName()).log(Level.SEVERE, null, ex);
+            logger.error(null, ex);
             return new String[0];
         }
 
@@ -197,8 +212,16 @@ public class OIM
 
         try
         {
-            HttpResponse resp = sendRequest(mess.toString(), oim_url, oim_getmetadat_soap);
-            return EntityUtils.toString(resp.getEntity());
+            SoapTransport.Response resp =
+                sendRequest(mess.toString(), oim_url, oim_getmetadat_soap);
+
+            if(resp == null)
+            {
+                logger.error("Error retreiving offline msgs metadata!");
+                return null;
+            }
+
+            return resp.getBody();
         }
         catch (Exception e)
         {
@@ -215,37 +238,7 @@ public class OIM
         if(mail==null)
             return;
         
-        String ids[]=parseMdata(mail);
-        
-        List oims = new ArrayList();
-        for (int i = 0; i < ids.length; i++)
-        {
-            String id = ids[i];
-            OfflineMsg oim = getMessage(id);
-
-            if(oim != null)
-                oims.add(oim);
-        }
-
-        Collections.sort(oims);
-
-        Iterator<OfflineMsg> iter = oims.iterator();
-        while (iter.hasNext())
-        {
-            OfflineMsg msg = iter.next();
-
-            ((AbstractMessenger) session.getMessenger())
-                .fireOfflineMessageReceived(
-                    msg.body,
-                    msg.contentType,
-                    msg.encoding,
-                    msg.date,
-                    msg.contact);
-        }
-
-        if(ids.length > 0 && postDel)
-            deleteMessage(ids);
-        
+        retrieveMessages(parseMdata(mail));
     }
     public void retreiveOfflineMessages()
     {
@@ -269,24 +262,109 @@ public class OIM
             return;
         }
 
-        String[] ids = getMsgIds((Element)msgs.getFirstChild());
-        List oims = new ArrayList();
+        retrieveMessages(getMsgIds((Element)msgs.getFirstChild()));
+    }
+
+    /**
+     * Fetches the messages on the shared fetch pool and fires them as soon
+     * as every message listed before them has arrived. The service lists
+     * the messages in the order they were stored, a run of messages which
+     * arrived together is fired sorted by sequence number. Delivered
+     * messages are deleted in batches while the rest is still fetched.
+     */
+    private void retrieveMessages(final String[] ids)
+    {
+        if(ids.length == 0)
+            return;
+
+        CompletionService<Integer> fetches =
+            new ExecutorCompletionService<Integer>(fetchExecutor);
+        final OfflineMsg[] fetched = new OfflineMsg[ids.length];
+        final boolean[] done = new boolean[ids.length];
+        Map<Future<Integer>, Integer> indexes =
+            new HashMap<Future<Integer>, Integer>();
+
         for (int i = 0; i < ids.length; i++)
         {
-            String id = ids[i];
-            OfflineMsg oim = getMessage(id);
+            final int index = i;
+            indexes.put(fetches.submit(new Callable<Integer>()
+            {
+                public Integer call()
+                {
+                    try
+                    {
+                        fetched[index] = getMessage(ids[index]);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.error("Error retreiving offline msg "
+                            + ids[index], e);
+                    }
+                    return index;
+                }
+            }), index);
+        }
+
+        List<String> toDelete = new ArrayList<String>();
+        int next = 0;
+        for (int i = 0; i < ids.length; i++)
+        {
+            int index;
+            try
+            {
+                Future<Integer> fetch = fetches.take();
+                index = indexes.get(fetch);
+                try
+                {
+                    fetch.get();
+                }
+                catch (ExecutionException e)
+                {
+                    // not fetched, the messages after it are still fired
+                    logger.error("Error retreiving offline msg "
+                        + ids[index], e.getCause());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            done[index] = true;
+
+            if(index != next)
+                continue;
 
-            if(oim != null)
-                oims.add(oim);
+            List<OfflineMsg> run = new ArrayList<OfflineMsg>();
+            while(next < ids.length && done[next])
+            {
+                // a message which wasn't fetched stays on the server
+                if(fetched[next] != null)
+                {
+                    run.add(fetched[next]);
+                    toDelete.add(ids[next]);
+                }
+                fetched[next] = null;
+                next++;
+            }
+            Collections.sort(run);
+            fireOfflineMessages(run);
+
+            if(postDel && toDelete.size() >= JmlConstants.OIM_DELETE_BATCH)
+            {
+                deleteMessage(toDelete.toArray(new String[toDelete.size()]));
+                toDelete.clear();
+            }
         }
 
-        Collections.sort(oims);
+        if(postDel && !toDelete.isEmpty())
+            deleteMessage(toDelete.toArray(new String[toDelete.size()]));
+    }
 
-        Iterator<OfflineMsg> iter = oims.iterator();
-        while (iter.hasNext())
+    private void fireOfflineMessages(List<OfflineMsg> msgs)
+    {
+        for (OfflineMsg msg : msgs)
         {
-            OfflineMsg msg = iter.next();
-
             ((AbstractMessenger) session.getMessenger())
                 .fireOfflineMessageReceived(
                     msg.body,
@@ -295,9 +373,6 @@ public class OIM
                     msg.date,
                     msg.contact);
         }
-
-        if(ids.length > 0 && postDel)
-            deleteMessage(ids);
     }
 
     public OfflineMsg getMessage(String id)
@@ -324,17 +399,15 @@ public class OIM
         mess.append("  </soap:Body>");
         mess.append("</soap:Envelope>");
 
-        HttpResponse resp = sendRequest(mess.toString(), oim_url, oim_getmsgs_soap);
+        SoapTransport.Response resp =
+            sendRequest(mess.toString(), oim_url, oim_getmsgs_soap);
 
-        String respStr = null;
+        if(resp == null)
+            return null;
 
-        try
-        {
-            respStr = EntityUtils.toString(resp.getEntity());
-        }
-        catch (Exception e){}
+        String respStr = resp.getBody();
 
-        if(resp.getStatusLine().getStatusCode() == 200)
+        if(resp.getStatusCode() == 200)
         {
             try
             {
@@ -383,18 +456,12 @@ public class OIM
         mess.append("  </soap:Body>");
         mess.append("</soap:Envelope>");
 
-        HttpResponse resp = sendRequest(mess.toString(), oim_url, oim_deletemsgs_soap);
+        SoapTransport.Response resp =
+            sendRequest(mess.toString(), oim_url, oim_deletemsgs_soap);
 
-        String respStr = null;
-
-        try
-        {
-            respStr = EntityUtils.toString(resp.getEntity());
-        }
-        catch (Exception e){}
-
-        if(resp.getStatusLine().getStatusCode() != 200)
-            logger.error("Error deleting offline msg! " + respStr);
+        if(resp == null || resp.getStatusCode() != 200)
+            logger.error("Error deleting offline msg! "
+                + (resp == null ? null : resp.getBody()));
     }
 
     private OfflineMsg parseMessage(String xml)
@@ -565,17 +632,17 @@ public class OIM
         }
         catch (ParserConfigurationException ex)
         {
-            Logger.getLogger(ContactList.class.getName()).log(Level.SEVERE, null, ex);
+            logger.error(null, ex);
             return null;
         }
         catch (SAXException ex)
         {
-            Logger.getLogger(ContactList.class.getName()).log(Level.SEVERE, null, ex);
+            logger.error(null, ex);
             return null;
         }
         catch (IOException ex)
         {
-            Logger.getLogger(ContactList.class.getName()).log(Level.SEVERE, null, ex);
+            logger.error(null, ex);
             return null;
         }
 
@@ -666,25 +733,32 @@ public class OIM
     }
 
 
-    private  static int sentMsgNumber = 1;
+    private int sentMsgNumber = 1;
     private String lockkey = "e745d4e406790fb5c5ca70041fbe06df";
 
-    public void sendOfflineMsg(Email email, String txt)
+    /**
+     * Sends an offline message. The lock key and message number are kept
+     * by this instance, reuse it for the next messages of the session.
+     *
+     * @return whether the message was accepted
+     * @see OIMSender
+     */
+    public synchronized boolean sendOfflineMsg(Email email, String txt)
     {
         sentMsgNumber++;
 
-        HttpResponse resp = sendRequest(getOfflineMsg(email, txt), oim_send_url, oim_send_soap);
-        String respStr = null;
+        SoapTransport.Response resp =
+            sendRequest(getOfflineMsg(email, txt), oim_send_url, oim_send_soap);
 
-        try
+        if(resp == null)
         {
-            respStr = EntityUtils.toString(resp.getEntity());
-        }
-        catch (Exception e){
-            e.printStackTrace();
+            logger.error("Error sending offline msg!");
+            return false;
         }
 
-        if(resp.getStatusLine().getStatusCode() == 500)
+        String respStr = resp.getBody();
+
+        if(resp.getStatusCode() == 500)
         {
             Element el =
             XmlUtils.locateElement(
@@ -720,19 +794,12 @@ public class OIM
 
                         resp =
                             sendRequest(getOfflineMsg(email, txt), oim_send_url, oim_send_soap);
-                        try
-                        {
-                            respStr = EntityUtils.toString(resp.getEntity());
-                        }
-                        catch (Exception e){}
-
-
-                        if(resp.getStatusLine().getStatusCode() != 200)
-                            logger.error("Error sending offline msg! " + respStr);
-                        else
-                        {
-                            // no event for success
-                        }
+
+                        if(resp != null && resp.getStatusCode() == 200)
+                            return true;
+
+                        logger.error("Error sending offline msg! "
+                            + (resp == null ? null : resp.getBody()));
                     }
                 }
                 else    
@@ -742,108 +809,33 @@ public class OIM
                 logger.error("Error sending offline msg! " + respStr);
 
         }
-        else if(resp.getStatusLine().getStatusCode() == 200)
+        else if(resp.getStatusCode() == 200)
         {
-            // no event for success
+            return true;
         }
         else
         {
             logger.error("Error sending offline msg! " + respStr);
         }
-    }
 
-    ConnectionReuseStrategy connStrategy = new DefaultConnectionReuseStrategy();
-    DefaultHttpClientConnection conn = new DefaultHttpClientConnection();
-    HttpParams params = null;
-    BasicHttpProcessor httpproc = null;
+        return false;
+    }
 
-    private synchronized HttpResponse sendRequest(String body, String address, String soapAddress)
+    /**
+     * @return the response, null if the request failed
+     */
+    private SoapTransport.Response sendRequest(String body, String address, String soapAddress)
     {
-
-        try
-        {
-            if(logger.isTraceEnabled())
-                logger.trace("Will send body: " + body);
-
-            URL url = new URL(address);
-            if(params == null)
-            {
-                params = new BasicHttpParams();
-                HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-                HttpProtocolParams.setContentCharset(params, "UTF-8");
-                //HttpProtocolParams.setUserAgent(params, "MSN Explorer/9.0 (MSN 8.0; TmstmpExt)");
-                HttpProtocolParams.setUseExpectContinue(params, false);
-
-                httpproc = new BasicHttpProcessor();
-                // Required protocol interceptors
-                httpproc.addInterceptor(new RequestContent());
-                httpproc.addInterceptor(new RequestTargetHost());
-                // Recommended protocol interceptors
-                httpproc.addInterceptor(new RequestConnControl());
-                httpproc.addInterceptor(new RequestUserAgent());
-                httpproc.addInterceptor(new RequestExpectContinue());
-            }
-
-            HttpRequestExecutor httpexecutor = new HttpRequestExecutor();
-
-            HttpContext context = new BasicHttpContext(null);
-
-            HttpHost host = new HttpHost(url.getHost(), 443, "https");
-
-            //ConnectionReuseStrategy connStrategy = new DefaultConnectionReuseStrategy();
-
-            context.setAttribute(ExecutionContext.HTTP_CONNECTION, conn);
-            context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, host);
-
-
-            if (!conn.isOpen())
-            {
-                SSLContext sc = SSLContext.getInstance("SSLv3");
-                TrustManager[] tma = {new DummyTrustManager()};
-                sc.init(null, tma, null);
-
-                SSLSocketFactory factory = sc.getSocketFactory();
-
-                Socket socket = factory.createSocket(host.getHostName(), host.getPort());
-
-                conn.bind(socket, params);
-            }
-
-            BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST",
-                        url.getPath());
-            request.setEntity(new XmlEntity(body));
-
-            context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
-            request.setParams(params);
-
-            if(soapAddress != null)
-                request.addHeader("SOAPAction", soapAddress);
-
-            request.addHeader("Host", url.getHost());
-
-            httpexecutor.preProcess(request, httpproc, context);
-
-            HttpResponse response = httpexecutor.execute(request, conn, context);
-            httpexecutor.postProcess(response, httpproc, context);
-
-            if (!connStrategy.keepAlive(response, context))
-                conn.close();
-
-            return response;
-        }
-        catch(Exception e)
-        {
-            Logger.getLogger(ContactList.class.getName()).log(Level.SEVERE, null, e);
-        }
-
-        return null;
+        return SoapTransport.getInstance().post(
+            session.getMessenger().getOwner().getEmail().getEmailAddress(),
+            address, soapAddress, body, null);
     }
 
     /**
      * @param postDel Set to true to delete offline messages after retrieval
      */
     public void setPostDel(boolean postDel) {
-        this.postDel = postDel;
+        OIM.postDel = postDel;
     }
 
     /**
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol.soap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jml.Email;
+import net.sf.jml.impl.AbstractMessenger;
+import net.sf.jml.protocol.MsnSession;
+import net.sf.jml.util.JmlConstants;
+import net.sf.jml.util.ThreadUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sends the offline messages of a session one at a time, off the calling
+ * thread. All of them go through the same {@link OIM}, so the lock key
+ * computed for the first challenge is kept for the next messages.
+ * <p>
+ * Texts to a recipient which are still waiting for their turn are sent
+ * together as one offline message. Every text is reported to the message
+ * listeners once it was sent or failed.
+ *
+ * @see JmlConstants#OIM_SEND_INTERVAL
+ * @author Damian Minkov
+ */
+public final class OIMSender
+{
+    private static final Log logger = LogFactory.getLog(OIMSender.class);
+
+    private static final AtomicInteger executorCount = new AtomicInteger(0);
+
+    private final MsnSession session;
+
+    private final OIM oim;
+
+    /**
+     * Sends one recipient at a time. The thread goes away while there is
+     * nothing to send.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Recipients with texts waiting to be sent.
+     */
+    private final Map<Email, Pending> pending = new HashMap<Email, Pending>();
+
+    /**
+     * When the last message was sent, only touched by the executor.
+     */
+    private long lastSent = 0;
+
+    public OIMSender(MsnSession session)
+    {
+        this.session = session;
+        this.oim = new OIM(session);
+
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = ThreadUtils.newThread(r,
+                        "net.sf.jml.protocol.soap.OIMSender-"
+                        + executorCount.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a text for an offline contact.
+     *
+     * @see net.sf.jml.event.MsnMessageListener#offlineMessageSent(Email, String, boolean)
+     */
+    public void send(Email email, String text)
+    {
+        synchronized(pending)
+        {
+            Pending p = pending.get(email);
+            if(p == null)
+            {
+                p = new Pending(email);
+                pending.put(email, p);
+                executor.execute(p);
+            }
+            p.texts.add(text);
+        }
+    }
+
+    /**
+     * Waits until {@link JmlConstants#OIM_SEND_INTERVAL} has passed since
+     * the last message.
+     */
+    private void pace()
+    {
+        long wait = lastSent + JmlConstants.OIM_SEND_INTERVAL
+            - System.currentTimeMillis();
+        if(wait <= 0)
+            return;
+        try
+        {
+            Thread.sleep(wait);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Pending
+        implements Runnable
+    {
+        private final Email email;
+
+        /**
+         * Guarded by the pending map.
+         */
+        private final List<String> texts = new ArrayList<String>();
+
+        Pending(Email email)
+        {
+            this.email = email;
+        }
+
+        public void run()
+        {
+            pace();
+
+            // texts queued while waiting go out with this message
+            List<String> sending;
+            synchronized(pending)
+            {
+                pending.remove(email);
+                sending = new ArrayList<String>(texts);
+            }
+
+            StringBuilder text = new StringBuilder();
+            for (String t : sending)
+            {
+                if(text.length() > 0)
+                    text.append("\r\n");
+                text.append(t);
+            }
+
+            boolean delivered = false;
+            try
+            {
+                delivered = oim.sendOfflineMsg(email, text.toString());
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Error sending offline msg!", e);
+            }
+            lastSent = System.currentTimeMillis();
+
+            AbstractMessenger messenger =
+                (AbstractMessenger) session.getMessenger();
+            for (String t : sending)
+                messenger.fireOfflineMessageSent(email, t, delivered);
+        }
+    }
+}
@@ -16,19 +16,10 @@
 package net.sf.jml.protocol.soap;
 
 import net.sf.jml.util.Base64;
+import net.sf.jml.util.DigestUtils;
 import net.sf.jml.util.XmlUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
-import org.apache.http.impl.DefaultHttpClientConnection;
-import org.apache.http.message.BasicHttpEntityEnclosingRequest;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.*;
-import org.apache.http.util.EntityUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -36,14 +27,10 @@ import javax.crypto.Cipher;
 import javax.crypto.Mac;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import javax.net.ssl.SSLSocketFactory;
+import javax.xml.datatype.DatatypeFactory;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.ByteArrayInputStream;
-import java.net.Socket;
-import java.net.URL;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,16 +43,25 @@ public class SSO
 {
     private static final Log logger = LogFactory.getLog(SSO.class);
 
+    private static final String USER_AGENT = "MSN Explorer/9.0 (MSN 8.0; TmstmpExt)";
+
     private String userName = null;
     private String password = null;
     private String policy = null;
     private String nonce = null;
 
-    private String webTicket = null;
-    private String contactTicket = null;
-    private String oimTicket = null;
-    private String spaceTicket = null;
-    private String storageTicket = null;
+    /**
+     * Key of the tickets of this account and policy in the cache.
+     */
+    private final String cacheKey;
+
+    private SSOTicketCache.Tickets tickets = null;
+
+    /**
+     * Tickets valid for this long are assumed when the response has no
+     * expiry.
+     */
+    private static final long DEFAULT_LIFETIME = 3600000;
 
     Pattern redirectPattern = Pattern.compile("<psf:redirectUrl>(.*)</psf:redirectUrl>");
 
@@ -75,22 +71,71 @@ public class SSO
         this.password = password;
         this.policy = policy;
         this.nonce = nonce;
+
+        // the password is part of the key so a wrong one never gets
+        // the tickets of the right one
+        cacheKey = userName + ' ' + policy + ' '
+            + DigestUtils.md5(String.valueOf(password));
     }
 
+    /**
+     * @return the ticket for the nonce, from cached passport tickets if
+     * still valid
+     */
     public String getTicket()
     {
-        return getTicket(null);
+        return getTicket(SSOTicketCache.getInstance().get(cacheKey,
+            new SSOTicketCache.Loader()
+            {
+                public SSOTicketCache.Tickets load()
+                {
+                    return requestTickets(null);
+                }
+            }));
     }
 
+    /**
+     * @return the ticket for the nonce, from new passport tickets asked
+     * from the given url
+     */
     public String getTicket(String urlStr)
+    {
+        return getTicket(requestTickets(urlStr));
+    }
+
+    private String getTicket(SSOTicketCache.Tickets t)
+    {
+        if(t == null)
+            return null;
+
+        tickets = t;
+        try
+        {
+            return t.ticket + " " + t.proof.sign(nonce.trim());
+        }
+        catch (Exception e)
+        {
+            logger.error("Login error ", e);
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the cached tickets of the account, when the server refused
+     * them.
+     */
+    public void invalidate()
+    {
+        SSOTicketCache.getInstance().remove(cacheKey);
+    }
+
+    private SSOTicketCache.Tickets requestTickets(String urlStr)
     {
         try
         {
             if(urlStr == null)
                 urlStr = "http://login.live.com/RST.srf";
 
-            URL url = new URL(urlStr);
-
             StringBuilder mess = new StringBuilder();
 
             mess.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n");
@@ -192,66 +237,15 @@ public class SSO
             mess.append("</Body>\r\n");
             mess.append("</Envelope>");
 
-            DefaultHttpClientConnection conn = new DefaultHttpClientConnection();
-            HttpParams params = null;
-            BasicHttpProcessor httpproc = null;
+            SoapTransport.Response response = SoapTransport.getInstance()
+                .postVerified(urlStr, mess.toString(), USER_AGENT);
 
-            params = new BasicHttpParams();
-            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-            HttpProtocolParams.setContentCharset(params, "UTF-8");
-            HttpProtocolParams.setUserAgent(params, "MSN Explorer/9.0 (MSN 8.0; TmstmpExt)");
-            HttpProtocolParams.setUseExpectContinue(params, false);
-
-            httpproc = new BasicHttpProcessor();
-            // Required protocol interceptors
-            httpproc.addInterceptor(new RequestContent());
-            httpproc.addInterceptor(new RequestTargetHost());
-            // Recommended protocol interceptors
-            httpproc.addInterceptor(new RequestConnControl());
-            httpproc.addInterceptor(new RequestUserAgent());
-            httpproc.addInterceptor(new RequestExpectContinue());
-
-            HttpRequestExecutor httpexecutor = new HttpRequestExecutor();
-
-            HttpContext context = new BasicHttpContext(null);
-
-            HttpHost host = new HttpHost(url.getHost(), 443, "https");
-
-            context.setAttribute(ExecutionContext.HTTP_CONNECTION, conn);
-            context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, host);
-
-
-            SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            Socket socket = factory.createSocket(host.getHostName(), host.getPort());
-
-            conn.bind(socket, params);
-
-            BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest(
-                "POST",
-                url.getPath());
-            request.setEntity(new XmlEntity(mess.toString()));
-
-            context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
-            request.setParams(params);
-
-            request.addHeader("Host", url.getHost());
-
-            httpexecutor.preProcess(request, httpproc, context);
-
-            HttpResponse response = httpexecutor.execute(request, conn, context);
-            httpexecutor.postProcess(response, httpproc, context);
-
-            if(logger.isDebugEnabled())
-                logger.debug(response.getStatusLine());
-
-            String responseStr = EntityUtils.toString(response.getEntity(), "UTF-8");
-
-            if(logger.isDebugEnabled())
-                logger.debug(response.getStatusLine() + " / " + responseStr);
+            if(response == null)
+                return null;
 
-            conn.close();
+            String responseStr = response.getBody();
 
-            int code = response.getStatusLine().getStatusCode();
+            int code = response.getStatusCode();
 
             if(code > -1 && code != 200)
             {
@@ -278,7 +272,7 @@ public class SSO
                         return null;
                     }
 
-                    return getTicket(redirectUrl);
+                    return requestTickets(redirectUrl);
                 }
             }
             else
@@ -296,18 +290,18 @@ public class SSO
                             return null;
                         }
 
-                        return getTicket(redirectUrl);
+                        return requestTickets(redirectUrl);
                     }
                 }
             }
 
-            if(response.getStatusLine().getStatusCode() != 200)
+            if(code != 200)
             {
                 logger.error("something wrong!", new Exception());
                 return null;
             }
 
-            return getTicketFromResponseXml(responseStr);
+            return parseTickets(responseStr);
         }catch (Exception e)
         {
             logger.error("Login error ", e);
@@ -317,7 +311,7 @@ public class SSO
         return null;
     }
 
-    private String getTicketFromResponseXml(String xml)
+    private SSOTicketCache.Tickets parseTickets(String xml)
     {
         try
         {
@@ -329,9 +323,19 @@ public class SSO
             ByteArrayInputStream in = new ByteArrayInputStream(xml.getBytes("UTF-8"));
             Document doc = docBuilder.parse(in);
 
-            Element el1 = XmlUtils.locateElement(doc.getDocumentElement(),
-                "wsse:BinarySecurityToken", "Id", "Compact1");
+            Element[] tokens = new Element[6];
+            long expires = Long.MAX_VALUE;
+            for(int i = 0; i < tokens.length; i++)
+            {
+                tokens[i] = XmlUtils.locateElement(doc.getDocumentElement(),
+                    "wsse:BinarySecurityToken", "Id", "Compact" + (i + 1));
+                if(tokens[i] != null)
+                    expires = Math.min(expires, getExpires(tokens[i]));
+            }
+            if(expires == Long.MAX_VALUE)
+                expires = System.currentTimeMillis() + DEFAULT_LIFETIME;
 
+            Element el1 = tokens[0];
             Element p1 = (Element) el1.getParentNode().getParentNode();
             Element p2 = XmlUtils.findChild(p1, "wst:RequestedProofToken");
             Element el2 = XmlUtils.findChild(p2, "wst:BinarySecret");
@@ -339,30 +343,15 @@ public class SSO
             String ticket = XmlUtils.getText(el1);
             String binSecret = XmlUtils.getText(el2).trim();
 
-            Element webTicketEl = XmlUtils.locateElement(doc.getDocumentElement(),
-                "wsse:BinarySecurityToken", "Id", "Compact2");
-            webTicket = XmlUtils.getText(webTicketEl);
-
-            Element contactTicketEl = XmlUtils.locateElement(doc.getDocumentElement(),
-                "wsse:BinarySecurityToken", "Id", "Compact3");
-            contactTicket = XmlUtils.getText(contactTicketEl);
-
-            Element oimTicketEl = XmlUtils.locateElement(doc.getDocumentElement(),
-                "wsse:BinarySecurityToken", "Id", "Compact4");
-            oimTicket = XmlUtils.getText(oimTicketEl);
-
-            Element spaceTicketEl = XmlUtils.locateElement(doc.getDocumentElement(),
-                "wsse:BinarySecurityToken", "Id", "Compact5");
-            spaceTicket = XmlUtils.getText(spaceTicketEl);
-
-            Element storageTicketEl = XmlUtils.locateElement(doc.getDocumentElement(),
-                "wsse:BinarySecurityToken", "Id", "Compact6");
-            storageTicket = XmlUtils.getText(storageTicketEl);
-
-            SSOticket SSOTicket = new SSOticket(binSecret, nonce.trim());
-
-            //return the final ticket
-            return ticket.trim() + " " + SSOTicket.value;
+            return new SSOTicketCache.Tickets(
+                ticket.trim(),
+                new SSOticket(binSecret),
+                getText(tokens[1]),
+                getText(tokens[2]),
+                getText(tokens[3]),
+                getText(tokens[4]),
+                getText(tokens[5]),
+                expires);
         } catch (Exception e)
         {
             logger.error("Login error ", e);
@@ -371,100 +360,110 @@ public class SSO
         return null;
     }
 
-    static class SSOticket
+    private static String getText(Element el)
     {
-        public String value;    // the ticket in form of a string
+        return el == null ? null : XmlUtils.getText(el);
+    }
 
-        private byte[] beginning;
+    /**
+     * @return the expiry in the Lifetime of the response of a token,
+     * Long.MAX_VALUE if it has none
+     */
+    private static long getExpires(Element token)
+    {
+        Element response = (Element) token.getParentNode().getParentNode();
+        Element expiresEl = XmlUtils.findChildByChain(response,
+            new String[]{"wst:Lifetime", "wsu:Expires"});
+        if(expiresEl == null)
+            return Long.MAX_VALUE;
 
-        public SSOticket(String key, String nonce)
-            throws Exception
+        try
         {
-            // First of all, we need to create a structure of information, which elements' size is 4 bytes
-            // To do that, we use an array which we can turn into a string, later...
-            beginning = new byte[28];
+            return DatatypeFactory.newInstance()
+                .newXMLGregorianCalendar(XmlUtils.getText(expiresEl).trim())
+                .toGregorianCalendar().getTimeInMillis();
+        }
+        catch (Exception e)
+        {
+            logger.warn("bad ticket expiry " + XmlUtils.getText(expiresEl));
+            return Long.MAX_VALUE;
+        }
+    }
 
+    /**
+     * The proof key of the passport ticket. The keys derived from it are
+     * computed once, signing a nonce only takes a HMAC and a 3DES block.
+     */
+    static class SSOticket
+    {
+        private static final byte[] beginning = {
             //StructHeaderSize = 28
-            beginning[0] = 0x1c;
-            beginning[1] = 0x00;
-            beginning[2] = 0x00;
-            beginning[3] = 0x00;
-
+            0x1c, 0x00, 0x00, 0x00,
             //CryptMode = 1
-            beginning[4] = 0x01;
-            beginning[5] = 0x00;
-            beginning[6] = 0x00;
-            beginning[7] = 0x00;
-
+            0x01, 0x00, 0x00, 0x00,
             //CipherType = 0x6603
-            beginning[8] = 0x03;
-            beginning[9] = 0x66;
-            beginning[10] = 0x00;
-            beginning[11] = 0x00;
-
+            0x03, 0x66, 0x00, 0x00,
             //HashType = 0x8004
-            beginning[12] = 0x04;
-            beginning[13] = (byte)0x80;
-            beginning[14] = 0x00;
-            beginning[15] = 0x00;
-
+            0x04, (byte)0x80, 0x00, 0x00,
             //IV length = 8
-            beginning[16] = 0x08;
-            beginning[17] = 0x00;
-            beginning[18] = 0x00;
-            beginning[19] = 0x00;
-
+            0x08, 0x00, 0x00, 0x00,
             //hash length = 20
-            beginning[20] = 0x14;
-            beginning[21] = 0x00;
-            beginning[22] = 0x00;
-            beginning[23] = 0x00;
-
+            0x14, 0x00, 0x00, 0x00,
             //cipher length = 72
-            beginning[24] = 0x48;
-            beginning[25] = 0x00;
-            beginning[26] = 0x00;
-            beginning[27] = 0x00;
+            0x48, 0x00, 0x00, 0x00
+        };
+
+        // create the initialization vector (which number's are not important, but better use random ;-))
+        private static final byte[] iv = { 0, 1, 2, 3, 4, 5, 6, 7 };
 
+        // we have to fill the nonce with 8*8
+        private static final byte[] restOfNonce =
+            { 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08 };
+
+        private final SecretKeySpec hashKey;
+        private final SecretKeySpec encryptionKey;
+
+        public SSOticket(String key)
+            throws Exception
+        {
             // now, we have to create a first, base64 decoded key, which we get from the input key
             byte[] key1 = Base64.decode(key);
 
             // then we calculate a second key through a specific algorithm (see function DeriveKey())
-            byte[] key2 = deriveKey(key1, "WS-SecureConversationSESSION KEY HASH");
+            hashKey = new SecretKeySpec(
+                deriveKey(key1, "WS-SecureConversationSESSION KEY HASH"), "HmacSHA1");
 
             // ...and a third key with the same algorithm...
-            byte[] key3 = deriveKey(key1, "WS-SecureConversationSESSION KEY ENCRYPTION");
+            encryptionKey = new SecretKeySpec(
+                deriveKey(key1, "WS-SecureConversationSESSION KEY ENCRYPTION"), "DESede");
+        }
+
+        /**
+         * @return the ticket in form of a string
+         */
+        public String sign(String nonce)
+            throws Exception
+        {
+            byte[] nonceBytes = nonce.getBytes("UTF-8");
 
             // compute the hash
-            byte[] hash = HMAC(key2, nonce.getBytes("UTF-8"));
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(hashKey);
+            byte[] hash = mac.doFinal(nonceBytes);
 
             // now, we will use TrippleDES algorithm to transform the nonce to a block of 72 bytes...
-            // create the initialization vector (which number's are not important, but better use random ;-))
-            byte[] iv = { 0, 1, 2, 3, 4, 5, 6, 7 };
-
-            // fill random iv
-            //byte[] iv = new byte[8];
-            //for (int i = 0; i < 8; i++)
-            //{
-            //    byte rand = (byte) Math.floor(Math.random() * 256);
-            //    iv[i] = rand;
-            //}
-
-            // we have to fill the nonce with 8*8
-            byte[] restOfNonce = { 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08 };
-
-            byte[] output = DES3(key3, combine(nonce.getBytes("UTF-8"), restOfNonce), iv);
+            Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            byte[] output = cipher.doFinal(combine(nonceBytes, restOfNonce));
 
             // the final key will be a base64 encoded structure, composed by the beginning of the structure, the initialization vector, the SHA1 - Hash and the transformed block
-            // string struc = Encoding.Default.GetString(Beginning) + Encoding.Default.GetString(iv) + Encoding.Default.GetString(hash) + Encoding.Default.GetString(output);
-            String struc = new String(beginning, "ISO-8859-1") + new String(iv, "ISO-8859-1") + new String(hash, "ISO-8859-1") + new String(output, "ISO-8859-1");
+            byte[] struc = combine(combine(combine(beginning, iv), hash), output);
 
-
-            value = new String(Base64.encode(struc.getBytes("ISO-8859-1")));
+            return new String(Base64.encode(struc));
         }
 
         // combine two byte arrays
-        private byte[] combine(byte[] a, byte[] b)
+        private static byte[] combine(byte[] a, byte[] b)
         {
             byte[] c = new byte[a.length + b.length];
             System.arraycopy(a, 0, c, 0, a.length);
@@ -474,13 +473,17 @@ public class SSO
         }
 
         // specific algorithm to calculate a key...
-        private byte[] deriveKey(byte[] key, String magic)
+        private static byte[] deriveKey(byte[] key, String magic)
             throws Exception
         {
-            byte hash1[] = HMAC(key, magic.getBytes("UTF-8"));
-            byte hash2[] = HMAC(key, combine(hash1, magic.getBytes("UTF-8")));
-            byte hash3[] = HMAC(key, hash1);
-            byte hash4[] = HMAC(key, combine(hash3, magic.getBytes("UTF-8")));
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(key, "HmacSHA1"));
+
+            byte[] magicBytes = magic.getBytes("UTF-8");
+            byte hash1[] = mac.doFinal(magicBytes);
+            byte hash2[] = mac.doFinal(combine(hash1, magicBytes));
+            byte hash3[] = mac.doFinal(hash1);
+            byte hash4[] = mac.doFinal(combine(hash3, magicBytes));
             byte out[] = new byte[4];
             out[0] = hash4[0];
             out[1] = hash4[1];
@@ -488,70 +491,45 @@ public class SSO
             out[3] = hash4[3];
             return combine(hash2, out);
         }
+    }
 
-        private byte[] HMAC(byte[] key, byte[] subject)
-        {
-            try
-            {
-                Mac mac = Mac.getInstance("HmacSHA1");
-                SecretKeySpec sk = new SecretKeySpec(key, "HmacSHA1");
-
-                mac.init(sk);
-                return mac.doFinal(subject);
-            }
-            catch (NoSuchAlgorithmException ex)
-            {
-                ex.printStackTrace();
-            }
-            catch (InvalidKeyException ex)
-            {
-                ex.printStackTrace();
-            }
-
-            return null;
-        }
-
-        private byte[] DES3(byte[] key, byte[] subject, byte[] iv)
-        {
-            try
-            {
-                Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-                SecretKeySpec sk = new SecretKeySpec(key, "DESede");
-
-                IvParameterSpec sr = new IvParameterSpec(iv);
-                cipher.init(Cipher.ENCRYPT_MODE, sk, sr);
-                return cipher.doFinal(subject);
-            }
-            catch (Exception ex)
-            {
-                ex.printStackTrace();
-            }
-            return null;
-        }
+    /**
+     * @return the tickets of the account, renewed ones if the login ones
+     * were renewed meanwhile
+     */
+    private SSOTicketCache.Tickets current()
+    {
+        SSOTicketCache.Tickets t = SSOTicketCache.getInstance().peek(cacheKey);
+        return t != null ? t : tickets;
     }
 
     public String getContactTicket()
     {
-        return contactTicket;
+        SSOTicketCache.Tickets t = current();
+        return t == null ? null : t.contactTicket;
     }
 
     public String getOimTicket()
     {
-        return oimTicket;
+        SSOTicketCache.Tickets t = current();
+        return t == null ? null : t.oimTicket;
     }
 
     public String getSpaceTicket()
     {
-        return spaceTicket;
+        SSOTicketCache.Tickets t = current();
+        return t == null ? null : t.spaceTicket;
     }
 
     public String getStorageTicket()
     {
-        return storageTicket;
+        SSOTicketCache.Tickets t = current();
+        return t == null ? null : t.storageTicket;
     }
 
     public String getWebTicket()
     {
-        return webTicket;
+        SSOTicketCache.Tickets t = current();
+        return t == null ? null : t.webTicket;
     }
 }
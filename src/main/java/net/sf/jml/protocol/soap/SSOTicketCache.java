@@ -0,0 +1,261 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol.soap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import net.sf.jml.util.HashedWheelTimer;
+import net.sf.jml.util.JmlConstants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Passport tickets shared by all sessions of the jvm, by account and
+ * policy. A login reuses the tickets while they are valid instead of a
+ * new RST request, concurrent logins of one account wait for the same
+ * request and at most {@link JmlConstants#SSO_MAX_REQUESTS} requests run
+ * at once.
+ * <p>
+ * Tickets still used are renewed in the background
+ * {@link JmlConstants#SSO_RENEW_BEFORE} before they expire, tickets not
+ * used since they were issued are dropped then.
+ *
+ * @author Damian Minkov
+ */
+final class SSOTicketCache
+{
+    private static final Log logger = LogFactory.getLog(SSOTicketCache.class);
+
+    /**
+     * Tickets valid for less are requested again.
+     */
+    private static final long MIN_VALIDITY = 60000;
+
+    private static SSOTicketCache instance = null;
+
+    private final ConcurrentMap<String, Entry> entries =
+        new ConcurrentHashMap<String, Entry>();
+
+    private final Semaphore requests =
+        new Semaphore(Math.max(1, JmlConstants.SSO_MAX_REQUESTS), true);
+
+    /**
+     * Requests the tickets.
+     */
+    interface Loader
+    {
+        /**
+         * @return the tickets, null if the request failed
+         */
+        Tickets load();
+    }
+
+    /**
+     * The tickets of one RST response.
+     */
+    static final class Tickets
+    {
+        final String ticket;
+        final SSO.SSOticket proof;
+        final String webTicket;
+        final String contactTicket;
+        final String oimTicket;
+        final String spaceTicket;
+        final String storageTicket;
+
+        final long issued = System.currentTimeMillis();
+        final long expires;
+
+        Tickets(String ticket, SSO.SSOticket proof, String webTicket,
+            String contactTicket, String oimTicket, String spaceTicket,
+            String storageTicket, long expires)
+        {
+            this.ticket = ticket;
+            this.proof = proof;
+            this.webTicket = webTicket;
+            this.contactTicket = contactTicket;
+            this.oimTicket = oimTicket;
+            this.spaceTicket = spaceTicket;
+            this.storageTicket = storageTicket;
+            this.expires = expires;
+        }
+    }
+
+    private final class Entry
+        implements Runnable
+    {
+        private final String key;
+        private volatile Loader loader;
+        private volatile Tickets tickets = null;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        /**
+         * Guarded by the entry.
+         */
+        private HashedWheelTimer.Timeout renewal = null;
+
+        Entry(String key, Loader loader)
+        {
+            this.key = key;
+            this.loader = loader;
+        }
+
+        synchronized Tickets load()
+        {
+            Tickets t = tickets;
+            if(t != null
+                && t.expires - System.currentTimeMillis() > MIN_VALIDITY)
+                return t;
+
+            t = request(loader);
+            if(t == null)
+            {
+                if(tickets == null)
+                    entries.remove(key, this);
+                return null;
+            }
+
+            tickets = t;
+            scheduleRenewal(t);
+            return t;
+        }
+
+        private void scheduleRenewal(Tickets t)
+        {
+            long delay = Math.max(MIN_VALIDITY, t.expires
+                - System.currentTimeMillis() - JmlConstants.SSO_RENEW_BEFORE);
+            if(renewal == null)
+                renewal = HashedWheelTimer.getInstance().newTimeout(this, delay);
+            else
+                renewal.reschedule(delay);
+        }
+
+        synchronized void cancel()
+        {
+            tickets = null;
+            if(renewal != null)
+                renewal.cancel();
+        }
+
+        /**
+         * Renewal.
+         */
+        public void run()
+        {
+            Tickets t = tickets;
+            if(t == null)
+                return;
+
+            if(lastUsed < t.issued)
+            {
+                if(logger.isDebugEnabled())
+                    logger.debug("dropping unused tickets of " + key);
+                entries.remove(key, this);
+                return;
+            }
+
+            synchronized(this)
+            {
+                if(tickets != t)
+                    return;
+
+                Tickets renewed = request(loader);
+                if(renewed == null)
+                {
+                    logger.warn("renewing tickets failed, keeping them till expiry");
+                    return;
+                }
+
+                tickets = renewed;
+                scheduleRenewal(renewed);
+            }
+        }
+    }
+
+    static synchronized SSOTicketCache getInstance()
+    {
+        if(instance == null)
+            instance = new SSOTicketCache();
+        return instance;
+    }
+
+    private SSOTicketCache()
+    {
+    }
+
+    /**
+     * @return valid tickets, cached or requested with the loader, null if
+     * the request failed
+     */
+    Tickets get(String key, Loader loader)
+    {
+        Entry entry = entries.get(key);
+        if(entry == null)
+        {
+            entries.putIfAbsent(key, new Entry(key, loader));
+            entry = entries.get(key);
+        }
+        entry.loader = loader;
+        entry.lastUsed = System.currentTimeMillis();
+
+        Tickets t = entry.tickets;
+        if(t != null && t.expires - System.currentTimeMillis() > MIN_VALIDITY)
+            return t;
+        return entry.load();
+    }
+
+    /**
+     * @return the cached tickets if not expired, else null
+     */
+    Tickets peek(String key)
+    {
+        Entry entry = entries.get(key);
+        if(entry == null)
+            return null;
+
+        Tickets t = entry.tickets;
+        if(t == null || t.expires <= System.currentTimeMillis())
+            return null;
+
+        entry.lastUsed = System.currentTimeMillis();
+        return t;
+    }
+
+    /**
+     * Forgets tickets the server didn't accept.
+     */
+    void remove(String key)
+    {
+        Entry entry = entries.remove(key);
+        if(entry != null)
+            entry.cancel();
+    }
+
+    private Tickets request(Loader loader)
+    {
+        requests.acquireUninterruptibly();
+        try
+        {
+            return loader.load();
+        }
+        finally
+        {
+            requests.release();
+        }
+    }
+}
@@ -0,0 +1,622 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.protocol.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.jml.util.JmlConstants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpClientConnection;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestExpectContinue;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.RequestUserAgent;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * HTTPS transport shared by all the SOAP services of the jvm. Connections
+ * are kept alive and pooled per host, at most
+ * {@link JmlConstants#SOAP_MAX_CONNECTIONS} requests run against one host
+ * at a time. All connections come from one SSL context, so new connections
+ * to a host resume the TLS session instead of a full handshake.
+ * <p>
+ * Where a service redirected an owner to, by a Location header or the
+ * PreferredHostName of a fault, is remembered per owner and host, the
+ * following requests go there directly.
+ *
+ * @see JmlConstants#SOAP_KEEP_ALIVE
+ * @see JmlConstants#SOAP_TIMEOUT
+ * @author Damian Minkov
+ */
+public final class SoapTransport
+{
+    private static final Log logger = LogFactory.getLog(SoapTransport.class);
+
+    private static final String PREF_HOSTNAME_NODE_START = "<PreferredHostName>";
+    private static final String PREF_HOSTNAME_NODE_END = "</PreferredHostName>";
+
+    private static SoapTransport instance = null;
+
+    /**
+     * Reads a successful response straight from the connection, the request
+     * fails if it throws an XMLStreamException.
+     */
+    interface ResponseParser
+    {
+        void parse(InputStream in)
+            throws XMLStreamException, IOException;
+    }
+
+    /**
+     * Status and body of a response, which was read completely.
+     */
+    static final class Response
+    {
+        private final int statusCode;
+        private final String body;
+        private final Header location;
+
+        Response(int statusCode, String body, Header location)
+        {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.location = location;
+        }
+
+        int getStatusCode()
+        {
+            return statusCode;
+        }
+
+        /**
+         * @return the body, null if it was given to a parser
+         */
+        String getBody()
+        {
+            return body;
+        }
+    }
+
+    /**
+     * Timing of the requests of one SOAP action.
+     */
+    public static final class Metrics
+    {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos, boolean error)
+        {
+            requests.incrementAndGet();
+            if(error)
+                errors.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while((max = maxNanos.get()) < nanos
+                && !maxNanos.compareAndSet(max, nanos))
+                ;
+        }
+
+        public long getRequestCount()
+        {
+            return requests.get();
+        }
+
+        /**
+         * @return requests which failed or weren't answered with 200
+         */
+        public long getErrorCount()
+        {
+            return errors.get();
+        }
+
+        /**
+         * @return total time of the requests in milliseconds
+         */
+        public long getTotalTime()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+        }
+
+        /**
+         * @return average time of a request in milliseconds
+         */
+        public long getAverageTime()
+        {
+            long count = requests.get();
+            return count == 0 ? 0 : getTotalTime() / count;
+        }
+
+        /**
+         * @return longest time of a request in milliseconds
+         */
+        public long getMaxTime()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+
+        @Override
+        public String toString()
+        {
+            return "requests " + getRequestCount() + ", errors "
+                + getErrorCount() + ", avg " + getAverageTime() + "ms, max "
+                + getMaxTime() + "ms";
+        }
+    }
+
+    private final SSLSocketFactory trustingFactory;
+    private final SSLSocketFactory verifyingFactory;
+
+    private final HttpParams params;
+    private final BasicHttpProcessor httpproc;
+    private final HttpRequestExecutor httpexecutor = new HttpRequestExecutor();
+    private final ConnectionReuseStrategy connStrategy =
+        new DefaultConnectionReuseStrategy();
+
+    private final ConcurrentMap<String, HostPool> pools =
+        new ConcurrentHashMap<String, HostPool>();
+
+    /**
+     * Redirects by owner and url, and by owner and host.
+     */
+    private final ConcurrentMap<String, String> redirects =
+        new ConcurrentHashMap<String, String>();
+
+    private final ConcurrentMap<String, Metrics> metrics =
+        new ConcurrentHashMap<String, Metrics>();
+
+    public static synchronized SoapTransport getInstance()
+    {
+        if(instance == null)
+            instance = new SoapTransport();
+        return instance;
+    }
+
+    private SoapTransport()
+    {
+        params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        HttpConnectionParams.setSoTimeout(params, JmlConstants.SOAP_TIMEOUT);
+
+        httpproc = new BasicHttpProcessor();
+        // Required protocol interceptors
+        httpproc.addInterceptor(new RequestContent());
+        httpproc.addInterceptor(new RequestTargetHost());
+        // Recommended protocol interceptors
+        httpproc.addInterceptor(new RequestConnControl());
+        httpproc.addInterceptor(new RequestUserAgent());
+        httpproc.addInterceptor(new RequestExpectContinue());
+
+        SSLSocketFactory factory;
+        try
+        {
+            // msn change their certificate with invalid one,
+            // which prevents us from retreiving contacts and maging them
+            // we install dummy trust man ager in order to fix it
+            SSLContext sc = SSLContext.getInstance("TLS");
+            TrustManager[] tma = {new DummyTrustManager()};
+            sc.init(null, tma, null);
+            factory = sc.getSocketFactory();
+        }
+        catch (Exception e)
+        {
+            logger.error("can't create ssl context", e);
+            factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
+        trustingFactory = factory;
+        verifyingFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    }
+
+    /**
+     * @return the timings by SOAP action, or by url for requests without
+     * an action
+     */
+    public Map<String, Metrics> getMetrics()
+    {
+        return Collections.unmodifiableMap(new HashMap<String, Metrics>(metrics));
+    }
+
+    /**
+     * Posts a request to a service whose certificate isn't verified,
+     * following one redirect.
+     *
+     * @param owner whose redirects are used and remembered
+     * @param parser if not null, reads a successful response
+     * @return the response, null if the request failed
+     */
+    Response post(String owner, String address, String soapAction,
+        String body, ResponseParser parser)
+    {
+        String target = resolve(owner, address);
+        Response response = execute(target, soapAction, body, null, true,
+            parser);
+
+        if(response == null || response.statusCode == 200)
+        {
+            if(response == null && !target.equals(address))
+                forget(owner, address);
+            return response;
+        }
+
+        try
+        {
+            String redirect = null;
+            if(response.location != null)
+            {
+                redirect = response.location.getValue();
+                redirects.put(owner + ' ' + address, redirect);
+            }
+            else if(response.body != null)
+            {
+                // check for PreferredHostName and test there
+                int ix = response.body.indexOf(PREF_HOSTNAME_NODE_START);
+                int ix2 = response.body.indexOf(PREF_HOSTNAME_NODE_END, ix);
+                if(ix != -1 && ix2 != -1)
+                {
+                    String newHost = response.body.substring(
+                        ix + PREF_HOSTNAME_NODE_START.length(), ix2).trim();
+                    String oldHost = new URL(address).getHost();
+                    redirect = address.replace(oldHost, newHost);
+                    redirects.put(owner + ' ' + oldHost, newHost);
+                }
+            }
+
+            if(redirect == null || redirect.equals(target))
+                return response;
+
+            return execute(redirect, soapAction, body, null, true, parser);
+        }
+        catch (IOException e)
+        {
+            logger.error("Bad redirect", e);
+            return response;
+        }
+    }
+
+    /**
+     * Posts a request to a service whose certificate is verified.
+     *
+     * @return the response, null if the request failed
+     */
+    Response postVerified(String address, String body, String userAgent)
+    {
+        return execute(address, null, body, userAgent, false, null);
+    }
+
+    private String resolve(String owner, String address)
+    {
+        String redirect = redirects.get(owner + ' ' + address);
+        if(redirect != null)
+            return redirect;
+        try
+        {
+            String host = new URL(address).getHost();
+            String newHost = redirects.get(owner + ' ' + host);
+            if(newHost != null)
+                return address.replace(host, newHost);
+        }
+        catch (IOException e)
+        {
+            // bad url, will fail later
+        }
+        return address;
+    }
+
+    private void forget(String owner, String address)
+    {
+        redirects.remove(owner + ' ' + address);
+        try
+        {
+            redirects.remove(owner + ' ' + new URL(address).getHost());
+        }
+        catch (IOException e)
+        {
+            // bad url
+        }
+    }
+
+    private Response execute(String address, String soapAction, String body,
+        String userAgent, boolean trusting, ResponseParser parser)
+    {
+        String key = soapAction != null ? soapAction : address;
+        Metrics m = metrics.get(key);
+        if(m == null)
+        {
+            metrics.putIfAbsent(key, new Metrics());
+            m = metrics.get(key);
+        }
+
+        long start = System.nanoTime();
+        Response response = null;
+        try
+        {
+            if(logger.isTraceEnabled())
+                logger.trace("Will send body: " + body + " using address " + address);
+
+            URL url = new URL(address);
+            HostPool pool = getPool(url.getHost(), trusting);
+
+            pool.permits.acquireUninterruptibly();
+            try
+            {
+                response = execute(pool, url, soapAction, body, userAgent,
+                    parser);
+            }
+            finally
+            {
+                pool.permits.release();
+            }
+            return response;
+        }
+        catch (Exception e)
+        {
+            logger.error("Sending request", e);
+            return null;
+        }
+        finally
+        {
+            m.record(System.nanoTime() - start,
+                response == null || response.statusCode != 200);
+        }
+    }
+
+    private Response execute(HostPool pool, URL url, String soapAction,
+        String body, String userAgent, ResponseParser parser)
+        throws IOException, HttpException
+    {
+        BasicHttpEntityEnclosingRequest request =
+            new BasicHttpEntityEnclosingRequest("POST", url.getPath());
+        request.setEntity(new XmlEntity(body));
+        request.setParams(params);
+
+        if(soapAction != null)
+            request.addHeader("SOAPAction", soapAction);
+        if(userAgent != null)
+            request.addHeader("User-Agent", userAgent);
+
+        request.addHeader("Host", url.getHost());
+        request.addHeader("Accept", "text/*");
+
+        HttpHost host = new HttpHost(url.getHost(), 443, "https");
+
+        while(true)
+        {
+            DefaultHttpClientConnection conn = pool.poll();
+            boolean reused = conn != null;
+            if(!reused)
+                conn = pool.open();
+
+            boolean keep = false;
+            try
+            {
+                HttpContext context = new BasicHttpContext(null);
+                context.setAttribute(ExecutionContext.HTTP_CONNECTION, conn);
+                context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, host);
+                context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+
+                HttpResponse response;
+                try
+                {
+                    httpexecutor.preProcess(request, httpproc, context);
+                    response = httpexecutor.execute(request, conn, context);
+                }
+                catch (NoHttpResponseException e)
+                {
+                    // the server closed the idle connection without
+                    // reading the request, anything else may have been
+                    // processed and must not be sent twice
+                    if(reused)
+                    {
+                        logger.debug("Pooled connection failed, retrying", e);
+                        continue;
+                    }
+                    throw e;
+                }
+                httpexecutor.postProcess(response, httpproc, context);
+
+                if(logger.isDebugEnabled())
+                {
+                    for(Header h : response.getAllHeaders())
+                    {
+                        logger.debug("Header - " + h.getName() + ":" + h.getValue());
+                    }
+                }
+
+                int code = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+                String result = null;
+
+                if(parser != null && code == 200)
+                {
+                    try
+                    {
+                        if(entity != null)
+                        {
+                            parser.parse(entity.getContent());
+                            entity.consumeContent();
+                        }
+                        // only a connection read to the end can be reused
+                        keep = true;
+                    }
+                    catch (XMLStreamException ex)
+                    {
+                        // what was parsed is incomplete, the request failed
+                        logger.error("Parsing response", ex);
+                        return null;
+                    }
+                }
+                else
+                {
+                    result = entity == null ? "" :
+                        EntityUtils.toString(entity, "UTF-8");
+                    keep = true;
+
+                    if(logger.isDebugEnabled())
+                        logger.debug(response.getStatusLine() + " / " + result);
+                }
+
+                keep = keep && connStrategy.keepAlive(response, context);
+                return new Response(code, result,
+                    response.getFirstHeader("Location"));
+            }
+            finally
+            {
+                if(keep)
+                    pool.release(conn);
+                else
+                    close(conn);
+            }
+        }
+    }
+
+    private HostPool getPool(String host, boolean trusting)
+    {
+        String key = (trusting ? "" : "verified ") + host;
+        HostPool pool = pools.get(key);
+        if(pool == null)
+        {
+            pools.putIfAbsent(key, new HostPool(host,
+                trusting ? trustingFactory : verifyingFactory));
+            pool = pools.get(key);
+        }
+        return pool;
+    }
+
+    private static void close(DefaultHttpClientConnection conn)
+    {
+        try
+        {
+            conn.shutdown();
+        }
+        catch (IOException e)
+        {
+            logger.debug("error closing connection", e);
+        }
+    }
+
+    /**
+     * The idle connections to one host, most recently used first.
+     */
+    private final class HostPool
+    {
+        private final int maxConnections =
+            Math.max(1, JmlConstants.SOAP_MAX_CONNECTIONS);
+
+        final Semaphore permits = new Semaphore(maxConnections, true);
+
+        private final String host;
+        private final SSLSocketFactory factory;
+        private final LinkedList<Idle> idle = new LinkedList<Idle>();
+
+        HostPool(String host, SSLSocketFactory factory)
+        {
+            this.host = host;
+            this.factory = factory;
+        }
+
+        DefaultHttpClientConnection poll()
+        {
+            long now = System.currentTimeMillis();
+            while(true)
+            {
+                Idle i;
+                synchronized(idle)
+                {
+                    i = idle.poll();
+                }
+                if(i == null)
+                    return null;
+                if(now - i.since < JmlConstants.SOAP_KEEP_ALIVE
+                    && i.conn.isOpen() && !i.conn.isStale())
+                    return i.conn;
+                close(i.conn);
+            }
+        }
+
+        DefaultHttpClientConnection open()
+            throws IOException
+        {
+            Socket socket = factory.createSocket(host, 443);
+            DefaultHttpClientConnection conn = new DefaultHttpClientConnection();
+            conn.bind(socket, params);
+            return conn;
+        }
+
+        void release(DefaultHttpClientConnection conn)
+        {
+            synchronized(idle)
+            {
+                idle.addFirst(new Idle(conn));
+                // no more idle than can be used at once
+                while(idle.size() > maxConnections)
+                    close(idle.removeLast().conn);
+            }
+        }
+    }
+
+    private static final class Idle
+    {
+        final DefaultHttpClientConnection conn;
+        final long since = System.currentTimeMillis();
+
+        Idle(DefaultHttpClientConnection conn)
+        {
+            this.conn = conn;
+        }
+    }
+}
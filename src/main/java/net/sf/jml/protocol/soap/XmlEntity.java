@@ -27,32 +27,43 @@ public class XmlEntity
     extends AbstractHttpEntity
 {
 
-    String data;
+    /**
+     * The data encoded once, the content length must be the length of the
+     * bytes sent or a kept alive connection gets out of step.
+     */
+    byte[] data;
 
     XmlEntity(String data)
     {
-        this.data = data;
+        try
+        {
+            this.data = data.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e.toString());
+        }
         setContentType("text/xml; charset=utf-8");
     }
 
     public boolean isRepeatable()
     {
-        return false;
+        return true;
     }
 
     public long getContentLength()
     {
-        return data.length();
+        return data.length;
     }
 
     public InputStream getContent() throws IOException, IllegalStateException
     {
-        return new ByteArrayInputStream(data.getBytes());
+        return new ByteArrayInputStream(data);
     }
 
     public void writeTo(OutputStream o) throws IOException
     {
-        o.write(data.getBytes());
+        o.write(data);
     }
 
     public boolean isStreaming()
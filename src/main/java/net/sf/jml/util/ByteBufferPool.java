@@ -0,0 +1,107 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of byte buffers with power of two capacities. Buffers are direct
+ * when {@link JmlConstants#DIRECT_BUFFERS} is set.
+ * <p>
+ * A buffer must only be released when nobody holds a view of it anymore.
+ */
+public final class ByteBufferPool {
+
+    private static final int MIN_SHIFT = 12; // 4K
+    private static final int MAX_SHIFT = 24; // 16M
+
+    private static final int MAX_POOLED_PER_SIZE = Integer.getInteger(
+            "net.sf.jml.maxPooledBuffers", 256);
+
+    private static final SizeClass[] sizeClasses = new SizeClass[MAX_SHIFT
+            - MIN_SHIFT + 1];
+
+    static {
+        for (int i = 0; i < sizeClasses.length; i++)
+            sizeClasses[i] = new SizeClass();
+    }
+
+    private ByteBufferPool() {
+    }
+
+    /**
+     * Acquire a cleared buffer with at least the given capacity.
+     *
+     * @param capacity
+     *      minimum capacity
+     * @return
+     *      the buffer
+     */
+    public static ByteBuffer acquire(int capacity) {
+        int index = indexOf(capacity);
+        if (index < 0)
+            return ByteBufferUtils.allocate(capacity,
+                    JmlConstants.DIRECT_BUFFERS);
+
+        ByteBuffer buffer = sizeClasses[index].buffers.poll();
+        if (buffer == null)
+            return ByteBufferUtils.allocate(1 << (index + MIN_SHIFT),
+                    JmlConstants.DIRECT_BUFFERS);
+
+        sizeClasses[index].count.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer acquired by {@link #acquire(int)} to the pool.
+     *
+     * @param buffer
+     *      the buffer
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != JmlConstants.DIRECT_BUFFERS)
+            return;
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1)
+            return;
+        int index = indexOf(capacity);
+        if (index < 0)
+            return;
+
+        SizeClass sizeClass = sizeClasses[index];
+        if (sizeClass.count.incrementAndGet() > MAX_POOLED_PER_SIZE) {
+            sizeClass.count.decrementAndGet();
+            return;
+        }
+        sizeClass.buffers.add(buffer);
+    }
+
+    private static int indexOf(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        if (shift > MAX_SHIFT)
+            return -1;
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    private static final class SizeClass {
+        final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+        final AtomicInteger count = new AtomicInteger(0);
+    }
+}
@@ -54,18 +54,39 @@ public class ByteBufferUtils
     {
         int patternPos = pattern.position();
         int patternLen = pattern.remaining();
+        if (patternLen == 0)
+            return buffer.position();
+        byte first = pattern.get(patternPos);
         int lastIndex = buffer.limit() - patternLen + 1;
 
+        if (buffer.hasArray()) {
+            // scan the backing array for the first byte
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            Label: for (int i = buffer.position(); i < lastIndex; i++) {
+                if (array[offset + i] != first)
+                    continue;
+                for (int j = 1; j < patternLen; j++) {
+                    if (array[offset + i + j] != pattern.get(patternPos + j))
+                        continue Label;
+                }
+                return i;
+            }
+            return -1;
+        }
+
         Label: for (int i = buffer.position(); i < lastIndex; i++) {
-            for (int j = 0; j < patternLen; j++) {
+            if (buffer.get(i) != first)
+                continue;
+            for (int j = 1; j < patternLen; j++) {
                 if (buffer.get(i + j) != pattern.get(patternPos + j))
                     continue Label;
             }
             return i;
         }
         return -1;
-    }    
-    
+    }
+
     public static ByteBuffer allocate(int i, boolean flag)
         throws IllegalArgumentException
     {
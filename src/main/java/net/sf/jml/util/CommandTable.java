@@ -0,0 +1,142 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of values keyed by three letter protocol commands. A command of
+ * three upper case letters packs into an int below 26^3 which is used as
+ * index, so a lookup reads three bytes and one array slot, with no string
+ * and no hashing.
+ * 
+ * @param <V>
+ *      the value type
+ */
+public final class CommandTable<V> {
+
+    private static final int SIZE = 26 * 26 * 26;
+
+    private final AtomicReferenceArray<V> table = new AtomicReferenceArray<V>(
+            SIZE);
+
+    /**
+     * Pack a command.
+     * 
+     * @param buffer
+     *      the buffer
+     * @param index
+     *      the index of the first byte of the command
+     * @return
+     *      the packed command, or -1 if the three bytes are not upper case
+     *      letters
+     */
+    public static int pack(ByteBuffer buffer, int index) {
+        int c0 = buffer.get(index) - 'A';
+        int c1 = buffer.get(index + 1) - 'A';
+        int c2 = buffer.get(index + 2) - 'A';
+        if ((c0 | c1 | c2) < 0 || c0 >= 26 || c1 >= 26 || c2 >= 26)
+            return -1;
+        return (c0 * 26 + c1) * 26 + c2;
+    }
+
+    /**
+     * Pack a command.
+     * 
+     * @param b
+     *      the bytes
+     * @param index
+     *      the index of the first byte of the command
+     * @return
+     *      the packed command, or -1 if the three bytes are not upper case
+     *      letters
+     */
+    public static int pack(byte[] b, int index) {
+        int c0 = b[index] - 'A';
+        int c1 = b[index + 1] - 'A';
+        int c2 = b[index + 2] - 'A';
+        if ((c0 | c1 | c2) < 0 || c0 >= 26 || c1 >= 26 || c2 >= 26)
+            return -1;
+        return (c0 * 26 + c1) * 26 + c2;
+    }
+
+    /**
+     * Pack a command.
+     * 
+     * @param command
+     *      the command
+     * @return
+     *      the packed command, or -1 if it's not three upper case letters
+     */
+    public static int pack(String command) {
+        if (command == null || command.length() != 3)
+            return -1;
+        int packed = 0;
+        for (int i = 0; i < 3; i++) {
+            int c = command.charAt(i) - 'A';
+            if (c < 0 || c >= 26)
+                return -1;
+            packed = packed * 26 + c;
+        }
+        return packed;
+    }
+
+    /**
+     * @return
+     *      whether the three bytes at index are digits
+     */
+    public static boolean isDigits(ByteBuffer buffer, int index) {
+        for (int i = index; i < index + 3; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Put a value.
+     * 
+     * @param command
+     *      three upper case letters
+     * @param value
+     *      the value, null removes the command
+     * @return
+     *      the previous value
+     * @throws IllegalArgumentException
+     *      if the command is not three upper case letters
+     */
+    public V put(String command, V value) {
+        int packed = pack(command);
+        if (packed < 0)
+            throw new IllegalArgumentException("invalid command: " + command);
+        return table.getAndSet(packed, value);
+    }
+
+    public V get(String command) {
+        int packed = pack(command);
+        return packed < 0 ? null : table.get(packed);
+    }
+
+    /**
+     * @param packed
+     *      a packed command, may be -1
+     */
+    public V get(int packed) {
+        return packed < 0 ? null : table.get(packed);
+    }
+}
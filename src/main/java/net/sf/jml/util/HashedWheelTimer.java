@@ -0,0 +1,271 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hashed wheel timer shared by all sessions of the jvm. Timeouts are kept
+ * in a ring of buckets by deadline, one thread advances the ring a bucket
+ * per tick, so adding a timeout is O(1) and precision is one tick.
+ * <p>
+ * A {@link Timeout} can be rescheduled without creating a new task: moving
+ * the deadline later only updates it, the timeout is moved to the right
+ * bucket when its old bucket comes round. Expired tasks run on a shared
+ * pool so a slow task doesn't delay the others.
+ *
+ * @see JmlConstants#TIMER_TICK
+ */
+public final class HashedWheelTimer {
+
+    private static final Log log = LogFactory.getLog(HashedWheelTimer.class);
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static HashedWheelTimer instance = null;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+
+    /**
+     * Timeouts to be put in (or moved to) their bucket by the worker.
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+    private final Executor executor;
+
+    /**
+     * Ticks done by the worker, only touched by the worker thread.
+     */
+    private long tick = 0;
+
+    public static synchronized HashedWheelTimer getInstance() {
+        if (instance == null)
+            instance = new HashedWheelTimer(JmlConstants.TIMER_TICK,
+                    WHEEL_SIZE);
+        return instance;
+    }
+
+    private HashedWheelTimer(long tickMillis, int wheelSize) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(wheelSize);
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        mask = size - 1;
+
+        final AtomicInteger count = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,
+                                "net.sf.jml.util.HashedWheelTimer.task-"
+                                        + count.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        startTime = System.nanoTime();
+        Thread worker = new Thread(new Worker(),
+                "net.sf.jml.util.HashedWheelTimer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task
+     *      the task
+     * @param delay
+     *      delay in milliseconds
+     * @return
+     *      the timeout, which can be rescheduled or cancelled
+     */
+    public Timeout newTimeout(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task);
+        timeout.reschedule(delay);
+        return timeout;
+    }
+
+    private final class Worker implements Runnable {
+
+        public void run() {
+            while (true) {
+                long deadline = startTime + (tick + 1) * tickNanos;
+                long sleep;
+                while ((sleep = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        // keep ticking
+                    }
+                }
+                tick++;
+
+                try {
+                    transferPending();
+                    expire(wheel[(int) (tick & mask)], System.nanoTime());
+                } catch (Throwable t) {
+                    log.error("error in timer", t);
+                }
+            }
+        }
+
+        private void transferPending() {
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                if (timeout.bucket != null)
+                    timeout.bucket.remove(timeout);
+                if (timeout.state.get() == Timeout.SCHEDULED)
+                    place(timeout);
+            }
+        }
+
+        private void place(Timeout timeout) {
+            long ticks = (timeout.deadline - startTime + tickNanos - 1)
+                    / tickNanos;
+            if (ticks <= tick)
+                ticks = tick + 1;
+            timeout.rounds = (ticks - tick - 1) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+
+        private void expire(Bucket bucket, long now) {
+            Timeout timeout = bucket.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.state.get() != Timeout.SCHEDULED) {
+                    bucket.remove(timeout);
+                } else if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else if (timeout.deadline - now > tickNanos / 2) {
+                    // moved later meanwhile
+                    bucket.remove(timeout);
+                    place(timeout);
+                } else {
+                    bucket.remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.SCHEDULED,
+                            Timeout.EXPIRED))
+                        executor.execute(timeout.task);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Intrusive list of timeouts, only touched by the worker thread.
+     */
+    private static final class Bucket {
+        Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null)
+                head.prev = timeout;
+            head = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            else
+                head = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public final class Timeout {
+
+        static final int SCHEDULED = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        private final Runnable task;
+
+        private final AtomicInteger state = new AtomicInteger(EXPIRED);
+
+        private volatile long deadline;
+
+        // owned by the worker thread
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+        private long rounds;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Move the deadline to <tt>delay</tt> milliseconds from now. An
+         * expired or cancelled timeout is scheduled again.
+         *
+         * @param delay
+         *      delay in milliseconds
+         */
+        public void reschedule(long delay) {
+            long newDeadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+            long oldDeadline = deadline;
+            deadline = newDeadline;
+
+            if (state.getAndSet(SCHEDULED) != SCHEDULED
+                    || newDeadline < oldDeadline)
+                pending.add(this);
+        }
+
+        /**
+         * @return
+         *      false if the task already ran or was cancelled
+         */
+        public boolean cancel() {
+            return state.compareAndSet(SCHEDULED, CANCELLED);
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+}
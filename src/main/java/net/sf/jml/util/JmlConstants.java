@@ -15,6 +15,8 @@
  */
 package net.sf.jml.util;
 
+import net.sf.jml.net.OverflowPolicy;
+
 /**
  * Some constants used in jml.
  * 
@@ -44,4 +46,175 @@ public final class JmlConstants {
     public static final int MESSAGE_CHAIN_LENGTH = Integer.getInteger(
             "net.sf.jml.messageChainLength", 20);
 
-}
\ No newline at end of file
+    /**
+     * Use the non-blocking, selector based transport for sessions instead
+     * of the reader/dispatcher/sender threads per session.
+     */
+    public static final boolean NIO_TRANSPORT = Boolean
+            .getBoolean("net.sf.jml.nioTransport");
+
+    /**
+     * Run the threads of blocking sessions, and the blocking work started
+     * from incoming messages, as virtual threads. Needs JDK 21 or later,
+     * platform threads are used otherwise.
+     */
+    public static final boolean VIRTUAL_THREADS = Boolean
+            .getBoolean("net.sf.jml.virtualThreads");
+
+    /**
+     * The number of selector threads shared by all non-blocking sessions.
+     */
+    public static final int IO_THREADS = Integer.getInteger(
+            "net.sf.jml.ioThreads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The number of threads kept alive for delivering events of the
+     * non-blocking sessions. More threads are started while listeners block.
+     */
+    public static final int DISPATCH_THREADS = Integer.getInteger(
+            "net.sf.jml.dispatchThreads", IO_THREADS);
+
+    /**
+     * Use direct buffers for reading from the sessions.
+     */
+    public static final boolean DIRECT_BUFFERS = Boolean
+            .getBoolean("net.sf.jml.directBuffers");
+
+    /**
+     * The initial size of a session read buffer, it is doubled when a
+     * message doesn't fit.
+     */
+    public static final int READ_BUFFER_SIZE = Integer.getInteger(
+            "net.sf.jml.readBufferSize", 0x4000);
+
+    /**
+     * Chunk data of at least this size is kept as a view of the read buffer
+     * instead of being copied.
+     */
+    public static final int CHUNK_SLICE_THRESHOLD = Integer.getInteger(
+            "net.sf.jml.chunkSliceThreshold", 0x2000);
+
+    /**
+     * The most messages written to a session with one gathering write.
+     */
+    public static final int MAX_WRITE_BATCH = Integer.getInteger(
+            "net.sf.jml.maxWriteBatch", 64);
+
+    /**
+     * Milliseconds a queued message may wait for following messages so
+     * they are written together. 0 only batches what is already queued.
+     */
+    public static final long WRITE_COALESCE_DELAY = Long.getLong(
+            "net.sf.jml.writeCoalesceDelay", 0);
+
+    /**
+     * Milliseconds per tick of the shared session timer, the precision of
+     * session timeouts.
+     */
+    public static final long TIMER_TICK = Long.getLong(
+            "net.sf.jml.timerTick", 100);
+
+    /**
+     * Milliseconds a session waits for the response to a message with a
+     * transaction id.
+     */
+    public static final int REQUEST_TIMEOUT = Integer.getInteger(
+            "net.sf.jml.requestTimeout", 60000);
+
+    /**
+     * The capacity of the received and outgoing message queues of a
+     * session.
+     */
+    public static final int SESSION_QUEUE_CAPACITY = Integer.getInteger(
+            "net.sf.jml.sessionQueueCapacity", 4096);
+
+    /**
+     * What a session does with outgoing messages when its queue is full,
+     * one of BLOCK, DROP_OLDEST or FAIL_FAST.
+     */
+    public static final OverflowPolicy SESSION_OVERFLOW_POLICY = OverflowPolicy
+            .valueOf(System.getProperty("net.sf.jml.sessionOverflowPolicy",
+                    OverflowPolicy.BLOCK.name()));
+
+    /**
+     * Directory of the default contact list cache, the contact list isn't
+     * cached if not set.
+     * 
+     * @see net.sf.jml.impl.FileContactListCache
+     */
+    public static final String CONTACT_LIST_CACHE_DIR = System
+            .getProperty("net.sf.jml.contactListCacheDir");
+
+    /**
+     * Maximum concurrent SOAP requests, and so connections, per host.
+     */
+    public static final int SOAP_MAX_CONNECTIONS = Integer.getInteger(
+            "net.sf.jml.soapMaxConnections", 4);
+
+    /**
+     * Milliseconds an idle SOAP connection is kept open for the next
+     * request.
+     */
+    public static final long SOAP_KEEP_ALIVE = Long.getLong(
+            "net.sf.jml.soapKeepAlive", 30000);
+
+    /**
+     * Socket timeout of SOAP requests in milliseconds.
+     */
+    public static final int SOAP_TIMEOUT = Integer.getInteger(
+            "net.sf.jml.soapTimeout", 60000);
+
+    /**
+     * Maximum concurrent passport (RST) requests of the jvm.
+     */
+    public static final int SSO_MAX_REQUESTS = Integer.getInteger(
+            "net.sf.jml.ssoMaxRequests", 4);
+
+    /**
+     * Milliseconds before their expiry cached passport tickets of an
+     * account in use are renewed.
+     */
+    public static final long SSO_RENEW_BEFORE = Long.getLong(
+            "net.sf.jml.ssoRenewBefore", 600000);
+
+    /**
+     * Maximum offline messages fetched at the same time.
+     */
+    public static final int OIM_PARALLEL_FETCHES = Integer.getInteger(
+            "net.sf.jml.oimParallelFetches", 4);
+
+    /**
+     * Number of delivered offline messages deleted with one request.
+     */
+    public static final int OIM_DELETE_BATCH = Integer.getInteger(
+            "net.sf.jml.oimDeleteBatch", 20);
+
+    /**
+     * Minimum milliseconds between two offline messages sent by a session.
+     */
+    public static final long OIM_SEND_INTERVAL = Long.getLong(
+            "net.sf.jml.oimSendInterval", 1000);
+
+    /**
+     * Maximum file transfer chunks sent through a switchboard and not
+     * acknowledged yet.
+     */
+    public static final int P2P_WINDOW = Integer.getInteger(
+            "net.sf.jml.p2pWindow", 16);
+
+    /**
+     * Directory of the journal of unfinished incoming file transfers,
+     * transfers aren't resumed if not set.
+     *
+     * @see net.sf.jml.message.p2p.FileTransferJournal
+     */
+    public static final String FILE_TRANSFER_JOURNAL_DIR = System
+            .getProperty("net.sf.jml.fileTransferJournalDir");
+
+    /**
+     * Minimum milliseconds between two journal writes of a file transfer.
+     */
+    public static final long FILE_TRANSFER_JOURNAL_INTERVAL = Long.getLong(
+            "net.sf.jml.fileTransferJournalInterval", 1000);
+
+}
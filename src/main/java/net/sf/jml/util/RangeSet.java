@@ -0,0 +1,136 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Set of byte ranges, such as the parts of a file received so far.
+ * Overlapping and adjacent ranges are merged, so a set of chunks received
+ * in any order, some of them twice, ends up as one range.
+ * <p>
+ * Not thread safe.
+ */
+public final class RangeSet {
+
+    /**
+     * Start to end (exclusive) of disjoint, not adjacent ranges.
+     */
+    private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+    private long size = 0;
+
+    public RangeSet() {
+    }
+
+    public RangeSet(RangeSet other) {
+        ranges.putAll(other.ranges);
+        size = other.size;
+    }
+
+    /**
+     * Add the range [start, end).
+     *
+     * @return
+     *      the number of bytes which were not in the set yet
+     */
+    public long add(long start, long end) {
+        if (end <= start)
+            return 0;
+        long added = end - start;
+
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            if (before.getValue() >= end)
+                return 0;
+            added -= before.getValue() - start;
+            start = before.getKey();
+            ranges.remove(start);
+        }
+
+        Map.Entry<Long, Long> after;
+        while ((after = ranges.ceilingEntry(start)) != null
+                && after.getKey() <= end) {
+            ranges.remove(after.getKey());
+            added -= Math.min(after.getValue(), end) - after.getKey();
+            if (after.getValue() > end)
+                end = after.getValue();
+        }
+
+        ranges.put(start, end);
+        size += added;
+        return added;
+    }
+
+    /**
+     * Add every range of the other set.
+     *
+     * @return
+     *      the number of bytes which were not in the set yet
+     */
+    public long addAll(RangeSet other) {
+        long added = 0;
+        for (Map.Entry<Long, Long> range : other.ranges.entrySet())
+            added += add(range.getKey(), range.getValue());
+        return added;
+    }
+
+    /**
+     * @return
+     *      whether all of [start, end) is in the set
+     */
+    public boolean contains(long start, long end) {
+        if (end <= start)
+            return true;
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        return before != null && before.getValue() >= end;
+    }
+
+    /**
+     * @return
+     *      the number of bytes in the set
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return
+     *      start to end (exclusive) of every range, in order
+     */
+    public SortedMap<Long, Long> getRanges() {
+        return Collections.unmodifiableSortedMap(ranges);
+    }
+
+    public void clear() {
+        ranges.clear();
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(range.getKey()).append('-').append(range.getValue());
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2004-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.jml.util;
+
+import java.lang.reflect.Method;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Creates the threads of sessions and of blocking work started by them.
+ * When {@link JmlConstants#VIRTUAL_THREADS} is set and the jvm supports it
+ * (JDK 21+) these are virtual threads, found by reflection so the library
+ * still runs on older jvms.
+ */
+public final class ThreadUtils {
+
+    private static final Log log = LogFactory.getLog(ThreadUtils.class);
+
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method builderUnstarted;
+
+    static {
+        Method of = null;
+        Method name = null;
+        Method unstarted = null;
+        if (JmlConstants.VIRTUAL_THREADS) {
+            try {
+                of = Thread.class.getMethod("ofVirtual");
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                // fail here rather than on every new thread
+                unstarted.invoke(name.invoke(of.invoke(null), "probe"),
+                        new Runnable() {
+                            public void run() {
+                            }
+                        });
+            } catch (Exception e) {
+                log.warn("virtual threads not available, using platform threads");
+                of = null;
+            }
+        }
+        ofVirtual = of;
+        builderName = name;
+        builderUnstarted = unstarted;
+    }
+
+    private ThreadUtils() {
+    }
+
+    /**
+     * @return
+     *      whether {@link #newThread} creates virtual threads
+     */
+    public static boolean isVirtual() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Create a thread, not started yet.
+     *
+     * @param task
+     *      the task to run
+     * @param name
+     *      the name of the thread
+     * @return
+     *      a virtual thread if enabled and supported, else a platform thread
+     */
+    public static Thread newThread(Runnable task, String name) {
+        if (ofVirtual != null) {
+            try {
+                return (Thread) builderUnstarted.invoke(builderName.invoke(
+                        ofVirtual.invoke(null), name), task);
+            } catch (Exception e) {
+                log.warn("error creating virtual thread", e);
+            }
+        }
+        return new Thread(task, name);
+    }
+}